@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clarkparsia.stardog.StardogException;
+import com.pancaketech.stardog.api.StardogConnectionPool;
+
+/**
+ * Measures a <tt>connect()</tt> followed by <tt>close()</tt> at 1, 4 and as
+ * many threads as there are processors. With a pool smaller than the thread
+ * count borrowers queue up, which measures the hand-off to waiters rather
+ * than the lock free fast path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BorrowReturnBenchmark {
+
+	@Param({ "1", "8", "64" })
+	public int poolSize;
+
+	@Param({ "true", "false" })
+	public boolean threadAffinity;
+
+	@Param({ "false", "true" })
+	public boolean metrics;
+
+	private StardogConnectionPool pool;
+
+	@Setup
+	public void setUp() throws StardogException {
+		pool = new StubPool();
+		pool.setMaxPoolSize(poolSize);
+		pool.setThreadAffinity(threadAffinity);
+		pool.setMetricsEnabled(metrics);
+		pool.setMinIdle(poolSize);
+		pool.prefill();
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void oneThread() throws StardogException {
+		pool.connect().close();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void fourThreads() throws StardogException {
+		pool.connect().close();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void allProcessors() throws StardogException {
+		pool.connect().close();
+	}
+}
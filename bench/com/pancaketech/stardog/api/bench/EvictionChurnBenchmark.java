@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clarkparsia.stardog.StardogException;
+import com.pancaketech.stardog.api.StardogConnectionPool;
+
+/**
+ * Measures borrow and return while the watcher keeps retiring connections.
+ * Connections live for at most the max lifetime, so the pool constantly
+ * closes connections and borrowers open new ones, and the throughput shows
+ * what eviction and creation cost the borrowers. A max lifetime of 0 is the
+ * baseline without churn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EvictionChurnBenchmark {
+
+	@Param({ "0", "100" })
+	public long maxLifetime;
+
+	@Param({ "false", "true" })
+	public boolean adaptiveSizing;
+
+	private StardogConnectionPool pool;
+
+	@Setup
+	public void setUp() {
+		pool = new StubPool();
+		pool.setMaxPoolSize(16);
+		pool.setIdleTimeout(100);
+		pool.setMaxLifetime(maxLifetime);
+		pool.setAdaptiveSizing(adaptiveSizing);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void churn() throws StardogException {
+		pool.connect().close();
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api.bench;
+
+import com.clarkparsia.stardog.api.Connection;
+import com.pancaketech.stardog.api.StardogConnectionPool;
+import com.pancaketech.stardog.api.StubConnection;
+
+/**
+ * A pool of stub connections, so that the benchmarks measure the pool and not
+ * a Stardog server.
+ */
+class StubPool extends StardogConnectionPool {
+
+	@Override
+	protected Connection createConnection() {
+		return new StubConnection();
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.pancaketech.stardog.api.StardogConnectionPool;
+import com.pancaketech.stardog.api.StubConnection;
+
+/**
+ * Measures what the <tt>Pooled*</tt> wrappers add to a call. The same ASK query
+ * is run on a bare stub connection, on a borrowed connection that is held, and
+ * with a borrow and return around every query. The stub answers without a
+ * round-trip, so the differences are the cost of the wrappers and the pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WrapperOverheadBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean metrics;
+
+	private StardogConnectionPool pool;
+	private Connection bare;
+	private Connection pooled;
+
+	@Setup
+	public void setUp() throws StardogException {
+		pool = new StubPool();
+		pool.setMetricsEnabled(metrics);
+		bare = new StubConnection();
+		pooled = pool.connect();
+	}
+
+	@TearDown
+	public void tearDown() throws StardogException {
+		pooled.close();
+		pool.terminatePool();
+	}
+
+	@Benchmark
+	public boolean bare() throws StardogException {
+		return bare.query("ASK {}").executeAsk();
+	}
+
+	@Benchmark
+	public boolean pooled() throws StardogException {
+		return pooled.query("ASK {}").executeAsk();
+	}
+
+	@Benchmark
+	public boolean borrowPerQuery() throws StardogException {
+		Connection conn = pool.connect();
+		try {
+			return conn.query("ASK {}").executeAsk();
+		} finally {
+			conn.close();
+		}
+	}
+}
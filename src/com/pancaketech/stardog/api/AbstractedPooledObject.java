@@ -51,6 +51,28 @@ public class AbstractedPooledObject<T>
 			throw new StardogException("Connection is closed.");
 	}
 	
+	/*
+	 * Returns the start time of an operation when the pool records metrics,
+	 * and 0 otherwise.
+	 */
+	long startOperation()
+	{
+		return source.getPool().getMetricsRecorder() != null ? System
+			.nanoTime() : 0;
+	}
+	
+	/*
+	 * Records the latency of an operation begun with startOperation.
+	 */
+	void endOperation(String operation, long start)
+	{
+		if (start == 0)
+			return;
+		MetricsRecorder recorder = source.getPool().getMetricsRecorder();
+		if (recorder != null)
+			recorder.recordOperation(operation, System.nanoTime() - start);
+	}
+	
 	protected void ValidateConnectionWithIllegalStateException()
 			throws IllegalStateException
 	{
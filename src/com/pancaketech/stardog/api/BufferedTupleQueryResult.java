@@ -0,0 +1,125 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+/**
+ * A SELECT result read into memory, so that it can be answered again from a
+ * <tt>QueryResultCache</tt>. A result too large to keep continues with the
+ * rest of the result it was read from.
+ */
+class BufferedTupleQueryResult implements TupleQueryResult
+{
+	
+	private final List<String> bindingNames;
+	private final List<BindingSet> rows;
+	private final TupleQueryResult rest;
+	private int next;
+	
+	BufferedTupleQueryResult(List<String> bindingNames, List<BindingSet> rows,
+			TupleQueryResult rest)
+	{
+		this.bindingNames = bindingNames;
+		this.rows = rows;
+		this.rest = rest;
+	}
+	
+	/*
+	 * Returns a result over the same rows, from the start.
+	 */
+	BufferedTupleQueryResult replay()
+	{
+		return new BufferedTupleQueryResult(bindingNames, rows, null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.query.TupleQueryResult#getBindingNames()
+	 */
+	@Override
+	public List<String> getBindingNames()
+	{
+		return bindingNames;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws QueryEvaluationException
+	{
+		return next < rows.size() || (rest != null && rest.hasNext());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#next()
+	 */
+	@Override
+	public BindingSet next() throws QueryEvaluationException
+	{
+		if (next < rows.size())
+			return rows.get(next++);
+		if (rest == null)
+			throw new NoSuchElementException();
+		return rest.next();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#remove()
+	 */
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.CloseableIteration#close()
+	 */
+	@Override
+	public void close() throws QueryEvaluationException
+	{
+		if (rest != null)
+			rest.close();
+	}
+}
@@ -0,0 +1,315 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.MapBindingSet;
+
+import com.clarkparsia.stardog.StardogException;
+
+/**
+ * A SELECT result read completely into memory, so that the connection it came
+ * from can go back to the pool before the rows are consumed. Each distinct
+ * value is kept once in a dictionary, and the rows are kept as one column of
+ * dictionary indexes per binding name, 0 meaning unbound. Columns are
+ * <tt>int</tt> arrays on the heap until they take up <tt>spillThreshold</tt>
+ * bytes; further rows go to direct buffers outside the heap, which are freed
+ * when the result is garbage collected. The dictionary always stays on the
+ * heap.
+ * <p>
+ * The binding sets handed out are created as the result is iterated, so
+ * only the rows in use take up heap as objects.
+ */
+public final class ColumnarTupleQueryResult implements TupleQueryResult
+{
+	
+	/*
+	 * Rows per off-heap chunk of a column.
+	 */
+	private static final int ChunkRows = 4096;
+	
+	private final List<String> bindingNames;
+	private final List<Value> dictionary;
+	private final int[][] heapColumns;
+	private final List<IntBuffer[]> chunks;
+	private final int heapRows;
+	private final int rows;
+	private int next;
+	
+	private ColumnarTupleQueryResult(List<String> bindingNames,
+			List<Value> dictionary, int[][] heapColumns, int heapRows,
+			List<IntBuffer[]> chunks, int rows)
+	{
+		this.bindingNames = bindingNames;
+		this.dictionary = dictionary;
+		this.heapColumns = heapColumns;
+		this.heapRows = heapRows;
+		this.chunks = chunks;
+		this.rows = rows;
+	}
+	
+	/**
+	 * Reads a result to its end and closes it.
+	 * 
+	 * @param spillThreshold
+	 *            Bytes of rows kept on the heap before further rows are kept
+	 *            outside it.
+	 */
+	public static ColumnarTupleQueryResult drain(TupleQueryResult result,
+			long spillThreshold) throws StardogException
+	{
+		try
+		{
+			try
+			{
+				return new Builder(result.getBindingNames(), spillThreshold)
+					.read(result);
+			}
+			finally
+			{
+				result.close();
+			}
+		}
+		catch (QueryEvaluationException e)
+		{
+			throw new StardogException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Returns the number of rows, read or not.
+	 */
+	public int size()
+	{
+		return rows;
+	}
+	
+	/**
+	 * Returns the number of distinct values in the result.
+	 */
+	public int getDistinctValueCount()
+	{
+		return dictionary.size();
+	}
+	
+	/**
+	 * Returns whether some rows are kept outside the heap.
+	 */
+	public boolean isSpilled()
+	{
+		return !chunks.isEmpty();
+	}
+	
+	private int index(int column, int row)
+	{
+		if (row < heapRows)
+			return heapColumns[column][row];
+		row -= heapRows;
+		return chunks.get(row / ChunkRows)[column].get(row % ChunkRows);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.query.TupleQueryResult#getBindingNames()
+	 */
+	@Override
+	public List<String> getBindingNames()
+	{
+		return bindingNames;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#hasNext()
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		return next < rows;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#next()
+	 */
+	@Override
+	public BindingSet next()
+	{
+		if (next >= rows)
+			throw new NoSuchElementException();
+		MapBindingSet row = new MapBindingSet();
+		for (int column = 0; column < bindingNames.size(); column++)
+		{
+			int index = index(column, next);
+			if (index != 0)
+				row.addBinding(bindingNames.get(column), dictionary
+					.get(index - 1));
+		}
+		next++;
+		return row;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#remove()
+	 */
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.CloseableIteration#close()
+	 */
+	@Override
+	public void close()
+	{
+		next = rows;
+	}
+	
+	private static final class Builder
+	{
+		
+		private final List<String> bindingNames;
+		private final Map<Value, Integer> indexes = new HashMap<Value, Integer>();
+		private final ArrayList<Value> dictionary = new ArrayList<Value>();
+		private final List<IntBuffer[]> chunks = new ArrayList<IntBuffer[]>();
+		private final int[][] heapColumns;
+		/*
+		 * Rows that fit in spillThreshold bytes; the columns never grow
+		 * past it.
+		 */
+		private final int maxHeapRows;
+		private int capacity;
+		private int heapRows;
+		private int rows;
+		
+		Builder(List<String> bindingNames, long spillThreshold)
+		{
+			this.bindingNames = Collections
+				.unmodifiableList(new ArrayList<String>(bindingNames));
+			int columns = bindingNames.size();
+			maxHeapRows = columns == 0 ? Integer.MAX_VALUE : (int) Math.max(0,
+				Math.min(Integer.MAX_VALUE, spillThreshold / ((long) columns * 4)));
+			capacity = Math.min(16, maxHeapRows);
+			heapColumns = new int[columns][capacity];
+		}
+		
+		ColumnarTupleQueryResult read(TupleQueryResult result)
+				throws QueryEvaluationException
+		{
+			int columns = bindingNames.size();
+			boolean spilling = false;
+			while (result.hasNext())
+			{
+				BindingSet row = result.next();
+				if (!spilling && rows == maxHeapRows)
+					spilling = true;
+				if (!spilling)
+				{
+					if (rows == capacity)
+						grow((int) Math.min((long) capacity * 2, maxHeapRows));
+					for (int column = 0; column < columns; column++)
+						heapColumns[column][rows] = index(row
+							.getValue(bindingNames.get(column)));
+					heapRows++;
+				}
+				else
+				{
+					int offset = (rows - heapRows) % ChunkRows;
+					if (offset == 0)
+						chunks.add(allocateChunk(columns));
+					IntBuffer[] chunk = chunks.get(chunks.size() - 1);
+					for (int column = 0; column < columns; column++)
+						chunk[column].put(offset, index(row
+							.getValue(bindingNames.get(column))));
+				}
+				rows++;
+			}
+			grow(heapRows);
+			dictionary.trimToSize();
+			return new ColumnarTupleQueryResult(bindingNames, dictionary,
+				heapColumns, heapRows, chunks, rows);
+		}
+		
+		private int index(Value value)
+		{
+			if (value == null)
+				return 0;
+			Integer index = indexes.get(value);
+			if (index == null)
+			{
+				dictionary.add(value);
+				index = dictionary.size();
+				indexes.put(value, index);
+			}
+			return index;
+		}
+		
+		private void grow(int length)
+		{
+			for (int column = 0; column < heapColumns.length; column++)
+			{
+				int[] grown = new int[length];
+				System.arraycopy(heapColumns[column], 0, grown, 0, Math.min(
+					length, heapRows));
+				heapColumns[column] = grown;
+			}
+			capacity = length;
+		}
+		
+		private static IntBuffer[] allocateChunk(int columns)
+		{
+			IntBuffer[] chunk = new IntBuffer[columns];
+			for (int column = 0; column < columns; column++)
+				chunk[column] = ByteBuffer.allocateDirect(ChunkRows * 4).order(
+					ByteOrder.nativeOrder()).asIntBuffer();
+			return chunk;
+		}
+	}
+}
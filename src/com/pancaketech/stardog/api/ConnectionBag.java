@@ -0,0 +1,164 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * A lock free store for the connections of a pool. Borrowing first tries the
+ * connection the current thread returned last, which is usually still idle and
+ * keeps a thread on the same connection, and then falls back to the queue of
+ * idle connections of the requested endpoint. Entries are claimed by compare and set on their
+ * state, so borrowing and returning never acquire a monitor.
+ * 
+ * <p>
+ * Entries are never removed from the idle queue when they are borrowed through
+ * the thread local path; a stale queue entry is simply skipped when its claim
+ * fails.
+ * </p>
+ */
+final class ConnectionBag
+{
+	
+	private final ConcurrentHashMap<Connection, PoolEntry> entries = new ConcurrentHashMap<Connection, PoolEntry>();
+	private final ThreadLocal<WeakReference<PoolEntry>> lastReturned = new ThreadLocal<WeakReference<PoolEntry>>();
+	private volatile boolean threadAffinity = true;
+	
+	/**
+	 * Claims an idle entry connected to the given endpoint.
+	 * 
+	 * @return The claimed entry or null if no entry is idle.
+	 */
+	PoolEntry borrow(PoolEndpoint endpoint)
+	{
+		WeakReference<PoolEntry> ref = threadAffinity ? lastReturned.get()
+				: null;
+		if (ref != null)
+		{
+			PoolEntry entry = ref.get();
+			if (entry != null && entry.endpoint == endpoint)
+			{
+				lastReturned.set(null);
+				if (entry.claim())
+					return entry;
+			}
+		}
+		for (;;)
+		{
+			PoolEntry entry = endpoint.idle.poll();
+			if (entry == null)
+				return null;
+			entry.queued.set(false);
+			if (entry.claim())
+				return entry;
+		}
+	}
+	
+	/**
+	 * Makes a borrowed entry available again.
+	 */
+	void requite(PoolEntry entry)
+	{
+		if (!entry.state.compareAndSet(PoolEntry.StateInUse,
+				PoolEntry.StateNotInUse))
+			return;
+		if (threadAffinity)
+			lastReturned.set(new WeakReference<PoolEntry>(entry));
+		if (entry.queued.compareAndSet(false, true))
+			entry.endpoint.idle.offer(entry);
+	}
+	
+	void setThreadAffinity(boolean threadAffinity)
+	{
+		this.threadAffinity = threadAffinity;
+	}
+	
+	boolean isThreadAffinity()
+	{
+		return threadAffinity;
+	}
+	
+	/**
+	 * Registers a newly created entry. The entry starts out in use by its
+	 * creator.
+	 */
+	void add(PoolEntry entry)
+	{
+		entries.put(entry.connection, entry);
+	}
+	
+	/**
+	 * Claims an idle entry for removal from the pool.
+	 * 
+	 * @return true if the entry was idle and is now reserved.
+	 */
+	boolean reserve(PoolEntry entry)
+	{
+		return entry.state.compareAndSet(PoolEntry.StateNotInUse,
+				PoolEntry.StateRemoved);
+	}
+	
+	/**
+	 * Drops an entry from the bag. The entry is marked removed so that stale
+	 * references to it can no longer be claimed.
+	 * 
+	 * @return true if the entry was still registered.
+	 */
+	boolean remove(PoolEntry entry)
+	{
+		entry.state.set(PoolEntry.StateRemoved);
+		if (entry.queued.get())
+			entry.endpoint.idle.remove(entry);
+		return entries.remove(entry.connection, entry);
+	}
+	
+	PoolEntry get(Connection conn)
+	{
+		return entries.get(conn);
+	}
+	
+	Collection<PoolEntry> values()
+	{
+		return entries.values();
+	}
+	
+	int getIdleCount()
+	{
+		int count = 0;
+		for (PoolEntry entry : entries.values())
+		{
+			if (entry.state.get() == PoolEntry.StateNotInUse)
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of powers of two nano-seconds. Bucket b holds
+ * the latencies below 2^b ns and at least 2^(b-1) ns, so a percentile read
+ * from the buckets is at most twice the real one. Each thread counts in a
+ * stripe of its own, see <tt>StripedCounter</tt>, and the stripes are added up
+ * when a snapshot is taken.
+ */
+final class LatencyHistogram
+{
+	
+	static final int Buckets = 64;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(
+			StripedCounter.Stripes * Buckets);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+	
+	void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		int bucket = Math.min(Buckets - 1, 64 - Long.numberOfLeadingZeros(nanos));
+		counts.getAndIncrement(StripedCounter.stripe() * Buckets + bucket);
+		total.add(nanos);
+		// Only contended while the maximum still grows
+		long current;
+		while (nanos > (current = max.get()))
+		{
+			if (max.compareAndSet(current, nanos))
+				break;
+		}
+	}
+	
+	LatencySnapshot snapshot()
+	{
+		long[] buckets = new long[Buckets];
+		for (int stripe = 0; stripe < StripedCounter.Stripes; stripe++)
+		{
+			for (int bucket = 0; bucket < Buckets; bucket++)
+			{
+				buckets[bucket] += counts.get(stripe * Buckets + bucket);
+			}
+		}
+		return new LatencySnapshot(buckets, total.sum(), max.get());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latencies a <tt>StardogConnectionPool</tt> recorded for one kind of
+ * event up to the moment the snapshot was taken. Percentiles are read from
+ * buckets of powers of two, so they are upper bounds that may be up to twice
+ * the exact value.
+ */
+public final class LatencySnapshot
+{
+	
+	private static final double NanosPerMilli = TimeUnit.MILLISECONDS
+		.toNanos(1);
+	
+	private final long[] buckets;
+	private final long count;
+	private final long totalNanos;
+	private final long maxNanos;
+	
+	LatencySnapshot(long[] buckets, long totalNanos, long maxNanos)
+	{
+		this.buckets = buckets;
+		long count = 0;
+		for (long c : buckets)
+		{
+			count += c;
+		}
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+	}
+	
+	/**
+	 * @return The number of recorded events.
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+	
+	public double getMeanMillis()
+	{
+		return count == 0 ? 0 : totalNanos / NanosPerMilli / count;
+	}
+	
+	public double getMaxMillis()
+	{
+		return maxNanos / NanosPerMilli;
+	}
+	
+	public double getMedianMillis()
+	{
+		return getPercentileMillis(50);
+	}
+	
+	public double getP99Millis()
+	{
+		return getPercentileMillis(99);
+	}
+	
+	public double getP999Millis()
+	{
+		return getPercentileMillis(99.9);
+	}
+	
+	/**
+	 * @param percentile
+	 *            A percentile between 0 and 100.
+	 * @return The latency below which the given share of events fell, or 0 if
+	 *         nothing was recorded.
+	 */
+	public double getPercentileMillis(double percentile)
+	{
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException(
+					"Percentile must be between 0 and 100");
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < buckets.length; bucket++)
+		{
+			seen += buckets[bucket];
+			if (seen >= rank && seen > 0)
+			{
+				double upper = bucket == 0 ? 0 : Math.pow(2, bucket);
+				return Math.min(upper, maxNanos) / NanosPerMilli;
+			}
+		}
+		return getMaxMillis();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+				count, getMeanMillis(), getMedianMillis(),
+				getP99Millis(), getMaxMillis());
+	}
+}
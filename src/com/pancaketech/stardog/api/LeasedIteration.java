@@ -0,0 +1,130 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.NoSuchElementException;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.util.Iteration;
+
+/**
+ * An iteration that owns the lease on the connection it reads from, returned
+ * by <tt>StardogConnectionPool.stream</tt>. The connection goes back to the
+ * pool as soon as <tt>hasNext</tt> returns false or fails, when the iteration
+ * is closed, or when it has not been read for the pool's stream idle timeout,
+ * after which reading it fails. Closing it more than once does no harm.
+ */
+public class LeasedIteration<T> extends LeasedResult<StardogException>
+		implements Iteration<T, StardogException>
+{
+	
+	private final Iteration<T, StardogException> wrapped;
+	
+	LeasedIteration(StardogConnectionPool pool, Connection conn,
+			Iteration<T, StardogException> wrapped)
+	{
+		super(pool, conn);
+		this.wrapped = wrapped;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.util.Iteration#close()
+	 */
+	@Override
+	public void close() throws StardogException
+	{
+		closeLease();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.util.Iteration#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws StardogException
+	{
+		if (!begin())
+			return false;
+		boolean more = false;
+		try
+		{
+			more = wrapped.hasNext();
+			return more;
+		}
+		finally
+		{
+			if (more)
+				end();
+			else
+				finish();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.util.Iteration#next()
+	 */
+	@Override
+	public T next() throws StardogException
+	{
+		if (!begin())
+			throw new NoSuchElementException();
+		try
+		{
+			return wrapped.next();
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	@Override
+	protected void closeWrapped() throws StardogException
+	{
+		wrapped.close();
+	}
+	
+	@Override
+	protected StardogException fail(String message)
+	{
+		return new StardogException(message);
+	}
+	
+	@Override
+	protected StardogException fail(StardogException e)
+	{
+		return e;
+	}
+	
+}
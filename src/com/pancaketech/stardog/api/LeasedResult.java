@@ -0,0 +1,199 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * The lease on a borrowed connection held by a result the pool streamed. The
+ * connection goes back to the pool when the result is read to the end or
+ * closed, or when the pool finds it has not been read for the stream idle
+ * timeout.
+ * <p>
+ * Reads claim the result so that the pool never releases it in the middle of
+ * one. A result is read by one thread at a time.
+ */
+abstract class LeasedResult<E extends Exception>
+{
+	private static final Log Logger = LogFactory.getLog(LeasedResult.class);
+	private static final int Idle = 0;
+	private static final int Reading = 1;
+	private static final int Released = 2;
+	private static final int Expired = 3;
+	private static final int Terminated = 4;
+	
+	private final StardogConnectionPool pool;
+	private final Connection conn;
+	private final AtomicInteger state = new AtomicInteger(Idle);
+	private volatile long lastRead = System.nanoTime();
+	
+	LeasedResult(StardogConnectionPool pool, Connection conn)
+	{
+		this.pool = pool;
+		this.conn = conn;
+	}
+	
+	/*
+	 * Closes the result that is read, before its connection is closed.
+	 */
+	protected abstract void closeWrapped() throws E;
+	
+	protected abstract E fail(String message);
+	
+	protected abstract E fail(StardogException e);
+	
+	/*
+	 * Claims the result for a read. Returns false once it has been released.
+	 */
+	protected boolean begin() throws E
+	{
+		if (state.compareAndSet(Idle, Reading))
+			return true;
+		switch (state.get())
+		{
+			case Reading:
+				throw new IllegalStateException(
+						"Result is being read by another thread.");
+			case Expired:
+				throw fail("Connection was returned to the pool after the result was not read for "
+						+ pool.getStreamIdleTimeout() + "ms.");
+			case Terminated:
+				throw fail("Connection pool has been terminated.");
+			default:
+				return false;
+		}
+	}
+	
+	/*
+	 * Ends a read begun with begin.
+	 */
+	protected void end()
+	{
+		lastRead = System.nanoTime();
+		state.compareAndSet(Reading, Idle);
+	}
+	
+	/*
+	 * Ends a read begun with begin by releasing the lease, since the result
+	 * is read to the end or could not be read.
+	 */
+	protected void finish() throws E
+	{
+		state.set(Released);
+		release();
+	}
+	
+	/*
+	 * Releases the lease unless that happened already.
+	 */
+	protected void closeLease() throws E
+	{
+		if (!state.compareAndSet(Idle, Released))
+		{
+			if (state.get() == Reading)
+				throw new IllegalStateException(
+						"Result is being read by another thread.");
+			return;
+		}
+		release();
+	}
+	
+	boolean isReleased()
+	{
+		return state.get() >= Released;
+	}
+	
+	/*
+	 * Releases the lease if the result has not been read since the given
+	 * number of nano-seconds before now. Called by the pool's housekeeping.
+	 */
+	void expire(long now, long idleNanos)
+	{
+		if (now - lastRead < idleNanos || !state.compareAndSet(Idle, Expired))
+			return;
+		// A read may have ended between the check and the claim
+		if (now - lastRead < idleNanos)
+		{
+			state.set(Idle);
+			return;
+		}
+		Logger.debug("Returning connection of a result that was not read for "
+				+ TimeUnit.NANOSECONDS.toMillis(now - lastRead) + "ms.");
+		releaseQuietly();
+	}
+	
+	/*
+	 * Releases the lease because the pool is terminated. A result that is
+	 * being read is left to release it when the read ends.
+	 */
+	void terminate()
+	{
+		if (state.compareAndSet(Idle, Terminated))
+			releaseQuietly();
+	}
+	
+	private void releaseQuietly()
+	{
+		try
+		{
+			release();
+		}
+		catch (Exception e)
+		{
+			Logger.warn("Unable to close result that was not read.", e);
+		}
+	}
+	
+	private void release() throws E
+	{
+		pool.forget(this);
+		try
+		{
+			closeWrapped();
+		}
+		finally
+		{
+			try
+			{
+				conn.close();
+			}
+			catch (StardogException e)
+			{
+				throw fail(e);
+			}
+		}
+	}
+	
+}
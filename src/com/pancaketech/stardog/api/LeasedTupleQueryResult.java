@@ -0,0 +1,156 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * A query result that owns the lease on its connection, returned by
+ * <tt>StardogConnectionPool.select</tt>. The connection goes back to the pool
+ * as soon as <tt>hasNext</tt> returns false or fails, when the result is
+ * closed, or when it has not been read for the pool's stream idle timeout,
+ * after which reading it fails. Closing it more than once does no harm.
+ */
+public class LeasedTupleQueryResult extends
+		LeasedResult<QueryEvaluationException> implements TupleQueryResult
+{
+	
+	private final TupleQueryResult wrapped;
+	
+	LeasedTupleQueryResult(StardogConnectionPool pool, Connection conn,
+			TupleQueryResult wrapped)
+	{
+		super(pool, conn);
+		this.wrapped = wrapped;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.query.TupleQueryResult#getBindingNames()
+	 */
+	@Override
+	public List<String> getBindingNames()
+	{
+		return wrapped.getBindingNames();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws QueryEvaluationException
+	{
+		if (!begin())
+			return false;
+		boolean more = false;
+		try
+		{
+			more = wrapped.hasNext();
+			return more;
+		}
+		finally
+		{
+			if (more)
+				end();
+			else
+				finish();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#next()
+	 */
+	@Override
+	public BindingSet next() throws QueryEvaluationException
+	{
+		if (!begin())
+			throw new NoSuchElementException();
+		try
+		{
+			return wrapped.next();
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#remove()
+	 */
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.CloseableIteration#close()
+	 */
+	@Override
+	public void close() throws QueryEvaluationException
+	{
+		closeLease();
+	}
+	
+	@Override
+	protected void closeWrapped() throws QueryEvaluationException
+	{
+		wrapped.close();
+	}
+	
+	@Override
+	protected QueryEvaluationException fail(String message)
+	{
+		return new QueryEvaluationException(message);
+	}
+	
+	@Override
+	protected QueryEvaluationException fail(StardogException e)
+	{
+		return new QueryEvaluationException(e);
+	}
+	
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.clarkparsia.stardog.api.ConnectionConfiguration;
+
+/**
+ * A server a <tt>StardogConnectionPool</tt> opens connections to, with the
+ * load and health figures used to route borrows to it. An endpoint that fails
+ * too often in a row is ejected and only admitted again after a probe
+ * succeeds.
+ */
+final class PoolEndpoint
+{
+	
+	/*
+	 * Weight of the newest latency sample.
+	 */
+	private static final double Smoothing = 0.3;
+	
+	/*
+	 * The configuration to connect with, or null for the connConfig of the
+	 * pool.
+	 */
+	final ConnectionConfiguration config;
+	/*
+	 * Idle connections to this endpoint, see ConnectionBag.
+	 */
+	final Queue<PoolEntry> idle = new ConcurrentLinkedQueue<PoolEntry>();
+	/*
+	 * Connections to this endpoint that are currently borrowed.
+	 */
+	final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile boolean ejected;
+	/*
+	 * System.nanoTime() after which an ejected endpoint is probed.
+	 */
+	private volatile long probeAt;
+	/*
+	 * Smoothed time connections are held, in nano-seconds. Updates from
+	 * concurrent returns may overwrite each other, which only drops a sample.
+	 */
+	private volatile double latency;
+	
+	PoolEndpoint(ConnectionConfiguration config)
+	{
+		this.config = config;
+	}
+	
+	void recordLatency(long nanos)
+	{
+		latency = Smoothing * nanos + (1 - Smoothing) * latency;
+	}
+	
+	double getLatency()
+	{
+		return latency;
+	}
+	
+	void recordSuccess()
+	{
+		failures.set(0);
+	}
+	
+	/**
+	 * Counts a failed connect or validation.
+	 * 
+	 * @return true if this failure ejected the endpoint.
+	 */
+	boolean recordFailure(int threshold, long ejectionNanos)
+	{
+		if (failures.incrementAndGet() < threshold || ejected)
+			return false;
+		probeAt = System.nanoTime() + ejectionNanos;
+		ejected = true;
+		return true;
+	}
+	
+	boolean isEjected()
+	{
+		return ejected;
+	}
+	
+	boolean isProbeDue(long now)
+	{
+		return ejected && now - probeAt >= 0;
+	}
+	
+	void readmit()
+	{
+		failures.set(0);
+		ejected = false;
+	}
+	
+	void postponeProbe(long ejectionNanos)
+	{
+		probeAt = System.nanoTime() + ejectionNanos;
+	}
+}
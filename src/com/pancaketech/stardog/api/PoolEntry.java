@@ -0,0 +1,116 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Book keeping for a single physical connection owned by a
+ * <tt>StardogConnectionPool</tt>. The state is changed with compare and set so
+ * that a connection can be claimed by exactly one borrower without holding a
+ * lock.
+ */
+final class PoolEntry
+{
+	
+	static final int StateRemoved = -1;
+	static final int StateNotInUse = 0;
+	static final int StateInUse = 1;
+	
+	final Connection connection;
+	final PoolEndpoint endpoint;
+	final AtomicInteger state = new AtomicInteger(StateInUse);
+	final long created = System.nanoTime();
+	/*
+	 * Share of the max lifetime, below 10%, that this connection retires
+	 * early so that connections opened together do not expire together.
+	 */
+	final double lifetimeVariance = Math.random() * 0.1;
+	/*
+	 * System.nanoTime() of the last time the connection was returned.
+	 */
+	volatile long lastUsed = created;
+	/*
+	 * System.nanoTime() of the last time the connection passed validation.
+	 */
+	volatile long lastValidated = created;
+	/*
+	 * System.nanoTime() of the last time the connection was borrowed, when
+	 * the pool tracks it.
+	 */
+	volatile long borrowed;
+	/*
+	 * Set while the connection counts towards the borrowed connections of its
+	 * endpoint.
+	 */
+	volatile boolean counted;
+	/*
+	 * The wrapper the connection is lent out with, the System.nanoTime() it
+	 * was lent at and, for sampled borrows, where it was borrowed. Only set
+	 * while leak detection is on.
+	 */
+	volatile PooledConnection lease;
+	volatile long leased;
+	volatile Throwable leaseTrace;
+	volatile boolean leakReported;
+	/*
+	 * The queries parsed on this connection, created on the first borrow
+	 * while the pool keeps them.
+	 */
+	volatile PreparedQueries queries;
+	
+	/*
+	 * Set while the entry sits in the idle queue of its endpoint so that it is only
+	 * queued once no matter how many times it is returned.
+	 */
+	final AtomicBoolean queued = new AtomicBoolean(false);
+	
+	PoolEntry(Connection connection, PoolEndpoint endpoint)
+	{
+		this.connection = connection;
+		this.endpoint = endpoint;
+	}
+	
+	boolean claim()
+	{
+		return state.compareAndSet(StateNotInUse, StateInUse);
+	}
+	
+	boolean isInUse()
+	{
+		return state.get() == StateInUse;
+	}
+	
+	boolean isRemoved()
+	{
+		return state.get() == StateRemoved;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Map;
+
+/**
+ * Serves the attributes of <tt>StardogConnectionPoolMXBean</tt> from snapshots
+ * of a pool.
+ */
+final class PoolMXBean implements StardogConnectionPoolMXBean
+{
+	
+	private final StardogConnectionPool pool;
+	
+	PoolMXBean(StardogConnectionPool pool)
+	{
+		this.pool = pool;
+	}
+	
+	@Override
+	public int getPoolCount()
+	{
+		return pool.getMetrics().getPoolCount();
+	}
+	
+	@Override
+	public int getIdleCount()
+	{
+		return pool.getMetrics().getIdleCount();
+	}
+	
+	@Override
+	public int getActiveCount()
+	{
+		return pool.getMetrics().getActiveCount();
+	}
+	
+	@Override
+	public int getPendingCreations()
+	{
+		return pool.getMetrics().getPendingCreations();
+	}
+	
+	@Override
+	public int getWaiterCount()
+	{
+		return pool.getMetrics().getWaiterCount();
+	}
+	
+	@Override
+	public int getMaxPoolSize()
+	{
+		return pool.getMetrics().getMaxPoolSize();
+	}
+	
+	@Override
+	public long getTimeoutCount()
+	{
+		return pool.getMetrics().getTimeoutCount();
+	}
+	
+	@Override
+	public long getReclaimedCount()
+	{
+		return pool.getMetrics().getReclaimedCount();
+	}
+	
+	@Override
+	public long getPrefetchFallbackCount()
+	{
+		return pool.getPrefetchFallbackCount();
+	}
+	
+	@Override
+	public LatencySnapshot getBorrowWait()
+	{
+		return pool.getMetrics().getBorrowWait();
+	}
+	
+	@Override
+	public LatencySnapshot getHoldTime()
+	{
+		return pool.getMetrics().getHoldTime();
+	}
+	
+	@Override
+	public LatencySnapshot getCreationTime()
+	{
+		return pool.getMetrics().getCreationTime();
+	}
+	
+	@Override
+	public Map<String, LatencySnapshot> getOperations()
+	{
+		return pool.getMetrics().getOperations();
+	}
+}
@@ -0,0 +1,164 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The state of a <tt>StardogConnectionPool</tt> at the moment it was taken,
+ * see <tt>getMetrics</tt>. The latencies are empty unless metrics are turned
+ * on. A pool is saturated when borrowers queue up, which shows as a growing
+ * waiter count and borrow wait before it shows as timeouts.
+ */
+public final class PoolMetrics
+{
+	
+	private final int poolCount;
+	private final int idleCount;
+	private final int pendingCreations;
+	private final int waiterCount;
+	private final int maxPoolSize;
+	private final long timeoutCount;
+	private final long reclaimedCount;
+	private final LatencySnapshot borrowWait;
+	private final LatencySnapshot holdTime;
+	private final LatencySnapshot creationTime;
+	private final Map<String, LatencySnapshot> operations;
+	
+	PoolMetrics(int poolCount, int idleCount, int pendingCreations,
+			int waiterCount, int maxPoolSize, long timeoutCount,
+			long reclaimedCount, LatencySnapshot borrowWait,
+			LatencySnapshot holdTime, LatencySnapshot creationTime,
+			Map<String, LatencySnapshot> operations)
+	{
+		this.poolCount = poolCount;
+		this.idleCount = idleCount;
+		this.pendingCreations = pendingCreations;
+		this.waiterCount = waiterCount;
+		this.maxPoolSize = maxPoolSize;
+		this.timeoutCount = timeoutCount;
+		this.reclaimedCount = reclaimedCount;
+		this.borrowWait = borrowWait;
+		this.holdTime = holdTime;
+		this.creationTime = creationTime;
+		this.operations = Collections.unmodifiableMap(operations);
+	}
+	
+	public int getPoolCount()
+	{
+		return poolCount;
+	}
+	
+	public int getIdleCount()
+	{
+		return idleCount;
+	}
+	
+	/**
+	 * @return The number of connections that are borrowed.
+	 */
+	public int getActiveCount()
+	{
+		return Math.max(0, poolCount - idleCount - pendingCreations);
+	}
+	
+	public int getPendingCreations()
+	{
+		return pendingCreations;
+	}
+	
+	/**
+	 * @return The number of threads waiting for a connection.
+	 */
+	public int getWaiterCount()
+	{
+		return waiterCount;
+	}
+	
+	public int getMaxPoolSize()
+	{
+		return maxPoolSize;
+	}
+	
+	/**
+	 * @return The number of <tt>connect(long, TimeUnit)</tt> calls that timed
+	 *         out.
+	 */
+	public long getTimeoutCount()
+	{
+		return timeoutCount;
+	}
+	
+	public long getReclaimedCount()
+	{
+		return reclaimedCount;
+	}
+	
+	/**
+	 * @return The time from asking for a connection to getting it.
+	 */
+	public LatencySnapshot getBorrowWait()
+	{
+		return borrowWait;
+	}
+	
+	/**
+	 * @return The time from borrowing a connection to returning it.
+	 */
+	public LatencySnapshot getHoldTime()
+	{
+		return holdTime;
+	}
+	
+	/**
+	 * @return The time it took to open a new connection.
+	 */
+	public LatencySnapshot getCreationTime()
+	{
+		return creationTime;
+	}
+	
+	/**
+	 * @return The latency of each operation run through the pooled query,
+	 *         getter, adder and remover, by name, e.g.
+	 *         <tt>Query.executeSelect</tt>.
+	 */
+	public Map<String, LatencySnapshot> getOperations()
+	{
+		return operations;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "pool=" + poolCount + "/" + maxPoolSize + " idle=" + idleCount
+				+ " waiters=" + waiterCount + " timeouts=" + timeoutCount
+				+ " borrowWait[" + borrowWait + "] holdTime[" + holdTime + "]";
+	}
+}
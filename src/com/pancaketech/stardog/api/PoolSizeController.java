@@ -0,0 +1,147 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes a pool from observed demand. Arrival rate, hold time and wait time are
+ * sampled once per watcher pass and smoothed with an exponentially weighted
+ * moving average. By Little's law the number of connections busy at once is
+ * the arrival rate multiplied by the time each request spends in the pool, so
+ * the target size is that product plus some headroom.
+ */
+final class PoolSizeController
+{
+	
+	/*
+	 * Weight of the newest sample. Higher values follow load faster but are
+	 * more easily thrown by a single spike.
+	 */
+	private static final double Smoothing = 0.3;
+	private static final double Headroom = 1.2;
+	
+	private final AtomicLong arrivals = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong holdNanos = new AtomicLong();
+	private final AtomicLong holds = new AtomicLong();
+	
+	private long lastUpdate = System.nanoTime();
+	private volatile double arrivalRate;
+	private volatile double holdTime;
+	private volatile double waitTime;
+	private volatile int target;
+	
+	void recordArrival()
+	{
+		arrivals.incrementAndGet();
+	}
+	
+	void recordWait(long nanos)
+	{
+		waitNanos.addAndGet(nanos);
+		acquisitions.incrementAndGet();
+	}
+	
+	void recordHold(long nanos)
+	{
+		holdNanos.addAndGet(nanos);
+		holds.incrementAndGet();
+	}
+	
+	/**
+	 * Folds the samples taken since the last call into the averages and
+	 * computes a new target. Only called from the watcher thread.
+	 * 
+	 * @return The target pool size, between min and max.
+	 */
+	int update(int min, int max)
+	{
+		long now = System.nanoTime();
+		double seconds = (now - lastUpdate) / (double) TimeUnit.SECONDS.toNanos(1);
+		lastUpdate = now;
+		if (seconds <= 0)
+			return target;
+		
+		arrivalRate = average(arrivalRate, arrivals.getAndSet(0) / seconds);
+		long count = acquisitions.getAndSet(0);
+		long waited = waitNanos.getAndSet(0);
+		if (count > 0)
+			waitTime = average(waitTime, toSeconds(waited) / count);
+		count = holds.getAndSet(0);
+		long held = holdNanos.getAndSet(0);
+		if (count > 0)
+			holdTime = average(holdTime, toSeconds(held) / count);
+		
+		int size = (int) Math.ceil(arrivalRate * (holdTime + waitTime)
+				* Headroom);
+		target = Math.max(min, Math.min(max, size));
+		return target;
+	}
+	
+	private static double average(double current, double sample)
+	{
+		return Smoothing * sample + (1 - Smoothing) * current;
+	}
+	
+	private static double toSeconds(long nanos)
+	{
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+	
+	/**
+	 * @return Smoothed arrivals per second.
+	 */
+	double getArrivalRate()
+	{
+		return arrivalRate;
+	}
+	
+	/**
+	 * @return Smoothed seconds a connection is held per borrow.
+	 */
+	double getHoldTime()
+	{
+		return holdTime;
+	}
+	
+	/**
+	 * @return Smoothed seconds spent waiting per borrow.
+	 */
+	double getWaitTime()
+	{
+		return waitTime;
+	}
+	
+	int getTarget()
+	{
+		return target;
+	}
+}
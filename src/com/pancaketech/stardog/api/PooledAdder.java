@@ -61,7 +61,16 @@ public class PooledAdder extends AbstractedPooledObject<Adder> implements Adder
 	public Adder graph(Graph g, Resource... context) throws StardogException
 	{
 		ValidateConnection();
-		wrapped.graph(g, context);
+		long start = startOperation();
+		try
+		{
+			wrapped.graph(g, context);
+		}
+		finally
+		{
+			endOperation("Adder.graph", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -87,7 +96,16 @@ public class PooledAdder extends AbstractedPooledObject<Adder> implements Adder
 	public Adder statement(Statement s) throws StardogException
 	{
 		ValidateConnection();
-		wrapped.statement(s);
+		long start = startOperation();
+		try
+		{
+			wrapped.statement(s);
+		}
+		finally
+		{
+			endOperation("Adder.statement", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -104,7 +122,16 @@ public class PooledAdder extends AbstractedPooledObject<Adder> implements Adder
 			throws StardogException
 	{
 		ValidateConnection();
-		wrapped.statement(r, uri, v, context);
+		long start = startOperation();
+		try
+		{
+			wrapped.statement(r, uri, v, context);
+		}
+		finally
+		{
+			endOperation("Adder.statement", start);
+		}
+		source.written();
 		return this;
 	}
 	
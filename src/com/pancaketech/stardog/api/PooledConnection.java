@@ -27,6 +27,14 @@ or implied, of Pancake Technology, LLC.
  */
 package com.pancaketech.stardog.api;
 
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -36,6 +44,7 @@ import com.clarkparsia.stardog.api.Connection;
 import com.clarkparsia.stardog.api.Getter;
 import com.clarkparsia.stardog.api.Query;
 import com.clarkparsia.stardog.api.Remover;
+import com.clarkparsia.stardog.util.Iteration;
 
 /**
  * @author Robert Butler
@@ -45,9 +54,44 @@ public class PooledConnection implements Connection
 {
 	
 	private static final Log Logger = LogFactory.getLog(PooledConnection.class);
+	private static final AtomicReferenceFieldUpdater<PooledConnection, Connection> Wrapped = AtomicReferenceFieldUpdater
+		.newUpdater(PooledConnection.class, Connection.class, "wrapped");
 	
 	private StardogConnectionPool pool;
-	private Connection wrapped;
+	/*
+	 * Volatile and detached with compare and set, since the pool may take back
+	 * a connection that was never closed from another thread.
+	 */
+	private volatile Connection wrapped;
+	/*
+	 * Set once the connection may hold state that has to be reset before it
+	 * goes back to the pool: an open transaction, pending changes or a changed
+	 * auto commit mode. Read only use leaves it clear so that returning the
+	 * connection costs no round-trips.
+	 */
+	private boolean dirty;
+	/*
+	 * Set once changes have been made through the connection that are not
+	 * committed yet. Queries bypass the pool's query cache until they are, and
+	 * committing them empties it.
+	 */
+	private boolean written;
+	/*
+	 * The pool opens connections with auto commit off, and a dirty connection
+	 * is set back to it on close, so every lease starts with it off.
+	 */
+	private boolean autoCommit;
+	/*
+	 * Null unless the pool keeps parsed queries.
+	 */
+	private final PreparedQueries queries;
+	/*
+	 * Null until an iteration reads ahead on the connection. They are closed
+	 * with it, so that no producer reads from a connection that has gone back
+	 * to the pool, and cancelled by the pool's watcher when it reclaims the
+	 * connection.
+	 */
+	private volatile Queue<PrefetchingIteration<?, StardogException>> prefetching;
 	
 	/**
 	 * Creates a pooled connection to wrap the specified connection. The passed
@@ -58,9 +102,16 @@ public class PooledConnection implements Connection
 	 *            The connection to wrap.
 	 */
 	public PooledConnection(StardogConnectionPool pool, Connection conn)
+	{
+		this(pool, conn, null);
+	}
+	
+	PooledConnection(StardogConnectionPool pool, Connection conn,
+			PreparedQueries queries)
 	{
 		this.wrapped = conn;
 		this.pool = pool;
+		this.queries = queries;
 	}
 	
 	/**
@@ -73,10 +124,12 @@ public class PooledConnection implements Connection
 	 */
 	protected void TerminateConnection()
 	{
+		Connection conn = Wrapped.getAndSet(this, null);
+		if (conn == null)
+			return;
 		try
 		{
-			this.wrapped.close();
-			this.wrapped = null;
+			conn.close();
 		}
 		catch (StardogException e)
 		{
@@ -85,15 +138,129 @@ public class PooledConnection implements Connection
 		}
 	}
 	
+	StardogConnectionPool getPool()
+	{
+		return pool;
+	}
+	
+	/*
+	 * Makes an iteration read ahead on the pool's executor if the pool
+	 * prefetches.
+	 */
+	<T> Iteration<T, StardogException> prefetch(
+			Iteration<T, StardogException> it)
+	{
+		int size = pool.getPrefetchSize();
+		if (size <= 0)
+			return it;
+		Queue<PrefetchingIteration<?, StardogException>> open = prefetching;
+		if (open == null)
+			prefetching = open = new ConcurrentLinkedQueue<PrefetchingIteration<?, StardogException>>();
+		else
+		{
+			for (Iterator<PrefetchingIteration<?, StardogException>> i = open
+				.iterator(); i.hasNext();)
+			{
+				if (i.next().isClosed())
+					i.remove();
+			}
+		}
+		PrefetchingIteration<T, StardogException> ahead = new PrefetchingIteration<T, StardogException>(
+				it, size, pool.getExecutor(), pool.getPrefetchStartTimeout(),
+				TimeUnit.MILLISECONDS, pool.prefetchFallbacks());
+		open.add(ahead);
+		// Taken back by the pool in the meantime, detach may have missed it
+		if (wrapped == null)
+			ahead.cancel();
+		return ahead;
+	}
+	
+	/*
+	 * Runs a task on the pool's executor.
+	 */
+	<T> Future<T> submit(Callable<T> task)
+	{
+		return pool.getExecutor().submit(task);
+	}
+	
+	/*
+	 * Called by the adders, removers and their IO after changing the
+	 * database.
+	 */
+	void written()
+	{
+		if (autoCommit)
+			invalidateQueryCache();
+		else
+			written = true;
+	}
+	
+	boolean hasUncommittedWrites()
+	{
+		return written;
+	}
+	
+	private void invalidateQueryCache()
+	{
+		QueryResultCache cache = pool.getQueryCache();
+		if (cache != null)
+			cache.invalidate();
+	}
+	
+	/*
+	 * Returns a query reusing one parsed on this connection before, when
+	 * there is one.
+	 */
+	private Query prepare(String text, String baseUri)
+			throws StardogException
+	{
+		if (queries == null)
+			return new PooledQuery(this, parse(text, baseUri), text, baseUri);
+		PreparedQueries.Prepared prepared = queries.get(text, baseUri);
+		if (prepared == null)
+		{
+			prepared = new PreparedQueries.Prepared(text, baseUri, parse(text,
+					baseUri));
+			queries.put(prepared);
+		}
+		return new PooledQuery(this, prepared);
+	}
+	
+	/*
+	 * Returns a query for a text that is not run again, which neither takes
+	 * the place of a parsed query kept for reuse nor goes through the result
+	 * cache.
+	 */
+	Query queryOnce(String text) throws StardogException
+	{
+		ValidateConnection();
+		return new PooledQuery(this, parse(text, null));
+	}
+
+	/*
+	 * Parses a query on the wrapped connection.
+	 */
+	Query parse(String text, String baseUri) throws StardogException
+	{
+		Connection conn = ValidateConnection();
+		return baseUri == null ? conn.query(text) : conn.query(text, baseUri);
+	}
+	
 	protected boolean isTerminated()
 	{
 		return this.wrapped == null;
 	}
 	
-	private void ValidateConnection() throws StardogException
+	/*
+	 * Returns the wrapped connection, read once since the pool may detach it
+	 * at any time.
+	 */
+	private Connection ValidateConnection() throws StardogException
 	{
-		if (wrapped == null)
+		Connection conn = wrapped;
+		if (conn == null)
 			throw new StardogException("Connection is closed.");
+		return conn;
 	}
 	
 	/*
@@ -104,8 +271,9 @@ public class PooledConnection implements Connection
 	@Override
 	public Adder add() throws StardogException
 	{
-		ValidateConnection();
-		return new PooledAdder(this, wrapped.add());
+		Connection conn = ValidateConnection();
+		dirty = true;
+		return new PooledAdder(this, conn.add());
 	}
 	
 	/*
@@ -116,8 +284,9 @@ public class PooledConnection implements Connection
 	@Override
 	public void begin() throws StardogException
 	{
-		ValidateConnection();
-		wrapped.begin();
+		Connection conn = ValidateConnection();
+		dirty = true;
+		conn.begin();
 	}
 	
 	/*
@@ -128,22 +297,66 @@ public class PooledConnection implements Connection
 	@Override
 	public void close() throws StardogException
 	{
-		if (wrapped == null)
+		Connection conn = wrapped;
+		if (conn == null)
 			return;
-		try
+		Queue<PrefetchingIteration<?, StardogException>> open = prefetching;
+		if (open != null)
 		{
-			// If we close during open transaction, we want to roll back
-			wrapped.rollback();
+			for (PrefetchingIteration<?, StardogException> ahead : open)
+			{
+				try
+				{
+					ahead.close();
+				}
+				catch (StardogException e)
+				{
+					Logger.warn("Unable to close iteration left open.", e);
+				}
+			}
+			prefetching = null;
 		}
-		catch (StardogException e)
-		{}
-		try
+		if (dirty)
 		{
-			wrapped.setAutoCommit(false);
+			try
+			{
+				// If we close during open transaction, we want to roll back
+				conn.rollback();
+			}
+			catch (StardogException e)
+			{}
+			try
+			{
+				conn.setAutoCommit(false);
+			}
+			catch (StardogException e)
+			{}
+			dirty = false;
+			written = false;
+			autoCommit = false;
 		}
-		catch (StardogException e)
-		{}
-		pool.returnToPool(wrapped);
+		// Released, so any further use fails instead of sharing the connection
+		if (Wrapped.compareAndSet(this, conn, null))
+			pool.returnToPool(conn);
+	}
+	
+	/*
+	 * Takes the connection away from this wrapper without returning it to the
+	 * pool. Returns null if the wrapper was closed first.
+	 */
+	Connection detach()
+	{
+		Connection conn = Wrapped.getAndSet(this, null);
+		if (conn == null)
+			return null;
+		// Stop reading ahead before the connection is closed under them
+		Queue<PrefetchingIteration<?, StardogException>> open = prefetching;
+		if (open != null)
+		{
+			for (PrefetchingIteration<?, StardogException> ahead : open)
+				ahead.cancel();
+		}
+		return conn;
 	}
 	
 	/*
@@ -154,8 +367,13 @@ public class PooledConnection implements Connection
 	@Override
 	public void commit() throws StardogException
 	{
-		ValidateConnection();
-		wrapped.commit();
+		Connection conn = ValidateConnection();
+		conn.commit();
+		if (written)
+		{
+			written = false;
+			invalidateQueryCache();
+		}
 	}
 	
 	/*
@@ -166,8 +384,8 @@ public class PooledConnection implements Connection
 	@Override
 	public Getter get() throws StardogException
 	{
-		ValidateConnection();
-		return new PooledGetter(this, wrapped.get());
+		Connection conn = ValidateConnection();
+		return new PooledGetter(this, conn.get());
 	}
 	
 	/*
@@ -178,8 +396,8 @@ public class PooledConnection implements Connection
 	@Override
 	public boolean isAutoCommit() throws StardogException
 	{
-		ValidateConnection();
-		return wrapped.isAutoCommit();
+		Connection conn = ValidateConnection();
+		return conn.isAutoCommit();
 	}
 	
 	/*
@@ -190,7 +408,8 @@ public class PooledConnection implements Connection
 	@Override
 	public boolean isOpen() throws StardogException
 	{
-		return wrapped != null && wrapped.isOpen();
+		Connection conn = wrapped;
+		return conn != null && conn.isOpen();
 	}
 	
 	/*
@@ -202,7 +421,7 @@ public class PooledConnection implements Connection
 	public Query query(String query) throws StardogException
 	{
 		ValidateConnection();
-		return new PooledQuery(this, wrapped.query(query));
+		return prepare(query, null);
 	}
 	
 	/*
@@ -215,7 +434,7 @@ public class PooledConnection implements Connection
 	public Query query(String query, String baseUri) throws StardogException
 	{
 		ValidateConnection();
-		return new PooledQuery(this, wrapped.query(query, baseUri));
+		return prepare(query, baseUri);
 	}
 	
 	/*
@@ -226,8 +445,9 @@ public class PooledConnection implements Connection
 	@Override
 	public Remover remove() throws StardogException
 	{
-		ValidateConnection();
-		return new PooledRemover(this, wrapped.remove());
+		Connection conn = ValidateConnection();
+		dirty = true;
+		return new PooledRemover(this, conn.remove());
 	}
 	
 	/*
@@ -238,8 +458,9 @@ public class PooledConnection implements Connection
 	@Override
 	public void rollback() throws StardogException
 	{
-		ValidateConnection();
-		wrapped.rollback();
+		Connection conn = ValidateConnection();
+		conn.rollback();
+		written = false;
 	}
 	
 	/*
@@ -250,8 +471,15 @@ public class PooledConnection implements Connection
 	@Override
 	public void setAutoCommit(boolean autoCommit) throws StardogException
 	{
-		ValidateConnection();
-		wrapped.setAutoCommit(autoCommit);
+		Connection conn = ValidateConnection();
+		dirty = true;
+		conn.setAutoCommit(autoCommit);
+		this.autoCommit = autoCommit;
+		if (autoCommit && written)
+		{
+			written = false;
+			invalidateQueryCache();
+		}
 	}
 	
 	/*
@@ -262,8 +490,8 @@ public class PooledConnection implements Connection
 	@Override
 	public long size() throws StardogException
 	{
-		ValidateConnection();
-		return wrapped.size();
+		Connection conn = ValidateConnection();
+		return conn.size();
 	}
 	
 }
@@ -74,7 +74,15 @@ public class PooledGetter extends AbstractedPooledObject<Getter> implements
 	public Graph graph() throws StardogException
 	{
 		ValidateConnection();
-		return wrapped.graph();
+		long start = startOperation();
+		try
+		{
+			return wrapped.graph();
+		}
+		finally
+		{
+			endOperation("Getter.graph", start);
+		}
 	}
 	
 	/*
@@ -87,8 +95,16 @@ public class PooledGetter extends AbstractedPooledObject<Getter> implements
 			throws StardogException
 	{
 		ValidateConnection();
-		return new PooledIteration<Statement, StardogException>(source,
-				wrapped.iterator());
+		long start = startOperation();
+		try
+		{
+			return new PooledIteration<Statement, StardogException>(source,
+					source.prefetch(wrapped.iterator()));
+		}
+		finally
+		{
+			endOperation("Getter.iterator", start);
+		}
 	}
 	
 	/*
@@ -103,8 +119,16 @@ public class PooledGetter extends AbstractedPooledObject<Getter> implements
 			Function<Statement, O> func) throws StardogException
 	{
 		ValidateConnection();
-		return new PooledIteration<O, StardogException>(source,
-				wrapped.iterator(func));
+		long start = startOperation();
+		try
+		{
+			return new PooledIteration<O, StardogException>(source,
+					source.prefetch(wrapped.iterator(func)));
+		}
+		finally
+		{
+			endOperation("Getter.iterator", start);
+		}
 	}
 	
 	/*
@@ -120,8 +144,17 @@ public class PooledGetter extends AbstractedPooledObject<Getter> implements
 			URI pred, Value obj, Resource ctxt) throws StardogException
 	{
 		ValidateConnection();
-		return new PooledIteration<Statement, StardogException>(source,
-				wrapped.iterator(subj, pred, obj, ctxt));
+		long start = startOperation();
+		try
+		{
+			return new PooledIteration<Statement, StardogException>(source,
+					source.prefetch(wrapped.iterator(subj, pred, obj,
+						ctxt)));
+		}
+		finally
+		{
+			endOperation("Getter.iterator", start);
+		}
 	}
 	
 	/*
@@ -171,7 +204,15 @@ public class PooledGetter extends AbstractedPooledObject<Getter> implements
 	public Statement statement() throws StardogException
 	{
 		ValidateConnection();
-		return wrapped.statement();
+		long start = startOperation();
+		try
+		{
+			return wrapped.statement();
+		}
+		finally
+		{
+			endOperation("Getter.statement", start);
+		}
 	}
 	
 	/*
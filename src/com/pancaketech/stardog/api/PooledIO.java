@@ -71,6 +71,7 @@ public class PooledIO<T> extends AbstractedPooledObject<IO<T>> implements IO<T>
 	{
 		ValidateConnection();
 		wrapped.file(f);
+		source.written();
 		return this;
 	}
 	
@@ -97,6 +98,7 @@ public class PooledIO<T> extends AbstractedPooledObject<IO<T>> implements IO<T>
 	{
 		ValidateConnection();
 		wrapped.stream(is);
+		source.written();
 		return this;
 	}
 	
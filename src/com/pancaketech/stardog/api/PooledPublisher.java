@@ -0,0 +1,410 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openrdf.model.Statement;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.GraphQueryResult;
+import org.openrdf.query.TupleQueryResult;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.util.Iteration;
+
+/**
+ * A Reactive Streams publisher of the results of a pooled query or getter.
+ * Nothing is read until the subscriber requests it, and no more rows are read
+ * than it requested, so large results are streamed without being buffered.
+ * The query runs and its rows are read on the pool's executor.
+ * 
+ * <p>
+ * The publisher takes over the lease on the connection of the query or getter
+ * it was created from. The connection is returned to the pool when the results
+ * are exhausted, reading them fails or the subscription is cancelled, so
+ * neither the connection nor the query may be used afterwards. A publisher
+ * can only be subscribed to once.
+ * </p>
+ */
+public class PooledPublisher<T> implements Publisher<T>
+{
+	
+	private static final Log Logger = LogFactory.getLog(PooledPublisher.class);
+	
+	private final PooledConnection source;
+	private final Cursor<T> cursor;
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+	
+	private PooledPublisher(PooledConnection source, Cursor<T> cursor)
+	{
+		this.source = source;
+		this.cursor = cursor;
+	}
+	
+	/**
+	 * Publishes the rows of a SELECT query.
+	 */
+	public static PooledPublisher<BindingSet> select(final PooledQuery query)
+			throws StardogException
+	{
+		query.ValidateConnection();
+		return new PooledPublisher<BindingSet>(query.source,
+				new Cursor<BindingSet>()
+				{
+					
+					private TupleQueryResult result;
+					
+					@Override
+					void open() throws Exception
+					{
+						result = query.bound().executeSelect();
+					}
+					
+					@Override
+					boolean hasNext() throws Exception
+					{
+						return result.hasNext();
+					}
+					
+					@Override
+					BindingSet next() throws Exception
+					{
+						return result.next();
+					}
+					
+					@Override
+					void close() throws Exception
+					{
+						if (result != null)
+							result.close();
+					}
+				});
+	}
+	
+	/**
+	 * Publishes the statements of a graph query.
+	 */
+	public static PooledPublisher<Statement> graph(final PooledQuery query)
+			throws StardogException
+	{
+		query.ValidateConnection();
+		return new PooledPublisher<Statement>(query.source,
+				new Cursor<Statement>()
+				{
+					
+					private GraphQueryResult result;
+					
+					@Override
+					void open() throws Exception
+					{
+						result = query.bound().executeGraph();
+					}
+					
+					@Override
+					boolean hasNext() throws Exception
+					{
+						return result.hasNext();
+					}
+					
+					@Override
+					Statement next() throws Exception
+					{
+						return result.next();
+					}
+					
+					@Override
+					void close() throws Exception
+					{
+						if (result != null)
+							result.close();
+					}
+				});
+	}
+	
+	/**
+	 * Publishes the statements matched by a getter.
+	 */
+	public static PooledPublisher<Statement> statements(
+			final PooledGetter getter) throws StardogException
+	{
+		getter.ValidateConnection();
+		return new PooledPublisher<Statement>(getter.source,
+				new Cursor<Statement>()
+				{
+					
+					private Iteration<Statement, StardogException> iteration;
+					
+					@Override
+					void open() throws Exception
+					{
+						iteration = getter.wrapped.iterator();
+					}
+					
+					@Override
+					boolean hasNext() throws Exception
+					{
+						return iteration.hasNext();
+					}
+					
+					@Override
+					Statement next() throws Exception
+					{
+						return iteration.next();
+					}
+					
+					@Override
+					void close() throws Exception
+					{
+						if (iteration != null)
+							iteration.close();
+					}
+				});
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.reactivestreams.Publisher#subscribe(org.reactivestreams.Subscriber)
+	 */
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber)
+	{
+		if (subscriber == null)
+			throw new NullPointerException("Subscriber must not be null");
+		if (!subscribed.compareAndSet(false, true))
+		{
+			subscriber.onSubscribe(new Subscription()
+			{
+				
+				@Override
+				public void request(long n)
+				{}
+				
+				@Override
+				public void cancel()
+				{}
+			});
+			subscriber.onError(new IllegalStateException(
+					"This publisher only allows one subscriber."));
+			return;
+		}
+		RowSubscription subscription = new RowSubscription(subscriber, source
+			.getPool().getExecutor());
+		subscriber.onSubscribe(subscription);
+	}
+	
+	/*
+	 * Reads rows one at a time. Only ever used by one thread at a time.
+	 */
+	private static abstract class Cursor<T>
+	{
+		abstract void open() throws Exception;
+		
+		abstract boolean hasNext() throws Exception;
+		
+		abstract T next() throws Exception;
+		
+		abstract void close() throws Exception;
+	}
+	
+	/*
+	 * Emits rows while there is demand. Requests and cancellation only
+	 * schedule a drain on the executor; the work in progress counter makes
+	 * sure only one drain runs at a time, so the cursor and the subscriber
+	 * are never called concurrently.
+	 */
+	private class RowSubscription implements Subscription, Runnable
+	{
+		
+		private final Subscriber<? super T> subscriber;
+		private final Executor executor;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable invalidRequest;
+		private boolean opened;
+		private boolean finished;
+		
+		RowSubscription(Subscriber<? super T> subscriber, Executor executor)
+		{
+			this.subscriber = subscriber;
+			this.executor = executor;
+		}
+		
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				invalidRequest = new IllegalArgumentException(
+						"Requested " + n + " rows, must be > 0");
+			}
+			else
+			{
+				for (;;)
+				{
+					long current = requested.get();
+					long next = current + n;
+					if (next < 0)
+						next = Long.MAX_VALUE;
+					if (requested.compareAndSet(current, next))
+						break;
+				}
+			}
+			schedule();
+		}
+		
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+			schedule();
+		}
+		
+		private void schedule()
+		{
+			if (wip.getAndIncrement() == 0)
+				executor.execute(this);
+		}
+		
+		@Override
+		public void run()
+		{
+			int missed = 1;
+			for (;;)
+			{
+				if (!finished)
+					drain();
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+		
+		private void drain()
+		{
+			try
+			{
+				if (cancelled)
+				{
+					release();
+					return;
+				}
+				if (invalidRequest != null)
+				{
+					fail(invalidRequest);
+					return;
+				}
+				if (!opened)
+				{
+					opened = true;
+					cursor.open();
+				}
+				long demand = requested.get();
+				long emitted = 0;
+				while (emitted != demand)
+				{
+					if (cancelled)
+					{
+						release();
+						return;
+					}
+					if (!cursor.hasNext())
+					{
+						complete();
+						return;
+					}
+					subscriber.onNext(cursor.next());
+					emitted++;
+				}
+				if (cancelled)
+				{
+					release();
+					return;
+				}
+				if (!cursor.hasNext())
+				{
+					complete();
+					return;
+				}
+				if (demand != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+			}
+			catch (Throwable t)
+			{
+				fail(t);
+			}
+		}
+		
+		private void complete()
+		{
+			release();
+			subscriber.onComplete();
+		}
+		
+		private void fail(Throwable t)
+		{
+			release();
+			if (!cancelled)
+				subscriber.onError(t);
+		}
+		
+		private void release()
+		{
+			if (finished)
+				return;
+			finished = true;
+			try
+			{
+				cursor.close();
+			}
+			catch (Throwable t)
+			{
+				Logger.warn("Unable to close published results.", t);
+			}
+			try
+			{
+				source.close();
+			}
+			catch (StardogException e)
+			{
+				Logger.warn("Unable to return connection of published results.",
+						e);
+			}
+		}
+	}
+}
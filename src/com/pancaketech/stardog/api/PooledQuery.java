@@ -28,26 +28,197 @@ or implied, of Pancake Technology, LLC.
 package com.pancaketech.stardog.api;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
 import org.openrdf.query.GraphQueryResult;
+import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.TupleQueryResult;
 
 import com.clarkparsia.stardog.StardogException;
 import com.clarkparsia.stardog.api.Query;
 
 /**
+ * A query on a pooled connection. When the pool has a
+ * <tt>QueryResultCache</tt>, <tt>executeAsk</tt> and <tt>executeSelect</tt>
+ * are answered from it if the same query text was asked with the same
+ * parameters, limit and offset before.
+ * 
  * @author Robert Butler
  * 
  */
 public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 {
 	
+	private final String text;
+	private final String baseUri;
+	/*
+	 * Parameters bound so far, part of the cache key together with the text,
+	 * the limit and the offset.
+	 */
+	private final Map<String, Object> parameters = new TreeMap<String, Object>();
+	private Long limit;
+	private Long offset;
+	/*
+	 * The parsed query this one shares with later queries of the same text on
+	 * the connection, or null. Its parameters are only bound when it runs.
+	 */
+	private PreparedQueries.Prepared prepared;
+	
+	/**
+	 * Creates a query whose answers are never cached, since its text is not
+	 * known.
+	 */
 	public PooledQuery(PooledConnection pc, Query wrapped)
+	{
+		this(pc, wrapped, null, null);
+	}
+	
+	public PooledQuery(PooledConnection pc, Query wrapped, String text,
+			String baseUri)
 	{
 		super(pc, wrapped);
+		this.text = text;
+		this.baseUri = baseUri;
+	}
+	
+	PooledQuery(PooledConnection pc, PreparedQueries.Prepared prepared)
+	{
+		this(pc, prepared.query, prepared.text, prepared.baseUri);
+		this.prepared = prepared;
+	}
+	
+	/*
+	 * Returns the query to run. A prepared query is bound only now, since
+	 * other queries of the same text share it. If an earlier borrower bound
+	 * something that this query leaves unbound, a fresh query is parsed
+	 * instead, and this one stops sharing.
+	 */
+	Query bound() throws StardogException
+	{
+		if (prepared == null)
+			return wrapped;
+		if (!parameters.keySet().containsAll(prepared.bound)
+				|| (prepared.limited && limit == null)
+				|| (prepared.offset && offset == null))
+		{
+			wrapped = source.parse(text, baseUri);
+			prepared = null;
+		}
+		else
+		{
+			prepared.bound.addAll(parameters.keySet());
+			prepared.limited |= limit != null;
+			prepared.offset |= offset != null;
+		}
+		for (Map.Entry<String, Object> parameter : parameters.entrySet())
+			bind(wrapped, parameter.getKey(), parameter.getValue());
+		if (limit != null)
+			wrapped.limit(limit);
+		if (offset != null)
+			wrapped.offset(offset);
+		return wrapped;
+	}
+	
+	/*
+	 * Binds a parameter value of any of the types the parameter overloads
+	 * take.
+	 */
+	static void bind(Query query, String name, Object val)
+	{
+		if (val instanceof Value)
+			query.parameter(name, (Value) val);
+		else if (val instanceof Integer)
+			query.parameter(name, ((Integer) val).intValue());
+		else if (val instanceof Long)
+			query.parameter(name, ((Long) val).longValue());
+		else if (val instanceof Float)
+			query.parameter(name, ((Float) val).floatValue());
+		else if (val instanceof Double)
+			query.parameter(name, ((Double) val).doubleValue());
+		else if (val instanceof Short)
+			query.parameter(name, ((Short) val).shortValue());
+		else if (val instanceof Boolean)
+			query.parameter(name, ((Boolean) val).booleanValue());
+		else if (val instanceof Byte)
+			query.parameter(name, ((Byte) val).byteValue());
+		else if (val instanceof String)
+			query.parameter(name, (String) val);
+		else if (val instanceof Date)
+			query.parameter(name, (Date) val);
+		else if (val instanceof GregorianCalendar)
+			query.parameter(name, (GregorianCalendar) val);
+		else
+			query.parameter(name, (URI) val);
+	}
+	
+	/*
+	 * Returns the cache to answer from, or null if the pool has none, the text
+	 * is unknown or the connection has uncommitted changes the cache does not
+	 * know of.
+	 */
+	private QueryResultCache cache()
+	{
+		QueryResultCache cache = source.getPool().getQueryCache();
+		if (cache == null || text == null || source.hasUncommittedWrites())
+			return null;
+		return cache;
+	}
+	
+	private Object cacheKey(String form)
+	{
+		return Arrays.asList(form, text, baseUri, limit, offset,
+			new TreeMap<String, Object>(parameters));
+	}
+	
+	/*
+	 * Reads a result into memory and caches it, unless it has more rows than
+	 * the cache keeps; then the rows read so far are followed by the rest of
+	 * the result.
+	 */
+	private TupleQueryResult buffer(TupleQueryResult result,
+			QueryResultCache cache, Object key, long generation)
+			throws StardogException
+	{
+		int maxRows = cache.getMaxRows();
+		List<BindingSet> rows = new ArrayList<BindingSet>();
+		try
+		{
+			List<String> bindingNames = result.getBindingNames();
+			while (result.hasNext())
+			{
+				if (rows.size() == maxRows)
+					return new BufferedTupleQueryResult(bindingNames, rows,
+						result);
+				rows.add(result.next());
+			}
+			result.close();
+			BufferedTupleQueryResult buffered = new BufferedTupleQueryResult(
+				Collections.unmodifiableList(new ArrayList<String>(
+					bindingNames)), Collections.unmodifiableList(rows), null);
+			cache.put(key, buffered, generation);
+			return buffered.replay();
+		}
+		catch (QueryEvaluationException e)
+		{
+			try
+			{
+				result.close();
+			}
+			catch (QueryEvaluationException ignored)
+			{}
+			throw new StardogException(e.getMessage(), e);
+		}
 	}
 	
 	/*
@@ -59,7 +230,59 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public boolean executeAsk() throws StardogException
 	{
 		ValidateConnection();
-		return wrapped.executeAsk();
+		QueryResultCache cache = cache();
+		Object key = null;
+		long generation = 0;
+		if (cache != null)
+		{
+			key = cacheKey("ask");
+			Boolean answer = (Boolean) cache.get(key);
+			if (answer != null)
+				return answer;
+			generation = cache.generation();
+		}
+		long start = startOperation();
+		try
+		{
+			boolean answer = bound().executeAsk();
+			if (cache != null)
+				cache.put(key, answer, generation);
+			return answer;
+		}
+		finally
+		{
+			endOperation("Query.executeAsk", start);
+		}
+	}
+	
+	/**
+	 * Runs <tt>executeAsk</tt> on the pool's executor. The connection is
+	 * returned to the pool once the query completes, so neither it nor this
+	 * query may be used after calling this.
+	 * 
+	 * @return A future for the answer.
+	 */
+	public Future<Boolean> executeAskAsync() throws StardogException
+	{
+		ValidateConnection();
+		return source.submit(new Callable<Boolean>()
+		{
+			
+			@Override
+			public Boolean call() throws StardogException
+			{
+				long start = startOperation();
+				try
+				{
+					return bound().executeAsk();
+				}
+				finally
+				{
+					endOperation("Query.executeAsk", start);
+					source.close();
+				}
+			}
+		});
 	}
 	
 	/*
@@ -71,7 +294,51 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public GraphQueryResult executeGraph() throws StardogException
 	{
 		ValidateConnection();
-		return wrapped.executeGraph();
+		long start = startOperation();
+		try
+		{
+			return bound().executeGraph();
+		}
+		finally
+		{
+			endOperation("Query.executeGraph", start);
+		}
+	}
+	
+	/**
+	 * Runs <tt>executeGraph</tt> on the pool's executor. The result holds the
+	 * lease on the connection, which is returned to the pool when the result is
+	 * closed or the query fails. Neither the connection nor this query may be
+	 * used after calling this.
+	 * 
+	 * @return A future for the result.
+	 */
+	public Future<GraphQueryResult> executeGraphAsync() throws StardogException
+	{
+		ValidateConnection();
+		return source.submit(new Callable<GraphQueryResult>()
+		{
+			
+			@Override
+			public GraphQueryResult call() throws StardogException
+			{
+				boolean executed = false;
+				long start = startOperation();
+				try
+				{
+					GraphQueryResult result = new PooledGraphQueryResult(
+							source, bound().executeGraph());
+					executed = true;
+					return result;
+				}
+				finally
+				{
+					endOperation("Query.executeGraph", start);
+					if (!executed)
+						source.close();
+				}
+			}
+		});
 	}
 	
 	/*
@@ -83,7 +350,77 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public TupleQueryResult executeSelect() throws StardogException
 	{
 		ValidateConnection();
-		return wrapped.executeSelect();
+		QueryResultCache cache = cache();
+		Object key = null;
+		long generation = 0;
+		if (cache != null)
+		{
+			key = cacheKey("select");
+			BufferedTupleQueryResult answer = (BufferedTupleQueryResult) cache
+				.get(key);
+			if (answer != null)
+				return answer.replay();
+			generation = cache.generation();
+		}
+		long start = startOperation();
+		try
+		{
+			TupleQueryResult result = bound().executeSelect();
+			if (cache != null)
+				return buffer(result, cache, key, generation);
+			StardogConnectionPool pool = source.getPool();
+			if (pool.isMaterializeResults())
+				return ColumnarTupleQueryResult.drain(result, pool
+					.getResultSpillThreshold());
+			return result;
+		}
+		finally
+		{
+			endOperation("Query.executeSelect", start);
+		}
+	}
+	
+	/**
+	 * Runs <tt>executeSelect</tt> on the pool's executor. The result holds the
+	 * lease on the connection, which is returned to the pool when the result is
+	 * closed or the query fails, or once the result is read when the pool
+	 * materializes results. Neither the connection nor this query may be
+	 * used after calling this.
+	 * 
+	 * @return A future for the result.
+	 */
+	public Future<TupleQueryResult> executeSelectAsync()
+			throws StardogException
+	{
+		ValidateConnection();
+		return source.submit(new Callable<TupleQueryResult>()
+		{
+			
+			@Override
+			public TupleQueryResult call() throws StardogException
+			{
+				boolean executed = false;
+				long start = startOperation();
+				try
+				{
+					StardogConnectionPool pool = source.getPool();
+					if (pool.isMaterializeResults())
+						// read, so the connection goes back right away
+						return ColumnarTupleQueryResult.drain(bound()
+							.executeSelect(), pool.getResultSpillThreshold());
+					TupleQueryResult result = new PooledTupleQueryResult(
+							source, bound().executeSelect());
+					executed = true;
+					return result;
+				}
+				finally
+				{
+					endOperation("Query.executeSelect", start);
+					if (!executed)
+						source.close();
+				}
+			}
+		});
 	}
 	
 	/*
@@ -95,7 +432,15 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public String explain() throws StardogException
 	{
 		ValidateConnection();
-		return wrapped.explain();
+		long start = startOperation();
+		try
+		{
+			return bound().explain();
+		}
+		finally
+		{
+			endOperation("Query.explain", start);
+		}
 	}
 	
 	/*
@@ -143,7 +488,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query limit(long limit)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.limit(limit);
+		if (prepared == null)
+			wrapped.limit(limit);
+		this.limit = limit;
 		return this;
 	}
 	
@@ -156,7 +503,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query offset(long offset)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.offset(offset);
+		if (prepared == null)
+			wrapped.offset(offset);
+		this.offset = offset;
 		return this;
 	}
 	
@@ -170,7 +519,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, Value val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -183,7 +534,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, int val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -196,7 +549,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, long val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -209,7 +564,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, float val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -223,7 +580,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, double val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -236,7 +595,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, short val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -250,7 +611,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, boolean val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -263,7 +626,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, byte val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -277,7 +642,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, String val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -291,7 +658,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, Date val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val.clone());
 		return this;
 	}
 	
@@ -305,7 +674,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, GregorianCalendar val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val.clone());
 		return this;
 	}
 	
@@ -319,7 +690,9 @@ public class PooledQuery extends AbstractedPooledObject<Query> implements Query
 	public Query parameter(String name, URI val)
 	{
 		ValidateConnectionWithIllegalStateException();
-		wrapped.parameter(name, val);
+		if (prepared == null)
+			wrapped.parameter(name, val);
+		parameters.put(name, val);
 		return this;
 	}
 	
@@ -60,7 +60,16 @@ public class PooledRemover extends AbstractedPooledObject<Remover> implements
 	public Remover all() throws StardogException
 	{
 		ValidateConnection();
-		wrapped.all();
+		long start = startOperation();
+		try
+		{
+			wrapped.all();
+		}
+		finally
+		{
+			endOperation("Remover.all", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -88,7 +97,16 @@ public class PooledRemover extends AbstractedPooledObject<Remover> implements
 	public Remover graph(Graph g, Resource... ctxt) throws StardogException
 	{
 		ValidateConnection();
-		wrapped.graph(g, ctxt);
+		long start = startOperation();
+		try
+		{
+			wrapped.graph(g, ctxt);
+		}
+		finally
+		{
+			endOperation("Remover.graph", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -115,7 +133,16 @@ public class PooledRemover extends AbstractedPooledObject<Remover> implements
 	public Remover query(Query q) throws StardogException
 	{
 		ValidateConnection();
-		wrapped.query(q);
+		long start = startOperation();
+		try
+		{
+			wrapped.query(q);
+		}
+		finally
+		{
+			endOperation("Remover.query", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -130,7 +157,16 @@ public class PooledRemover extends AbstractedPooledObject<Remover> implements
 	public Remover statement(Statement s) throws StardogException
 	{
 		ValidateConnection();
-		wrapped.statement(s);
+		long start = startOperation();
+		try
+		{
+			wrapped.statement(s);
+		}
+		finally
+		{
+			endOperation("Remover.statement", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -147,7 +183,16 @@ public class PooledRemover extends AbstractedPooledObject<Remover> implements
 			throws StardogException
 	{
 		ValidateConnection();
-		wrapped.statement(s, p, o, ctxt);
+		long start = startOperation();
+		try
+		{
+			wrapped.statement(s, p, o, ctxt);
+		}
+		finally
+		{
+			endOperation("Remover.statement", start);
+		}
+		source.written();
 		return this;
 	}
 	
@@ -0,0 +1,126 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.List;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+import com.clarkparsia.stardog.StardogException;
+
+/**
+ * A query result that holds the lease on its connection. Closing the result
+ * returns the connection to the pool.
+ */
+public class PooledTupleQueryResult extends
+		AbstractedPooledObject<TupleQueryResult> implements TupleQueryResult
+{
+	
+	public PooledTupleQueryResult(PooledConnection pc, TupleQueryResult wrapped)
+	{
+		super(pc, wrapped);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.query.TupleQueryResult#getBindingNames()
+	 */
+	@Override
+	public List<String> getBindingNames()
+	{
+		ValidateConnectionWithIllegalStateException();
+		return wrapped.getBindingNames();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws QueryEvaluationException
+	{
+		ValidateConnectionWithIllegalStateException();
+		return wrapped.hasNext();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#next()
+	 */
+	@Override
+	public BindingSet next() throws QueryEvaluationException
+	{
+		ValidateConnectionWithIllegalStateException();
+		return wrapped.next();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.Iteration#remove()
+	 */
+	@Override
+	public void remove() throws QueryEvaluationException
+	{
+		ValidateConnectionWithIllegalStateException();
+		wrapped.remove();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see info.aduna.iteration.CloseableIteration#close()
+	 */
+	@Override
+	public void close() throws QueryEvaluationException
+	{
+		if (source == null || source.isTerminated())
+			return;
+		try
+		{
+			wrapped.close();
+		}
+		finally
+		{
+			try
+			{
+				source.close();
+			}
+			catch (StardogException e)
+			{
+				throw new QueryEvaluationException(e);
+			}
+		}
+	}
+	
+}
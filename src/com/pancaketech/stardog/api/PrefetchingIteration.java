@@ -0,0 +1,399 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.clarkparsia.stardog.util.Iteration;
+
+/**
+ * An iteration that reads ahead of its consumer on another thread, so that
+ * fetching the next elements overlaps with processing the current ones. A
+ * task on the given executor moves elements from the source into a ring
+ * buffer of a fixed capacity, and waits while it is full; the consumer takes
+ * them out and waits while it is empty. There is one producer and one
+ * consumer, so neither side needs a lock.
+ * <p>
+ * Elements come out in the order of the source. A failure of the source is
+ * thrown by <tt>hasNext</tt> once the elements before it are consumed.
+ * Closing stops the producer, waiting for a fetch it is in the middle of,
+ * and then closes the source on the calling thread. The source must not be
+ * used by anyone else while this is open.
+ * <p>
+ * The consumer reads the source itself when the executor does not start the
+ * producer within the start timeout, or rejects it, and takes over the rest
+ * of the source when the producer is interrupted. The start timeout should be
+ * longer than a task usually waits in the executor's queue, or reading ahead
+ * is given up under the load it is meant for; <tt>isInline</tt> tells whether
+ * it was. A consumer interrupted while it waits
+ * gets an <tt>IllegalStateException</tt>, with its interrupt status kept.
+ */
+public final class PrefetchingIteration<T, E extends Throwable> implements
+		Iteration<T, E>
+{
+	
+	/*
+	 * Start timeout of iterations created without one, in milliseconds.
+	 */
+	static final long DefaultStartTimeout = 50;
+	
+	private final Iteration<T, E> source;
+	/*
+	 * How long the consumer waits for the producer to start before it reads
+	 * the source itself.
+	 */
+	private final long startTimeout;
+	/*
+	 * Counts iterations whose consumer took over the source, or null.
+	 */
+	private final AtomicLong fallbacks;
+	private final Object[] buffer;
+	private final int mask;
+	/*
+	 * The number of elements taken by the consumer and put by the producer.
+	 * Each is written by one side only.
+	 */
+	private volatile long head;
+	private volatile long tail;
+	private volatile boolean done;
+	private volatile Throwable failure;
+	/*
+	 * Set with done when the producer stopped before the end of the source,
+	 * leaving the rest to the consumer.
+	 */
+	private volatile boolean handedBack;
+	private volatile boolean closed;
+	/*
+	 * Set by a side while it is parked, for the other side to wake it.
+	 */
+	private volatile Thread waitingConsumer;
+	private volatile Thread waitingProducer;
+	/*
+	 * Claimed by whichever side reads the source first, the producer or a
+	 * consumer that would otherwise wait for it.
+	 */
+	private final AtomicBoolean started = new AtomicBoolean();
+	// A latch rather than Thread.join, the producer runs on an executor
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	/*
+	 * Set once the consumer reads the source itself. Only used by the
+	 * consumer.
+	 */
+	private boolean inline;
+	
+	/**
+	 * Starts reading the source on the executor, with a start timeout of 50
+	 * milliseconds.
+	 * 
+	 * @param capacity
+	 *            The number of elements read ahead at most, rounded up to a
+	 *            power of two.
+	 */
+	public PrefetchingIteration(Iteration<T, E> source, int capacity,
+			Executor executor)
+	{
+		this(source, capacity, executor, DefaultStartTimeout,
+				TimeUnit.MILLISECONDS, null);
+	}
+	
+	/**
+	 * Starts reading the source on the executor.
+	 * 
+	 * @param capacity
+	 *            The number of elements read ahead at most, rounded up to a
+	 *            power of two.
+	 * @param startTimeout
+	 *            How long the consumer waits for the executor to start
+	 *            reading ahead before it reads the source itself.
+	 */
+	public PrefetchingIteration(Iteration<T, E> source, int capacity,
+			Executor executor, long startTimeout, TimeUnit unit)
+	{
+		this(source, capacity, executor, startTimeout, unit, null);
+	}
+	
+	PrefetchingIteration(Iteration<T, E> source, int capacity,
+			Executor executor, long startTimeout, TimeUnit unit,
+			AtomicLong fallbacks)
+	{
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException(
+					"capacity must be between 1 and 2^30");
+		if (startTimeout < 0)
+			throw new IllegalArgumentException(
+					"startTimeout must not be negative");
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.source = source;
+		this.buffer = new Object[size];
+		this.mask = size - 1;
+		this.startTimeout = unit.toNanos(startTimeout);
+		this.fallbacks = fallbacks;
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				
+				@Override
+				public void run()
+				{
+					produce();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			started.set(true);
+			fallBack();
+		}
+	}
+	
+	private void produce()
+	{
+		if (!started.compareAndSet(false, true))
+			return;
+		Thread current = Thread.currentThread();
+		try
+		{
+			long t = tail;
+			while (!closed)
+			{
+				// Wait for room before fetching, so nothing is held back
+				while (t - head == buffer.length && !closed
+						&& !current.isInterrupted())
+				{
+					waitingProducer = current;
+					if (t - head == buffer.length && !closed)
+						LockSupport.park(this);
+					waitingProducer = null;
+				}
+				if (closed)
+					return;
+				if (current.isInterrupted())
+				{
+					// Interrupt status stays set for the executor
+					handedBack = true;
+					return;
+				}
+				if (!source.hasNext())
+					return;
+				buffer[(int) t & mask] = source.next();
+				tail = ++t;
+				wake(waitingConsumer);
+			}
+		}
+		catch (Throwable e)
+		{
+			failure = e;
+		}
+		finally
+		{
+			done = true;
+			wake(waitingConsumer);
+			stopped.countDown();
+		}
+	}
+	
+	private void fallBack()
+	{
+		inline = true;
+		if (fallbacks != null)
+			fallbacks.incrementAndGet();
+	}
+	
+	/**
+	 * Returns whether the consumer reads the source itself, because the
+	 * executor rejected the producer or did not start it within the start
+	 * timeout, or the producer was interrupted. Called by the consumer.
+	 */
+	public boolean isInline()
+	{
+		return inline;
+	}
+	
+	private static void wake(Thread thread)
+	{
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.util.Iteration#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws E
+	{
+		if (closed)
+			return false;
+		if (inline)
+			return source.hasNext();
+		long waited = 0;
+		for (;;)
+		{
+			if (closed)
+				return false;
+			// Read before the tail, which the producer sets first
+			boolean finished = done;
+			if (head != tail)
+				return true;
+			if (finished)
+			{
+				throwFailure();
+				if (!handedBack)
+					return false;
+				fallBack();
+				return source.hasNext();
+			}
+			Thread current = Thread.currentThread();
+			if (!started.get())
+			{
+				if ((waited >= startTimeout || current.isInterrupted())
+						&& started.compareAndSet(false, true))
+				{
+					fallBack();
+					return source.hasNext();
+				}
+				long before = System.nanoTime();
+				LockSupport.parkNanos(this, startTimeout - waited);
+				waited += System.nanoTime() - before;
+				continue;
+			}
+			if (current.isInterrupted())
+				throw new IllegalStateException(
+						"Interrupted while waiting for the next element.");
+			waitingConsumer = current;
+			if (head == tail && !done)
+				LockSupport.park(this);
+			waitingConsumer = null;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.util.Iteration#next()
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() throws E
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		if (inline)
+			return source.next();
+		long h = head;
+		int i = (int) h & mask;
+		T element = (T) buffer[i];
+		buffer[i] = null;
+		head = h + 1;
+		wake(waitingProducer);
+		return element;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.util.Iteration#close()
+	 */
+	@Override
+	public void close() throws E
+	{
+		if (closed)
+			return;
+		closed = true;
+		if (inline || started.compareAndSet(false, true))
+		{
+			// The producer is not running and never will
+			Arrays.fill(buffer, null);
+			source.close();
+			return;
+		}
+		wake(waitingProducer);
+		boolean interrupted = false;
+		for (;;)
+		{
+			try
+			{
+				stopped.await();
+				break;
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		Arrays.fill(buffer, null);
+		source.close();
+	}
+	
+	/*
+	 * Stops the producer from another thread, for a connection taken away
+	 * from its borrower, without waiting for a fetch in progress or closing
+	 * the source, whose connection is about to be closed. The consumer sees
+	 * the end of the iteration.
+	 */
+	void cancel()
+	{
+		closed = true;
+		started.compareAndSet(false, true);
+		wake(waitingProducer);
+		wake(waitingConsumer);
+	}
+	
+	boolean isClosed()
+	{
+		return closed;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void throwFailure() throws E
+	{
+		Throwable e = failure;
+		if (e == null)
+			return;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		throw (E) e;
+	}
+	
+}
@@ -0,0 +1,109 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.clarkparsia.stardog.api.Query;
+
+/**
+ * The queries a physical connection has parsed, kept with its
+ * <tt>PoolEntry</tt> so that borrowers asking the same query text again reuse
+ * them instead of parsing it anew. They are dropped together with the
+ * connection, and the least recently used one when there are too many.
+ * <p>
+ * Stardog has no way to clear the parameters of a query, so each one
+ * remembers what has ever been bound on it; see <tt>PooledQuery.bound</tt>.
+ */
+final class PreparedQueries
+{
+	
+	private final Map<List<String>, Prepared> queries;
+	
+	PreparedQueries(final int maxQueries)
+	{
+		queries = new LinkedHashMap<List<String>, Prepared>(16, 0.75f, true)
+		{
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<List<String>, Prepared> eldest)
+			{
+				return size() > maxQueries;
+			}
+		};
+	}
+	
+	/*
+	 * Synchronized although a connection has one borrower at a time, since
+	 * the pool may take an abandoned connection back from another thread.
+	 */
+	synchronized Prepared get(String text, String baseUri)
+	{
+		return queries.get(Arrays.asList(text, baseUri));
+	}
+	
+	synchronized void put(Prepared prepared)
+	{
+		queries.put(Arrays.asList(prepared.text, prepared.baseUri), prepared);
+	}
+	
+	synchronized int size()
+	{
+		return queries.size();
+	}
+	
+	/**
+	 * A parsed query and the names of the parameters that have been bound on
+	 * it, by any borrower.
+	 */
+	static final class Prepared
+	{
+		
+		final String text;
+		final String baseUri;
+		final Query query;
+		final Set<String> bound = new HashSet<String>();
+		boolean limited;
+		boolean offset;
+		
+		Prepared(String text, String baseUri, Query query)
+		{
+			this.text = text;
+			this.baseUri = baseUri;
+			this.query = query;
+		}
+	}
+}
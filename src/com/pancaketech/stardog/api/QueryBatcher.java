@@ -0,0 +1,675 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import com.clarkparsia.stardog.StardogException;
+
+/**
+ * Gathers lookups with the same query template that arrive close together and
+ * answers them with a single query. The parameters of the gathered lookups go
+ * into a <tt>VALUES</tt> block at the start of the query's WHERE clause,
+ * together with the number of their row in an extra variable; the query runs
+ * once on a connection borrowed from the pool, and each row goes back to the
+ * lookups whose number it carries. A batch is run when it is
+ * <tt>maxBatchSize</tt> lookups large, or <tt>window</tt> after its first
+ * lookup arrived, whichever comes first; batches run on the pool's executor,
+ * and a timer thread shared by all batchers hands them over when their window
+ * ends.
+ * <p>
+ * The template has to be an ASK or SELECT query whose parameters are
+ * variables of the WHERE clause. An ASK becomes a SELECT of the row number,
+ * and a SELECT projecting variables gets it added to its projection; it is
+ * taken out of the rows again. Queries whose answer
+ * depends on all rows at once, with LIMIT, OFFSET, GROUP BY, HAVING or
+ * aggregates, cannot be batched, nor ones that already have a VALUES block.
+ * Keywords inside IRIs, strings and comments do not count. Every lookup has
+ * to bind exactly the parameters the batcher was created with, to URIs,
+ * literals or the Java values <tt>Query.parameter</tt> takes, which become
+ * the same literals they do there. Since rows are routed by their number, it
+ * does not matter when the server answers those literals in another form.
+ * <p>
+ * The batch queries are run on the read pool when the pool has one. Their
+ * texts are not asked again, so they are neither kept with the connection's
+ * parsed queries nor answered from or put into the query result cache.
+ * <p>
+ * When the batch query fails, every lookup of the batch fails with its
+ * exception.
+ */
+public class QueryBatcher
+{
+	
+	private static final Pattern Form = Pattern.compile(
+			"(?<![?$\\w:])(SELECT|ASK|CONSTRUCT|DESCRIBE)\\b(?!:)",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern Unbatchable = Pattern.compile(
+			"(?<![?$\\w:])(LIMIT|OFFSET|GROUP\\s+BY|HAVING|VALUES)\\b(?!:)"
+					+ "|(?<![?$\\w:])(COUNT|SUM|MIN|MAX|AVG|SAMPLE|GROUP_CONCAT)\\s*\\(",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern Modifier = Pattern.compile(
+			"^(\\s*(DISTINCT|REDUCED)\\b)?", Pattern.CASE_INSENSITIVE);
+	private static final Pattern Dataset = Pattern.compile(
+			"(?<![?$\\w:])(FROM|WHERE)\\b(?!:)", Pattern.CASE_INSENSITIVE);
+	/*
+	 * IRIs, long and short strings, and comments; whichever starts first.
+	 */
+	private static final Pattern Opaque = Pattern
+		.compile("<[^<>\"{}|^`\\\\\\x00-\\x20]*>"
+				+ "|\"\"\"(?:[^\"\\\\]|\\\\.|\"(?!\"\"))*\"\"\""
+				+ "|'''(?:[^'\\\\]|\\\\.|'(?!''))*'''"
+				+ "|\"(?:[^\"\\\\\\n\\r]|\\\\.)*\""
+				+ "|'(?:[^'\\\\\\n\\r]|\\\\.)*'" + "|#[^\\n\\r]*");
+	
+	private final StardogConnectionPool pool;
+	private final List<String> parameters;
+	private final boolean ask;
+	/*
+	 * The rewritten query up to and including the opening brace of the WHERE
+	 * clause, and the rest of it; the VALUES block goes between them.
+	 */
+	private final String head;
+	private final String tail;
+	/*
+	 * The variable numbering the rows of the VALUES block, named unlike any
+	 * variable of the query.
+	 */
+	private final String row;
+	private volatile long window = TimeUnit.MILLISECONDS.toNanos(2);
+	private volatile int maxBatchSize = 100;
+	private Batch current;
+	
+	/**
+	 * @param parameters
+	 *            The names of the parameters every lookup binds.
+	 * @throws IllegalArgumentException
+	 *             If the query cannot be batched.
+	 */
+	public QueryBatcher(StardogConnectionPool pool, QueryTemplate template,
+			String... parameters)
+	{
+		if (parameters.length == 0)
+			throw new IllegalArgumentException("No parameters to batch on");
+		this.pool = pool;
+		this.parameters = Collections.unmodifiableList(Arrays
+			.asList(parameters.clone()));
+		String text = template.getText();
+		// Searched instead of the text, at the same positions
+		String masked = mask(text);
+		Matcher form = Form.matcher(masked);
+		int brace = masked.indexOf('{');
+		if (!form.find() || brace < form.end())
+			throw new IllegalArgumentException("Not a query: " + text);
+		if (Unbatchable.matcher(masked).find())
+			throw new IllegalArgumentException("Query cannot be batched: "
+					+ text);
+		String name = "batchRow";
+		for (int i = 1; Pattern.compile("[?$]" + name + "\\b").matcher(masked)
+			.find(); i++)
+			name = "batchRow" + i;
+		row = name;
+		String keyword = form.group(1).toUpperCase();
+		ask = keyword.equals("ASK");
+		String select;
+		// what follows the query form up to the WHERE clause
+		String clause = text.substring(form.end(), brace);
+		String maskedClause = masked.substring(form.end(), brace);
+		if (ask)
+		{
+			select = "SELECT DISTINCT ?" + row + clause;
+		}
+		else if (keyword.equals("SELECT"))
+		{
+			Matcher modifier = Modifier.matcher(maskedClause);
+			modifier.find();
+			Matcher dataset = Dataset.matcher(maskedClause);
+			int end = dataset.find(modifier.end()) ? dataset.start()
+					: clause.length();
+			String projection = maskedClause.substring(modifier.end(), end);
+			select = text.substring(form.start(), form.end() + modifier.end());
+			if (!projection.trim().equals("*"))
+				select += " ?" + row;
+			select += clause.substring(modifier.end());
+		}
+		else
+		{
+			throw new IllegalArgumentException("Only ASK and SELECT queries "
+					+ "can be batched: " + text);
+		}
+		head = text.substring(0, form.start()) + select + "{";
+		tail = text.substring(brace + 1);
+	}
+	
+	/*
+	 * Returns the text with its IRIs, strings and comments blanked out, so
+	 * that keywords are only found where they are keywords.
+	 */
+	static String mask(String text)
+	{
+		StringBuilder masked = new StringBuilder(text);
+		Matcher opaque = Opaque.matcher(text);
+		while (opaque.find())
+		{
+			for (int i = opaque.start(); i < opaque.end(); i++)
+				masked.setCharAt(i, ' ');
+		}
+		return masked.toString();
+	}
+	
+	/**
+	 * Looks up the rows for the given parameters of a SELECT template.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Future<List<BindingSet>> select(Map<String, ?> parameters)
+	{
+		if (ask)
+			throw new IllegalStateException("The template is an ASK query");
+		return (Future) submit(parameters);
+	}
+	
+	/**
+	 * Looks up the answer for the given parameters of an ASK template.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Future<Boolean> ask(Map<String, ?> parameters)
+	{
+		if (!ask)
+			throw new IllegalStateException("The template is a SELECT query");
+		return (Future) submit(parameters);
+	}
+	
+	private Lookup submit(Map<String, ?> parameters)
+	{
+		if (!parameters.keySet().equals(new LinkedHashSet<String>(
+				this.parameters)))
+			throw new IllegalArgumentException("Lookups must bind "
+					+ this.parameters);
+		List<Value> key = new ArrayList<Value>(this.parameters.size());
+		for (String parameter : this.parameters)
+			key.add(value(parameters.get(parameter)));
+		Lookup lookup = new Lookup(key);
+		Batch opened = null;
+		Batch full = null;
+		synchronized (this)
+		{
+			if (current == null)
+				opened = current = new Batch();
+			current.lookups.add(lookup);
+			if (current.lookups.size() >= maxBatchSize)
+			{
+				full = current;
+				current = null;
+			}
+		}
+		if (full != null)
+			run(full);
+		else if (opened != null)
+			schedule(opened);
+		return lookup;
+	}
+	
+	/*
+	 * Runs a batch once its window ends, unless a lookup filled it first.
+	 */
+	private void schedule(final Batch batch)
+	{
+		Timer.Instance.schedule(new Runnable()
+		{
+			
+			@Override
+			public void run()
+			{
+				synchronized (QueryBatcher.this)
+				{
+					// Run by the lookup that filled it instead
+					if (current != batch)
+						return;
+					current = null;
+				}
+				QueryBatcher.this.run(batch);
+			}
+		}, window, TimeUnit.NANOSECONDS);
+	}
+	
+	private void run(final Batch batch)
+	{
+		try
+		{
+			pool.getExecutor().execute(new Runnable()
+			{
+				
+				@Override
+				public void run()
+				{
+					execute(batch);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			StardogException failure = new StardogException(
+					"Connection pool has been terminated.");
+			for (Lookup lookup : batch.lookups)
+				lookup.fail(failure);
+		}
+	}
+	
+	private void execute(Batch batch)
+	{
+		// The row number of each distinct key, and the rows answered for it
+		Map<List<Value>, Integer> numbers = new LinkedHashMap<List<Value>, Integer>();
+		List<List<BindingSet>> rows = new ArrayList<List<BindingSet>>();
+		try
+		{
+			for (Lookup lookup : batch.lookups)
+			{
+				if (!numbers.containsKey(lookup.key))
+				{
+					numbers.put(lookup.key, numbers.size());
+					rows.add(null);
+				}
+			}
+			List<BindingSet> result;
+			StardogConnectionPool reads = pool.getReadPool();
+			PooledConnection conn = (PooledConnection) (reads == null ? pool
+					: reads).borrow();
+			if (conn == null)
+				throw new StardogException(
+						"Connection pool has been terminated or the thread was interrupted.");
+			try
+			{
+				result = QueryTemplate.read(conn.queryOnce(
+						query(numbers.keySet())).executeSelect());
+			}
+			finally
+			{
+				conn.close();
+			}
+			for (BindingSet answer : result)
+			{
+				int number = number(answer.getValue(row), rows.size());
+				List<BindingSet> matches = rows.get(number);
+				if (matches == null)
+					rows.set(number, matches = new ArrayList<BindingSet>());
+				matches.add(strip(answer));
+			}
+		}
+		catch (Throwable e)
+		{
+			for (Lookup lookup : batch.lookups)
+				lookup.fail(e);
+			return;
+		}
+		for (Lookup lookup : batch.lookups)
+		{
+			List<BindingSet> matches = rows.get(numbers.get(lookup.key));
+			if (ask)
+				lookup.complete(matches != null);
+			else
+				lookup.complete(matches == null ? Collections
+					.<BindingSet> emptyList() : Collections
+					.unmodifiableList(matches));
+		}
+	}
+	
+	/*
+	 * Returns the batch query for the given parameter values.
+	 */
+	String query(Collection<List<Value>> keys)
+	{
+		StringBuilder query = new StringBuilder(head);
+		query.append(" VALUES (");
+		for (String parameter : parameters)
+			query.append(" ?").append(parameter);
+		query.append(" ?").append(row).append(" ) {");
+		int number = 0;
+		for (List<Value> key : keys)
+		{
+			query.append(" (");
+			for (Value value : key)
+				query.append(' ').append(term(value));
+			query.append(' ').append(number++).append(" )");
+		}
+		query.append(" } ");
+		return query.append(tail).toString();
+	}
+	
+	/*
+	 * Reads the row number an answer carries.
+	 */
+	private static int number(Value value, int rows) throws StardogException
+	{
+		try
+		{
+			int number = Integer.parseInt(((Literal) value).getLabel());
+			if (number >= 0 && number < rows)
+				return number;
+		}
+		catch (RuntimeException e)
+		{
+			// not a number
+		}
+		throw new StardogException("Batch query answered a row without a "
+				+ "valid row number: " + value);
+	}
+	
+	private BindingSet strip(BindingSet answer)
+	{
+		MapBindingSet stripped = new MapBindingSet();
+		for (Binding binding : answer)
+		{
+			if (!binding.getName().equals(row))
+				stripped.addBinding(binding.getName(), binding.getValue());
+		}
+		return stripped;
+	}
+	
+	/*
+	 * Makes a parameter value into the value Query.parameter binds for it.
+	 */
+	static Value value(Object value)
+	{
+		if (value instanceof BNode)
+			throw new IllegalArgumentException(
+					"Blank nodes cannot be batched");
+		if (value instanceof Value)
+			return (Value) value;
+		ValueFactory factory = ValueFactoryImpl.getInstance();
+		if (value instanceof java.net.URI)
+			return factory.createURI(value.toString());
+		if (value instanceof String)
+			return factory.createLiteral((String) value);
+		if (value instanceof Integer)
+			return factory.createLiteral(((Integer) value).intValue());
+		if (value instanceof Long)
+			return factory.createLiteral(((Long) value).longValue());
+		if (value instanceof Float)
+			return factory.createLiteral(((Float) value).floatValue());
+		if (value instanceof Double)
+			return factory.createLiteral(((Double) value).doubleValue());
+		if (value instanceof Short)
+			return factory.createLiteral(((Short) value).shortValue());
+		if (value instanceof Boolean)
+			return factory.createLiteral(((Boolean) value).booleanValue());
+		if (value instanceof Byte)
+			return factory.createLiteral(((Byte) value).byteValue());
+		if (value instanceof Date)
+		{
+			GregorianCalendar calendar = new GregorianCalendar();
+			calendar.setTime((Date) value);
+			value = calendar;
+		}
+		if (value instanceof GregorianCalendar)
+		{
+			try
+			{
+				return factory.createLiteral(DatatypeFactory.newInstance()
+					.newXMLGregorianCalendar((GregorianCalendar) value));
+			}
+			catch (DatatypeConfigurationException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+		throw new IllegalArgumentException("Cannot batch a parameter of "
+				+ (value == null ? "null" : value.getClass().toString()));
+	}
+	
+	/*
+	 * Writes a value the way SPARQL does.
+	 */
+	static String term(Value value)
+	{
+		if (value instanceof URI)
+			return "<" + value.stringValue() + ">";
+		Literal literal = (Literal) value;
+		String label = quote(literal.getLabel());
+		if (literal.getLanguage() != null)
+			return label + "@" + literal.getLanguage();
+		if (literal.getDatatype() != null)
+			return label + "^^<" + literal.getDatatype().stringValue() + ">";
+		return label;
+	}
+	
+	private static String quote(String label)
+	{
+		StringBuilder quoted = new StringBuilder(label.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < label.length(); i++)
+		{
+			char c = label.charAt(i);
+			switch (c)
+			{
+				case '"':
+					quoted.append("\\\"");
+					break;
+				case '\\':
+					quoted.append("\\\\");
+					break;
+				case '\n':
+					quoted.append("\\n");
+					break;
+				case '\r':
+					quoted.append("\\r");
+					break;
+				case '\t':
+					quoted.append("\\t");
+					break;
+				default:
+					quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+	
+	/**
+	 * Sets how long a batch waits for more lookups after its first one.
+	 */
+	public void setWindow(long window, TimeUnit unit)
+	{
+		if (window < 0)
+			throw new IllegalArgumentException("window must not be negative");
+		this.window = unit.toNanos(window);
+	}
+	
+	public long getWindow(TimeUnit unit)
+	{
+		return unit.convert(window, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sets how many lookups a batch takes at most before it runs.
+	 */
+	public void setMaxBatchSize(int maxBatchSize)
+	{
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException(
+					"maxBatchSize must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	public int getMaxBatchSize()
+	{
+		return maxBatchSize;
+	}
+	
+	/*
+	 * Ends the windows of all batchers. It only hands batches to their pool's
+	 * executor, so one thread is enough.
+	 */
+	private static final class Timer
+	{
+		
+		static final ScheduledExecutorService Instance = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "QueryBatcher-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+	
+	private static final class Batch
+	{
+		
+		final List<Lookup> lookups = new ArrayList<Lookup>();
+	}
+	
+	/*
+	 * The future of one lookup, completed when its batch has run.
+	 */
+	private static final class Lookup implements Future<Object>
+	{
+		
+		private static final int Pending = 0;
+		private static final int Completed = 1;
+		private static final int Failed = 2;
+		private static final int Cancelled = 3;
+		
+		final List<Value> key;
+		private final AtomicInteger state = new AtomicInteger(Pending);
+		// Written before done is counted down, read after it is
+		private Object answer;
+		private Throwable failure;
+		private final CountDownLatch done = new CountDownLatch(1);
+		
+		Lookup(List<Value> key)
+		{
+			this.key = key;
+		}
+		
+		void complete(Object answer)
+		{
+			if (state.compareAndSet(Pending, Completed))
+			{
+				this.answer = answer;
+				done.countDown();
+			}
+		}
+		
+		void fail(Throwable e)
+		{
+			if (state.compareAndSet(Pending, Failed))
+			{
+				failure = e;
+				done.countDown();
+			}
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			if (!state.compareAndSet(Pending, Cancelled))
+				return false;
+			done.countDown();
+			return true;
+		}
+		
+		@Override
+		public boolean isCancelled()
+		{
+			return state.get() == Cancelled;
+		}
+		
+		@Override
+		public boolean isDone()
+		{
+			return done.getCount() == 0;
+		}
+		
+		@Override
+		public Object get() throws InterruptedException, ExecutionException
+		{
+			done.await();
+			return answer();
+		}
+		
+		@Override
+		public Object get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException
+		{
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return answer();
+		}
+		
+		private Object answer() throws ExecutionException
+		{
+			switch (state.get())
+			{
+				case Failed:
+					throw new ExecutionException(failure);
+				case Cancelled:
+					throw new CancellationException();
+				default:
+					return answer;
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers of ASK and SELECT queries, kept for queries that are asked over and
+ * over with the same parameters. A pool given a cache with
+ * <tt>setQueryCache</tt> answers <tt>PooledQuery.executeAsk</tt> and
+ * <tt>executeSelect</tt> from it, and empties it whenever changes made
+ * through one of its connections are committed. Changes made by other clients
+ * of the database only show once an answer expires, so the time to live
+ * bounds how stale an answer can be.
+ * <p>
+ * A cache belongs to a database rather than a pool: pools of the same
+ * database, such as a pool and its read pool, should share one so that a
+ * commit through either empties it.
+ * <p>
+ * When the cache is full, expired answers are dropped first and then the
+ * least recently used of a small sample, which keeps lookups free of locks.
+ * SELECT results of more than <tt>maxRows</tt> rows are not kept.
+ */
+public class QueryResultCache
+{
+	
+	/*
+	 * Number of answers looked at to pick one to evict.
+	 */
+	private static final int EvictionSample = 8;
+	
+	/*
+	 * Where the last sample stopped. Each eviction samples the answers after
+	 * it, wrapping around, so that every answer is looked at in turn rather
+	 * than the same first few of the map. Guarded by the cache.
+	 */
+	private Iterator<ConcurrentMap.Entry<Object, Answer>> cursor;
+	private final ConcurrentMap<Object, Answer> answers = new ConcurrentHashMap<Object, Answer>();
+	private final int maxEntries;
+	private final long ttlNanos;
+	private volatile int maxRows = 1000;
+	/*
+	 * Bumped by every invalidation. An answer is only used if it was computed
+	 * in the current generation, so a query that was running while changes
+	 * were committed cannot put a stale answer back.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	
+	/**
+	 * @param maxEntries
+	 *            The number of answers to keep at most.
+	 * @param ttl
+	 *            How long an answer is kept, 0 for as long as nothing is
+	 *            committed.
+	 */
+	public QueryResultCache(int maxEntries, long ttl, TimeUnit unit)
+	{
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be positive");
+		if (ttl < 0)
+			throw new IllegalArgumentException("ttl must not be negative");
+		this.maxEntries = maxEntries;
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+	
+	/**
+	 * Drops every answer. Called by the pool on commits, and may be called by
+	 * applications that change the database by other means.
+	 */
+	public void invalidate()
+	{
+		generation.incrementAndGet();
+		answers.clear();
+	}
+	
+	long generation()
+	{
+		return generation.get();
+	}
+	
+	/*
+	 * Returns the answer kept for a query, or null.
+	 */
+	Object get(Object key)
+	{
+		Answer answer = answers.get(key);
+		if (answer != null)
+		{
+			long now = System.nanoTime();
+			if (answer.generation == generation.get()
+					&& (ttlNanos == 0 || now - answer.created < ttlNanos))
+			{
+				answer.used = now;
+				hits.increment();
+				return answer.value;
+			}
+			answers.remove(key, answer);
+		}
+		misses.increment();
+		return null;
+	}
+	
+	/*
+	 * Keeps the answer of a query that was started in the given generation.
+	 */
+	void put(Object key, Object value, long generation)
+	{
+		if (generation != this.generation.get())
+			return;
+		answers.put(key, new Answer(value, generation));
+		while (answers.size() > maxEntries)
+			evict();
+	}
+	
+	private synchronized void evict()
+	{
+		if (answers.size() <= maxEntries)
+			return;
+		long now = System.nanoTime();
+		long current = generation.get();
+		Object oldest = null;
+		long oldestUse = 0;
+		for (int sampled = 0; sampled < EvictionSample; sampled++)
+		{
+			if (cursor == null || !cursor.hasNext())
+			{
+				cursor = answers.entrySet().iterator();
+				if (!cursor.hasNext())
+					break;
+			}
+			ConcurrentMap.Entry<Object, Answer> e = cursor.next();
+			Answer answer = e.getValue();
+			if (answer.generation != current
+					|| (ttlNanos != 0 && now - answer.created >= ttlNanos))
+			{
+				cursor.remove();
+				return;
+			}
+			if (oldest == null || answer.used - oldestUse < 0)
+			{
+				oldest = e.getKey();
+				oldestUse = answer.used;
+			}
+		}
+		if (oldest != null)
+			answers.remove(oldest);
+	}
+	
+	/**
+	 * Sets the largest SELECT result, in rows, that is kept. Larger results
+	 * are passed through as they are read.
+	 */
+	public void setMaxRows(int maxRows)
+	{
+		if (maxRows < 0)
+			throw new IllegalArgumentException("maxRows must not be negative");
+		this.maxRows = maxRows;
+	}
+	
+	public int getMaxRows()
+	{
+		return maxRows;
+	}
+	
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+	
+	public long getTtl(TimeUnit unit)
+	{
+		return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the number of answers kept, including expired ones that have
+	 * not been dropped yet.
+	 */
+	public int size()
+	{
+		return answers.size();
+	}
+	
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+	
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+	
+	private static final class Answer
+	{
+		
+		final Object value;
+		final long generation;
+		final long created;
+		volatile long used;
+		
+		Answer(Object value, long generation)
+		{
+			this.value = value;
+			this.generation = generation;
+			this.created = System.nanoTime();
+			this.used = created;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.Query;
+
+/**
+ * A query that is not tied to a connection, created once and run on whatever
+ * connection is at hand. Parameter values are given as maps from parameter
+ * name to value, where a value is of any type the <tt>Query.parameter</tt>
+ * overloads take.
+ * <p>
+ * The batch methods run the query once for each map of parameters on a single
+ * connection, borrowed once when they are given a pool, and parse it once as
+ * long as every map binds the parameters the ones before it bound. The first
+ * query that fails ends the batch with its exception.
+ * <p>
+ * A template is immutable and may be shared between threads.
+ */
+public class QueryTemplate
+{
+	
+	private final String text;
+	private final String baseUri;
+	
+	public QueryTemplate(String text)
+	{
+		this(text, null);
+	}
+	
+	public QueryTemplate(String text, String baseUri)
+	{
+		if (text == null)
+			throw new IllegalArgumentException("text must not be null");
+		this.text = text;
+		this.baseUri = baseUri;
+	}
+	
+	public String getText()
+	{
+		return text;
+	}
+	
+	public String getBaseUri()
+	{
+		return baseUri;
+	}
+	
+	/**
+	 * Creates the query on a connection, with nothing bound.
+	 */
+	public Query prepare(Connection conn) throws StardogException
+	{
+		return baseUri == null ? conn.query(text) : conn.query(text, baseUri);
+	}
+	
+	/**
+	 * Creates the query on a connection and binds the given parameters.
+	 */
+	public Query prepare(Connection conn, Map<String, ?> parameters)
+			throws StardogException
+	{
+		Query query = prepare(conn);
+		bind(query, parameters);
+		return query;
+	}
+	
+	public boolean ask(Connection conn, Map<String, ?> parameters)
+			throws StardogException
+	{
+		return prepare(conn, parameters).executeAsk();
+	}
+	
+	public TupleQueryResult select(Connection conn, Map<String, ?> parameters)
+			throws StardogException
+	{
+		return prepare(conn, parameters).executeSelect();
+	}
+	
+	/**
+	 * Answers the query for each map of parameters, in order.
+	 */
+	public List<Boolean> ask(Connection conn,
+			List<? extends Map<String, ?>> batch) throws StardogException
+	{
+		List<Boolean> answers = new ArrayList<Boolean>(batch.size());
+		Batch queries = new Batch(conn);
+		for (Map<String, ?> parameters : batch)
+		{
+			answers.add(queries.bind(parameters).executeAsk());
+		}
+		return answers;
+	}
+	
+	/**
+	 * Answers the query for each map of parameters, in order, on a single
+	 * connection borrowed from the pool.
+	 * 
+	 * @throws StardogException
+	 *             If the pool has been terminated, the thread was interrupted
+	 *             or a query failed.
+	 */
+	public List<Boolean> ask(StardogConnectionPool pool,
+			List<? extends Map<String, ?>> batch) throws StardogException
+	{
+		Connection conn = pool.connectOrThrow();
+		try
+		{
+			return ask(conn, batch);
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+	
+	/**
+	 * Selects the rows for each map of parameters, in order. Every result is
+	 * read into memory, which suits the small results of point lookups.
+	 */
+	public List<List<BindingSet>> select(Connection conn,
+			List<? extends Map<String, ?>> batch) throws StardogException
+	{
+		List<List<BindingSet>> results = new ArrayList<List<BindingSet>>(batch
+			.size());
+		Batch queries = new Batch(conn);
+		for (Map<String, ?> parameters : batch)
+		{
+			results.add(read(queries.bind(parameters).executeSelect()));
+		}
+		return results;
+	}
+	
+	/**
+	 * Selects the rows for each map of parameters, in order, on a single
+	 * connection borrowed from the pool.
+	 * 
+	 * @throws StardogException
+	 *             If the pool has been terminated, the thread was interrupted
+	 *             or a query failed.
+	 */
+	public List<List<BindingSet>> select(StardogConnectionPool pool,
+			List<? extends Map<String, ?>> batch) throws StardogException
+	{
+		Connection conn = pool.connectOrThrow();
+		try
+		{
+			return select(conn, batch);
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+	
+	private static void bind(Query query, Map<String, ?> parameters)
+	{
+		for (Map.Entry<String, ?> parameter : parameters.entrySet())
+		{
+			PooledQuery.bind(query, parameter.getKey(), parameter.getValue());
+		}
+	}
+	
+	static List<BindingSet> read(TupleQueryResult result)
+			throws StardogException
+	{
+		List<BindingSet> rows = new ArrayList<BindingSet>();
+		try
+		{
+			try
+			{
+				while (result.hasNext())
+					rows.add(result.next());
+			}
+			finally
+			{
+				result.close();
+			}
+		}
+		catch (QueryEvaluationException e)
+		{
+			throw new StardogException(e.getMessage(), e);
+		}
+		return rows;
+	}
+	
+	/*
+	 * The query of a batch, parsed again only when a map of parameters leaves
+	 * a parameter unbound that an earlier one bound, since bindings cannot be
+	 * taken back.
+	 */
+	private class Batch
+	{
+		
+		private final Connection conn;
+		private final Set<String> bound = new HashSet<String>();
+		private Query query;
+		
+		Batch(Connection conn)
+		{
+			this.conn = conn;
+		}
+		
+		Query bind(Map<String, ?> parameters) throws StardogException
+		{
+			if (query == null || !parameters.keySet().containsAll(bound))
+			{
+				query = prepare(conn);
+				bound.clear();
+			}
+			QueryTemplate.bind(query, parameters);
+			bound.addAll(parameters.keySet());
+			return query;
+		}
+	}
+}
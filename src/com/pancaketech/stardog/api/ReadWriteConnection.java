@@ -0,0 +1,297 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Adder;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.Getter;
+import com.clarkparsia.stardog.api.Query;
+import com.clarkparsia.stardog.api.Remover;
+
+/**
+ * A connection whose reads and writes are served by different pools. Reads
+ * borrow a connection from the read pool and writes one from the write pool,
+ * each on first use. After the first write every read goes to the write
+ * connection too, so that a lease reads its own writes. The read connection
+ * is kept until close, since results and getters obtained from it before the
+ * first write may still be in use. Both connections are returned to their
+ * pools on close.
+ * 
+ * <p>
+ * <tt>commit</tt> and <tt>rollback</tt> do nothing before the first write,
+ * since there is nothing to commit or roll back.
+ * </p>
+ */
+public class ReadWriteConnection implements Connection
+{
+	
+	private final StardogConnectionPool writePool;
+	private final StardogConnectionPool readPool;
+	/*
+	 * How long to wait for each borrow, or a negative value to wait for as
+	 * long as it takes.
+	 */
+	private final long timeoutNanos;
+	private Connection reader;
+	private Connection writer;
+	private boolean closed;
+	
+	ReadWriteConnection(StardogConnectionPool writePool,
+			StardogConnectionPool readPool, long timeoutNanos)
+	{
+		this.writePool = writePool;
+		this.readPool = readPool;
+		this.timeoutNanos = timeoutNanos;
+	}
+	
+	private void ValidateConnection() throws StardogException
+	{
+		if (closed)
+			throw new StardogException("Connection is closed.");
+	}
+	
+	/*
+	 * Borrows the read connection now instead of on the first read.
+	 */
+	void borrowReader() throws StardogException
+	{
+		reader();
+	}
+	
+	private Connection lease(StardogConnectionPool pool)
+			throws StardogException
+	{
+		if (timeoutNanos >= 0)
+			return pool.borrow(timeoutNanos, TimeUnit.NANOSECONDS);
+		Connection conn = pool.borrow();
+		if (conn == null)
+			throw new StardogException(
+					"Connection pool has been terminated or the thread was interrupted.");
+		return conn;
+	}
+	
+	private Connection reader() throws StardogException
+	{
+		ValidateConnection();
+		if (writer != null)
+			return writer;
+		if (reader == null)
+			reader = lease(readPool);
+		return reader;
+	}
+	
+	private Connection writer() throws StardogException
+	{
+		ValidateConnection();
+		if (writer == null)
+			writer = lease(writePool);
+		return writer;
+	}
+	
+	/**
+	 * @return true once the connection has written, after which all of its
+	 *         calls go to the write pool.
+	 */
+	public boolean isSticky()
+	{
+		return writer != null;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#add()
+	 */
+	@Override
+	public Adder add() throws StardogException
+	{
+		return writer().add();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#begin()
+	 */
+	@Override
+	public void begin() throws StardogException
+	{
+		writer().begin();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#close()
+	 */
+	@Override
+	public void close() throws StardogException
+	{
+		if (closed)
+			return;
+		closed = true;
+		Connection r = reader;
+		Connection w = writer;
+		reader = null;
+		writer = null;
+		try
+		{
+			if (w != null)
+				w.close();
+		}
+		finally
+		{
+			if (r != null)
+				r.close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#commit()
+	 */
+	@Override
+	public void commit() throws StardogException
+	{
+		ValidateConnection();
+		if (writer != null)
+			writer.commit();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#get()
+	 */
+	@Override
+	public Getter get() throws StardogException
+	{
+		return reader().get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#isAutoCommit()
+	 */
+	@Override
+	public boolean isAutoCommit() throws StardogException
+	{
+		ValidateConnection();
+		// Pooled connections are handed out with auto commit off, and only
+		// setAutoCommit, which borrows the writer, changes it.
+		if (writer == null)
+			return false;
+		return writer.isAutoCommit();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#isOpen()
+	 */
+	@Override
+	public boolean isOpen() throws StardogException
+	{
+		return !closed;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#query(java.lang.String)
+	 */
+	@Override
+	public Query query(String query) throws StardogException
+	{
+		return reader().query(query);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#query(java.lang.String,
+	 * java.lang.String)
+	 */
+	@Override
+	public Query query(String query, String baseUri) throws StardogException
+	{
+		return reader().query(query, baseUri);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#remove()
+	 */
+	@Override
+	public Remover remove() throws StardogException
+	{
+		return writer().remove();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#rollback()
+	 */
+	@Override
+	public void rollback() throws StardogException
+	{
+		ValidateConnection();
+		if (writer != null)
+			writer.rollback();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#setAutoCommit(boolean)
+	 */
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws StardogException
+	{
+		writer().setAutoCommit(autoCommit);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.clarkparsia.stardog.api.Connection#size()
+	 */
+	@Override
+	public long size() throws StardogException
+	{
+		return reader().size();
+	}
+	
+}
@@ -27,18 +27,43 @@ or implied, of Pancake Technology, LLC.
  */
 package com.pancaketech.stardog.api;
 
+import java.lang.management.ManagementFactory;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.TupleQueryResult;
 
 import com.clarkparsia.stardog.StardogException;
 import com.clarkparsia.stardog.api.Connection;
 import com.clarkparsia.stardog.api.ConnectionConfiguration;
+import com.clarkparsia.stardog.util.Iteration;
 
 /**
  * This is a basic connection pool for the Stardog api. To create a connection
@@ -48,18 +73,73 @@ import com.clarkparsia.stardog.api.ConnectionConfiguration;
  * <p>
  * The maxPoolSize property will set the maximum number of open connections that
  * are maintained. Requests beyond that will block until a connection becomes
- * available. The default max is 50 connections.
+ * available. The default max is 50 connections. Blocked requests are served in
+ * the order they arrived and a returned connection is handed directly to the
+ * oldest one. Use <tt>connect(long, TimeUnit)</tt> to bound the wait.
+ * Blocked requests park with <tt>LockSupport</tt> and never wait on a monitor,
+ * so virtual threads waiting for a connection do not pin their carrier.
  * </p>
  * <p>
- * The poolAggressiveness property determines how aggressively unused
- * connections are closed. It specifies the number of milli-seconds allowed for
- * the number of connections requested to reach the current pool size. The
- * default is 10,000. Note: This does not require them to be requested
- * simultaneously. If a pool size of 10 is connected to at least once per
- * second, no connections will be released even if the connections were not
- * simultaneous. It is recommended that you tune the number to your specific
- * application.
- * 
+ * The idleTimeout property determines how aggressively unused connections are
+ * closed. Every connection that has been idle for longer than this number of
+ * milli-seconds is closed, down to minIdle connections. The default is 10,000.
+ * poolAggressiveness is the old name of this property.
+ * </p>
+ * <p>
+ * The maxLifetime property retires connections after they have been open for
+ * this number of milli-seconds. Each connection subtracts a random share of up
+ * to 10% from it so that connections opened together do not all expire
+ * together. Connections are only retired while idle or when they are
+ * returned. The default is 0, which keeps connections open indefinitely.
+ * </p>
+ * <p>
+ * New connections are opened outside of any lock. The maxConcurrentCreations
+ * property caps how many connections may be opened at the same time so that a
+ * cold pool does not flood the server with logins. The default is 4.
+ * </p>
+ * <p>
+ * The minIdle property sets how many idle connections are kept open. The
+ * watcher never closes idle connections below it and replaces them when they
+ * are closed. <tt>prefill</tt> opens them in parallel ahead of traffic. The
+ * default is 0.
+ * </p>
+ * <p>
+ * With adaptiveSizing turned on, the pool sizes itself from the observed
+ * arrival rate, hold time and wait time of requests instead of relying on the
+ * idle timeout alone. See <tt>setAdaptiveSizing</tt>.
+ * </p>
+ * <p>
+ * Connections the server has dropped are found by running the validation
+ * query, on borrow when testOnBorrow is set and in the background every
+ * keepaliveInterval for idle connections. Connections used or validated within
+ * the validationGracePeriod are not validated on borrow.
+ * </p>
+ * <p>
+ * Replicas added with <tt>addEndpoint</tt> share the pool with the server of
+ * the connConfig. Each borrow goes to the endpoint with the fewest borrowed
+ * connections, the one connections are held on for the shortest time winning
+ * a tie. An endpoint that fails to connect or validate ejectionThreshold times
+ * in a row is ejected, its idle connections are closed, and it gets no
+ * borrows until a probe made after ejectionTime milli-seconds succeeds.
+ * </p>
+ * <p>
+ * With a readPool set, reads and writes of a connection go to different
+ * pools, so that long reads do not hold up writes. See
+ * <tt>setReadPool</tt>.
+ * </p>
+ * <p>
+ * Connections that are never closed can be found and taken back. A connection
+ * borrowed for longer than leakDetectionThreshold milli-seconds is logged once,
+ * with the stack of its borrower for every leakTraceSampleRate-th borrow. A
+ * connection borrowed for longer than abandonedTimeout milli-seconds is closed
+ * and its wrapper fails from then on, as if it had been closed. Both are off
+ * by default.
+ * </p>
+ * <p>
+ * <tt>getMetrics</tt> takes a snapshot of the pool's counts and, with
+ * metricsEnabled, histograms of borrow wait, hold time, connection creation
+ * and the operations run through the pooled wrappers. <tt>registerMBean</tt>
+ * exposes the same over JMX.
  * </p>
  * 
  * @author Robert Butler
@@ -70,20 +150,80 @@ public class StardogConnectionPool
 	private static final Log Logger = LogFactory
 		.getLog(StardogConnectionPool.class);
 	private static final int DefaulMaxPoolSize = 50;
+	private static final int DefaultMaxConcurrentCreations = 4;
+	private static final long AdaptiveSamplePeriod = 1000;
+	private static final String DefaultValidationQuery = "ASK {}";
 	
 	private ConnectionConfiguration connConfig;
 	
-	private int poolCount = 0;
-	private List<Connection> available = new LinkedList<Connection>();
-	private Set<Connection> inUse = new HashSet<Connection>();
-	private int requests = 0;
-	private int maxPoolSize = DefaulMaxPoolSize;
-	private long poolAggressiveness = 10000;
-	private boolean shutdown = false;
+	/*
+	 * Counts open connections plus the ones that are still being opened.
+	 */
+	private final AtomicInteger poolCount = new AtomicInteger();
+	private final AtomicInteger pendingCreations = new AtomicInteger();
+	private final ConnectionBag bag = new ConnectionBag();
+	/*
+	 * The endpoint of the connConfig, followed by the ones added with
+	 * addEndpoint.
+	 */
+	private final PoolEndpoint primary = new PoolEndpoint(null);
+	private final List<PoolEndpoint> endpoints = new CopyOnWriteArrayList<PoolEndpoint>(
+			Collections.singletonList(primary));
+	private volatile int ejectionThreshold = 3;
+	private volatile long ejectionTime = 30000;
+	private volatile StardogConnectionPool readPool;
+	/*
+	 * Null while query results are not cached.
+	 */
+	private volatile QueryResultCache queryCache;
+	private volatile int maxPreparedQueries = 0;
+	private volatile boolean materializeResults = false;
+	private volatile long resultSpillThreshold = 16 * 1024 * 1024;
+	private volatile long leakDetectionThreshold = 0;
+	private volatile int leakTraceSampleRate = 10;
+	private volatile long abandonedTimeout = 0;
+	private final AtomicInteger leases = new AtomicInteger();
+	/*
+	 * Results of stream and select whose connections are still borrowed.
+	 */
+	private final Set<LeasedResult<?>> streams = Collections
+		.newSetFromMap(new ConcurrentHashMap<LeasedResult<?>, Boolean>());
+	private volatile long streamIdleTimeout = 0;
+	private volatile int prefetchSize = 0;
+	private volatile long prefetchStartTimeout = PrefetchingIteration.DefaultStartTimeout;
+	private final AtomicLong prefetchFallbacks = new AtomicLong();
+	private final AtomicLong reclaimed = new AtomicLong();
+	private volatile MetricsRecorder metrics;
+	private volatile ObjectName mbeanName;
+	/*
+	 * Threads waiting for a connection, oldest first. Returned connections are
+	 * handed directly to the head of the queue.
+	 */
+	private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+	private volatile int maxPoolSize = DefaulMaxPoolSize;
+	private volatile int maxConcurrentCreations = DefaultMaxConcurrentCreations;
+	private volatile int minIdle = 0;
+	private volatile PoolSizeController sizeController;
+	private volatile boolean testOnBorrow = false;
+	private volatile String validationQuery = DefaultValidationQuery;
+	private volatile long validationGracePeriod = 1000;
+	private volatile long keepaliveInterval = 0;
+	private volatile int targetPoolSize;
+	private volatile long idleTimeout = 10000;
+	private volatile long maxLifetime = 0;
+	private volatile boolean shutdown = false;
+	private final AtomicReference<ExecutorService> executor = new AtomicReference<ExecutorService>();
+	private volatile boolean ownsExecutor;
 	private Thread watcherThread;
+	/*
+	 * Set when the pool belongs to a registry, which then runs the
+	 * housekeeping and enforces its connection limit.
+	 */
+	private final StardogConnectionPoolRegistry registry;
 	
 	public StardogConnectionPool()
 	{
+		this.registry = null;
 		watcherThread = new Thread(new Runnable()
 		{
 			
@@ -98,13 +238,21 @@ public class StardogConnectionPool
 		watcherThread.start();
 	}
 	
+	/*
+	 * Creates a pool whose housekeeping is run by the registry.
+	 */
+	StardogConnectionPool(StardogConnectionPoolRegistry registry)
+	{
+		this.registry = registry;
+	}
+	
 	private void watch()
 	{
 		for (;;)
 		{
 			try
 			{
-				Thread.sleep(getPoolAggressiveness());
+				Thread.sleep(getHousekeepingPeriod());
 			}
 			catch (InterruptedException e)
 			{}
@@ -114,18 +262,186 @@ public class StardogConnectionPool
 				break;
 			}
 			
-			synchronized (available)
+			housekeep();
+		}
+	}
+	
+	void housekeep()
+	{
+		PoolSizeController controller = sizeController;
+		if (controller != null)
+		{
+			targetPoolSize = controller.update(minIdle, maxPoolSize);
+		}
+		evict();
+		keepalive();
+		detectLeaks();
+		expireStreams();
+		probe();
+		fill();
+	}
+	
+	/*
+	 * Lets the watcher pick up changed settings right away.
+	 */
+	private void wakeWatcher()
+	{
+		if (watcherThread != null)
+			watcherThread.interrupt();
+		else
+			registry.wakeWatcher();
+	}
+	
+	/*
+	 * Runs often enough that connections are closed or tested within a
+	 * quarter of the idle timeout, max lifetime or keepalive interval of
+	 * becoming eligible, ejected endpoints are probed within a quarter of the
+	 * ejection time, and leaks and unread streams are found within a quarter
+	 * of their threshold.
+	 */
+	long getHousekeepingPeriod()
+	{
+		long period = idleTimeout;
+		if (maxLifetime > 0 && maxLifetime < period)
+			period = maxLifetime;
+		if (keepaliveInterval > 0 && keepaliveInterval < period)
+			period = keepaliveInterval;
+		if (endpoints.size() > 1 && ejectionTime < period)
+			period = ejectionTime;
+		if (leakDetectionThreshold > 0 && leakDetectionThreshold < period)
+			period = leakDetectionThreshold;
+		if (abandonedTimeout > 0 && abandonedTimeout < period)
+			period = abandonedTimeout;
+		if (streamIdleTimeout > 0 && streamIdleTimeout < period)
+			period = streamIdleTimeout;
+		period /= 4;
+		if (sizeController != null && period > AdaptiveSamplePeriod)
+			period = AdaptiveSamplePeriod;
+		return Math.max(period, 25);
+	}
+	
+	/*
+	 * Closes every idle connection that has been idle for longer than the idle
+	 * timeout, keeping minIdle of them, and every idle connection that has
+	 * outlived its lifetime. With adaptive sizing, idle connections beyond the
+	 * target size are closed right away. Entries are claimed one at a time
+	 * with compare and set so borrowers are never blocked.
+	 */
+	private void evict()
+	{
+		long now = System.nanoTime();
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		int evictable = bag.getIdleCount() - minIdle;
+		int surplus = sizeController != null ? poolCount.get()
+				- targetPoolSize : 0;
+		for (PoolEntry entry : bag.values())
+		{
+			if (entry.state.get() != PoolEntry.StateNotInUse)
+				continue;
+			boolean expired = isExpired(entry, now);
+			if (!expired
+					&& (evictable <= 0 || (surplus <= 0 && now
+							- entry.lastUsed < idleNanos)))
+				continue;
+			if (bag.reserve(entry))
+			{
+				if (!expired)
+					evictable--;
+				surplus--;
+				discard(entry);
+			}
+		}
+	}
+	
+	private boolean isExpired(PoolEntry entry, long now)
+	{
+		long lifetime = maxLifetime;
+		if (lifetime <= 0)
+			return false;
+		long allowed = TimeUnit.MILLISECONDS
+			.toNanos((long) (lifetime * (1 - entry.lifetimeVariance)));
+		return now - entry.created >= allowed;
+	}
+	
+	/*
+	 * Opens connections until minIdle are idle, the adaptive target is reached
+	 * or the pool is full. Returns the number of connections opened.
+	 */
+	private int fill()
+	{
+		int opened = 0;
+		while (!shutdown && needsFill() && reserveCreation())
+		{
+			try
+			{
+				if (openEntry(selectEndpoint(), true) != null)
+					opened++;
+			}
+			catch (Throwable t)
+			{
+				Logger.warn("Unable to open idle connection.", t);
+				break;
+			}
+		}
+		return opened;
+	}
+	
+	private boolean needsFill()
+	{
+		if (bag.getIdleCount() + pendingCreations.get() < minIdle)
+			return true;
+		return sizeController != null && poolCount.get() < targetPoolSize;
+	}
+	
+	/**
+	 * Opens connections until at least minIdle connections are idle, so that
+	 * the first requests do not pay for connection setup. Connections are
+	 * opened in parallel, up to maxConcurrentCreations at a time. This blocks
+	 * until the pool is filled or a connection fails to open.
+	 * 
+	 * @return The number of connections opened.
+	 */
+	public int prefill()
+	{
+		int workers = Math.min(maxConcurrentCreations, minIdle
+				- bag.getIdleCount());
+		if (workers < 1)
+			return 0;
+		final AtomicInteger opened = new AtomicInteger();
+		// A latch rather than Thread.join, which waits on a monitor
+		final CountDownLatch done = new CountDownLatch(workers - 1);
+		for (int i = 1; i < workers; i++)
+		{
+			Thread t = new Thread(new Runnable()
 			{
-				if (requests < available.size())
+				
+				@Override
+				public void run()
 				{
-					poolCount--;
-					Connection c = available.remove(0);
-					available.notifyAll();
-					terminateConnection(c);
+					try
+					{
+						opened.addAndGet(fill());
+					}
+					finally
+					{
+						done.countDown();
+					}
 				}
-				requests = 0;
-			}
+			});
+			t.setName("StardogConnectionPool-prefill");
+			t.setDaemon(true);
+			t.start();
 		}
+		opened.addAndGet(fill());
+		try
+		{
+			done.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		return opened.get();
 	}
 	
 	private void terminateConnection(Connection conn)
@@ -141,158 +457,1772 @@ public class StardogConnectionPool
 	}
 	
 	/*
-	 * Retrieves an available connection or instantiates a new one if the total
-	 * count is less than the
+	 * Removes an entry from the pool, closes its connection and lets a waiting
+	 * thread open a replacement.
 	 */
-	private Connection grabAvailable() throws StardogException
+	private void discard(PoolEntry entry)
 	{
-		if (shutdown)
-			return null;
-		requests++;
-		if (available.size() > 0)
-			return available.remove(0);
-		else if (poolCount < maxPoolSize)
+		if (bag.remove(entry))
 		{
-			Connection conn = getConnConfig().connect();
-			poolCount++;
-			return conn;
+			poolCount.decrementAndGet();
+			if (registry != null)
+				registry.releaseConnection();
+			wakeWaiter();
 		}
-		else
+		terminateConnection(entry.connection);
+	}
+	
+	/*
+	 * Closes the idle connection that was unused the longest, unless that
+	 * would leave fewer than minIdle idle. Used by the registry to give the
+	 * room to a busier pool.
+	 */
+	boolean evictIdle()
+	{
+		if (bag.getIdleCount() <= minIdle)
+			return false;
+		for (;;)
 		{
-			return null;
+			PoolEntry oldest = null;
+			for (PoolEntry entry : bag.values())
+			{
+				if (entry.state.get() == PoolEntry.StateNotInUse
+						&& (oldest == null || entry.lastUsed < oldest.lastUsed))
+					oldest = entry;
+			}
+			if (oldest == null)
+				return false;
+			if (bag.reserve(oldest))
+			{
+				discard(oldest);
+				return true;
+			}
 		}
 	}
 	
-	public Connection connect() throws StardogException
+	/*
+	 * Wakes the oldest waiter without handing it a connection so that it can
+	 * try to open one. Used whenever room for a new connection is freed.
+	 */
+	void wakeWaiter()
 	{
-		if (shutdown)
-			return null;
-		Connection conn;
-		synchronized (available)
+		for (Waiter waiter : waiters)
 		{
-			conn = grabAvailable();
-			while (conn == null && !shutdown)
+			if (waiter.isWaiting())
 			{
-				try
-				{
-					available.wait();
-				}
-				catch (InterruptedException e)
-				{
-					if (!shutdown)
-						Logger
-							.warn("Thread interrupted while waiting for connection",
-									e);
-					return null;
-				}
-				conn = grabAvailable();
+				LockSupport.unpark(waiter.thread);
+				return;
 			}
 		}
-		if (shutdown)
-			return null;
-		synchronized (inUse)
+	}
+	
+	/*
+	 * Gives a connection that is no longer used to the oldest waiter, or puts
+	 * it in the bag when nobody waits. A waiter that queued up while the
+	 * connection was put in the bag will either find it there or have it
+	 * taken back out and handed to it.
+	 */
+	private void release(PoolEntry entry)
+	{
+		entry.lastUsed = System.nanoTime();
+		requite(entry);
+	}
+	
+	/*
+	 * Same as release, but leaves the time of last use alone.
+	 */
+	private void requite(PoolEntry entry)
+	{
+		for (;;)
 		{
-			inUse.add(conn);
+			Waiter waiter;
+			while ((waiter = waiters.poll()) != null)
+			{
+				if (waiter.fulfill(entry))
+					return;
+			}
+			bag.requite(entry);
+			if (waiters.isEmpty() || !entry.claim())
+				return;
 		}
-		return new PooledConnection(this, conn);
 	}
 	
-	protected void returnToPool(Connection conn) throws StardogException
+	/**
+	 * Opens a new physical connection for the pool. Subclasses may override
+	 * this to change how connections are established.
+	 * 
+	 * @return The new connection.
+	 * @throws StardogException
+	 *             If the connection could not be opened.
+	 */
+	protected Connection createConnection() throws StardogException
+	{
+		return getConnConfig().connect();
+	}
+	
+	/**
+	 * Opens a new physical connection to an endpoint added with
+	 * <tt>addEndpoint</tt>. Subclasses may override this to change how
+	 * connections are established.
+	 * 
+	 * @return The new connection.
+	 * @throws StardogException
+	 *             If the connection could not be opened.
+	 */
+	protected Connection createConnection(ConnectionConfiguration config)
+			throws StardogException
+	{
+		return config.connect();
+	}
+	
+	private Connection createConnection(PoolEndpoint endpoint)
+			throws StardogException
+	{
+		return endpoint.config == null ? createConnection()
+				: createConnection(endpoint.config);
+	}
+	
+	/*
+	 * Opens a connection for the pool. Auto commit is turned off whatever the
+	 * server default, since every lease starts with it off and returning a
+	 * connection only resets it if the lease changed it.
+	 */
+	private Connection openConnection(PoolEndpoint endpoint)
+			throws StardogException
 	{
-		synchronized (inUse)
+		Connection conn = createConnection(endpoint);
+		boolean ready = false;
+		try
 		{
-			if (inUse.contains(conn))
-				inUse.remove(conn);
-			else
+			if (conn.isAutoCommit())
+				conn.setAutoCommit(false);
+			ready = true;
+			return conn;
+		}
+		finally
+		{
+			if (!ready)
+				terminateConnection(conn);
+		}
+	}
+	
+	/*
+	 * Picks the admitted endpoint with the fewest borrowed connections, and of
+	 * those the one connections are held on for the shortest time. Falls back
+	 * to the primary endpoint when all are ejected.
+	 */
+	private PoolEndpoint selectEndpoint()
+	{
+		if (endpoints.size() == 1)
+			return primary;
+		PoolEndpoint best = null;
+		int bestOutstanding = 0;
+		for (PoolEndpoint endpoint : endpoints)
+		{
+			if (endpoint.isEjected())
+				continue;
+			int outstanding = endpoint.outstanding.get();
+			if (best == null
+					|| outstanding < bestOutstanding
+					|| (outstanding == bestOutstanding && endpoint.getLatency() < best
+						.getLatency()))
 			{
-				// This was not managed, so just close it.
-				conn.close();
-				return;
+				best = endpoint;
+				bestOutstanding = outstanding;
 			}
 		}
-		if (shutdown)
+		return best != null ? best : primary;
+	}
+	
+	/*
+	 * Claims an idle connection to any admitted endpoint but the given one,
+	 * for when that one has none and no connection may be opened.
+	 */
+	private PoolEntry borrowElsewhere(PoolEndpoint skipped)
+	{
+		if (endpoints.size() == 1)
+			return null;
+		for (PoolEndpoint endpoint : endpoints)
 		{
-			conn.close();
+			if (endpoint == skipped || endpoint.isEjected())
+				continue;
+			PoolEntry entry = bag.borrow(endpoint);
+			if (entry != null)
+				return entry;
+		}
+		return null;
+	}
+	
+	/*
+	 * Counts a failed connect or validation against an endpoint and ejects it
+	 * once the failures in a row reach the threshold. A pool with a single
+	 * endpoint never ejects it.
+	 */
+	private void recordFailure(PoolEndpoint endpoint)
+	{
+		if (endpoints.size() == 1
+				|| !endpoint.recordFailure(ejectionThreshold, TimeUnit.MILLISECONDS
+					.toNanos(ejectionTime)))
 			return;
+		Logger.warn("Ejecting endpoint after " + ejectionThreshold
+				+ " failures in a row.");
+		for (PoolEntry entry : bag.values())
+		{
+			if (entry.endpoint == endpoint && bag.reserve(entry))
+				discard(entry);
 		}
-		synchronized (available)
+	}
+	
+	/*
+	 * Opens a connection to every ejected endpoint whose ejection time is up
+	 * and runs the validation query on it. The endpoint is admitted again if
+	 * this works and stays ejected for another ejection time if it does not.
+	 */
+	private void probe()
+	{
+		if (endpoints.size() == 1)
+			return;
+		long now = System.nanoTime();
+		for (PoolEndpoint endpoint : endpoints)
 		{
-			if (!conn.isOpen())
+			if (shutdown)
+				return;
+			if (!endpoint.isProbeDue(now))
+				continue;
+			Connection conn = null;
+			try
 			{
-				poolCount--;
+				conn = createConnection(endpoint);
+				conn.query(validationQuery).executeAsk();
+				endpoint.readmit();
+				Logger.info("Admitting endpoint again after a successful probe.");
 			}
-			else
+			catch (Throwable t)
+			{
+				endpoint.postponeProbe(TimeUnit.MILLISECONDS
+					.toNanos(ejectionTime));
+			}
+			finally
 			{
-				available.add(conn);
+				if (conn != null)
+					terminateConnection(conn);
 			}
-			available.notifyAll();
 		}
 	}
 	
-	public void terminatePool()
+	/*
+	 * Reserves room in the pool for a new connection. A reservation counts
+	 * against the max pool size, the number of connections that may be opened
+	 * at the same time and the limit of the registry, if any.
+	 */
+	private boolean reserveCreation()
 	{
-		shutdown = true;
-		watcherThread.interrupt();
-		List<Connection> list = available;
-		synchronized (list)
-		{
-			available = Collections.emptyList();
-			list.notifyAll();
-		}
-		for (Connection conn : list)
+		for (;;)
 		{
-			terminateConnection(conn);
+			int pending = pendingCreations.get();
+			if (pending >= maxConcurrentCreations)
+				return false;
+			if (pendingCreations.compareAndSet(pending, pending + 1))
+				break;
 		}
-		list = null;
-		Set<Connection> set = inUse;
-		synchronized (set)
+		for (;;)
 		{
-			inUse = Collections.emptySet();
+			int count = poolCount.get();
+			if (count >= maxPoolSize)
+			{
+				pendingCreations.decrementAndGet();
+				return false;
+			}
+			if (poolCount.compareAndSet(count, count + 1))
+				break;
 		}
-		for (Connection conn : set)
+		if (registry != null && !registry.reserveConnection(this))
 		{
-			terminateConnection(conn);
+			pendingCreations.decrementAndGet();
+			poolCount.decrementAndGet();
+			return false;
 		}
+		return true;
 	}
 	
-	public void setMaxPoolSize(int maxPoolSize)
+	private void cancelCreation()
 	{
-		if (maxPoolSize < 1)
-			throw new IllegalArgumentException("Max pool size must be >= 1");
-		this.maxPoolSize = maxPoolSize;
+		pendingCreations.decrementAndGet();
+		poolCount.decrementAndGet();
+		if (registry != null)
+			registry.releaseConnection();
+		wakeWaiter();
 	}
 	
-	public int getMaxPoolSize()
+	/*
+	 * Opens a connection for a reservation made by reserveCreation. This is
+	 * never called while holding a lock so a slow login does not block other
+	 * borrowers. An idle connection is released before the reservation ends,
+	 * so that needsFill counts it as pending or idle throughout. Returns null
+	 * if the pool was terminated while the connection was being opened.
+	 */
+	private PoolEntry openEntry(PoolEndpoint endpoint, boolean idle)
+			throws StardogException
 	{
-		return maxPoolSize;
+		boolean opened = false;
+		try
+		{
+			Connection conn;
+			MetricsRecorder recorder = metrics;
+			long start = recorder != null ? System.nanoTime() : 0;
+			try
+			{
+				conn = openConnection(endpoint);
+			}
+			catch (StardogException e)
+			{
+				recordFailure(endpoint);
+				throw e;
+			}
+			catch (RuntimeException e)
+			{
+				recordFailure(endpoint);
+				throw e;
+			}
+			if (recorder != null)
+				recorder.creationTime.record(System.nanoTime() - start);
+			endpoint.recordSuccess();
+			PoolEntry entry = new PoolEntry(conn, endpoint);
+			bag.add(entry);
+			opened = true;
+			// terminatePool may have emptied the bag before the add, in which
+			// case nothing else would close the connection
+			if (shutdown)
+			{
+				discard(entry);
+				return null;
+			}
+			if (idle)
+				release(entry);
+			return entry;
+		}
+		finally
+		{
+			if (opened)
+			{
+				pendingCreations.decrementAndGet();
+				wakeWaiter();
+			}
+			else
+			{
+				cancelCreation();
+			}
+		}
 	}
 	
-	public void setConnConfig(ConnectionConfiguration connConfig)
+	/*
+	 * Retrieves an available connection to the selected endpoint or
+	 * instantiates a new one if the total count is less than the max pool
+	 * size. Only when neither works is a connection to another endpoint taken.
+	 */
+	private PoolEntry grabAvailable() throws StardogException
 	{
-		this.connConfig = connConfig;
+		PoolEndpoint endpoint = selectEndpoint();
+		PoolEntry entry = bag.borrow(endpoint);
+		if (entry != null)
+			return entry;
+		if (reserveCreation())
+			return openEntry(endpoint, false);
+		return borrowElsewhere(endpoint);
 	}
 	
-	public ConnectionConfiguration getConnConfig()
+	/*
+	 * Takes a connection that passed validation and records the demand for
+	 * adaptive sizing and the load on each endpoint.
+	 */
+	private PoolEntry acquire(boolean timed, long nanos)
+			throws StardogException, InterruptedException
 	{
-		return connConfig;
+		PoolSizeController controller = sizeController;
+		MetricsRecorder recorder = metrics;
+		boolean balanced = endpoints.size() > 1;
+		if (controller == null && recorder == null && !testOnBorrow
+				&& !balanced)
+			return acquireEntry(timed, nanos);
+		if (controller != null)
+			controller.recordArrival();
+		long start = System.nanoTime();
+		long arrived = start;
+		PoolEntry entry;
+		for (;;)
+		{
+			entry = acquireEntry(timed, nanos);
+			if (entry == null || !testOnBorrow || isUsable(entry))
+				break;
+			discard(entry);
+			if (timed)
+			{
+				nanos -= System.nanoTime() - start;
+				start = System.nanoTime();
+			}
+		}
+		if (entry != null
+				&& (controller != null || recorder != null || balanced))
+		{
+			entry.borrowed = System.nanoTime();
+			if (controller != null)
+				controller.recordWait(entry.borrowed - start);
+			if (recorder != null)
+				recorder.borrowWait.record(entry.borrowed - arrived);
+			if (balanced)
+			{
+				entry.counted = true;
+				entry.endpoint.outstanding.incrementAndGet();
+			}
+		}
+		return entry;
 	}
 	
-	public void setPoolAggressiveness(long poolAggressiveness)
+	/*
+	 * Skips validation for connections that were known to work within the
+	 * grace period, which includes newly opened ones.
+	 */
+	private boolean isUsable(PoolEntry entry)
 	{
-		if (poolAggressiveness < 100)
-			throw new IllegalArgumentException(
-					"Pool aggressiveness must be at least 100");
-		this.poolAggressiveness = poolAggressiveness;
-		this.watcherThread.interrupt();
+		long lastGood = Math.max(entry.lastUsed, entry.lastValidated);
+		if (System.nanoTime() - lastGood < TimeUnit.MILLISECONDS
+			.toNanos(validationGracePeriod))
+			return true;
+		return validate(entry);
 	}
 	
-	public long getPoolAggressiveness()
+	/*
+	 * Runs the validation query. This does not count as use, so it does not
+	 * keep the connection from being closed as idle.
+	 */
+	private boolean validate(PoolEntry entry)
 	{
-		return poolAggressiveness;
+		try
+		{
+			entry.connection.query(validationQuery).executeAsk();
+			entry.lastValidated = System.nanoTime();
+			entry.endpoint.recordSuccess();
+			return true;
+		}
+		catch (Throwable t)
+		{
+			Logger.warn("Closing connection that failed validation.", t);
+			recordFailure(entry.endpoint);
+			return false;
+		}
+	}
+	
+	/*
+	 * Validates idle connections that have not been used or validated for
+	 * the keepalive interval, closing the ones that fail. A connection is
+	 * claimed while it is tested so that no borrower gets it meanwhile.
+	 */
+	private void keepalive()
+	{
+		long interval = keepaliveInterval;
+		if (interval <= 0)
+			return;
+		long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		for (PoolEntry entry : bag.values())
+		{
+			if (shutdown)
+				return;
+			long lastGood = Math.max(entry.lastUsed, entry.lastValidated);
+			if (System.nanoTime() - lastGood < intervalNanos || !entry.claim())
+				continue;
+			if (validate(entry))
+				requite(entry);
+			else
+				discard(entry);
+		}
+	}
+	
+	/*
+	 * Logs connections that have been borrowed for longer than the leak
+	 * detection threshold, once each, and takes back the ones borrowed for
+	 * longer than the abandoned timeout. A connection that is taken back is
+	 * closed rather than reused, since its borrower may still be using it.
+	 */
+	private void detectLeaks()
+	{
+		long threshold = leakDetectionThreshold;
+		long abandoned = abandonedTimeout;
+		if (threshold <= 0 && abandoned <= 0)
+			return;
+		long now = System.nanoTime();
+		for (PoolEntry entry : bag.values())
+		{
+			PooledConnection lease = entry.lease;
+			if (lease == null || !entry.isInUse())
+				continue;
+			long held = TimeUnit.NANOSECONDS.toMillis(now - entry.leased);
+			if (abandoned > 0 && held >= abandoned)
+			{
+				// Fails if the borrower closed it in the meantime
+				if (lease.detach() == null)
+					continue;
+				Logger.warn("Reclaiming connection that was borrowed " + held
+						+ "ms ago and never closed.", entry.leaseTrace);
+				reclaimed.incrementAndGet();
+				endLease(entry, System.nanoTime());
+				discard(entry);
+			}
+			else if (threshold > 0 && held >= threshold && !entry.leakReported)
+			{
+				entry.leakReported = true;
+				Logger.warn("Possible connection leak, borrowed " + held
+						+ "ms ago and not closed yet.", entry.leaseTrace);
+			}
+		}
+	}
+	
+	/*
+	 * Returns the connections of streamed results that have not been read for
+	 * the stream idle timeout.
+	 */
+	private void expireStreams()
+	{
+		long timeout = streamIdleTimeout;
+		if (timeout <= 0)
+			return;
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		long now = System.nanoTime();
+		for (LeasedResult<?> stream : streams)
+		{
+			stream.expire(now, idleNanos);
+		}
+	}
+	
+	/*
+	 * Called by a streamed result once it has released its connection.
+	 */
+	void forget(LeasedResult<?> stream)
+	{
+		streams.remove(stream);
+	}
+	
+	/*
+	 * Wraps a borrowed connection for the caller, recording the lease when
+	 * leaks are tracked.
+	 */
+	private Connection lend(PoolEntry entry)
+	{
+		PreparedQueries queries = null;
+		int max = maxPreparedQueries;
+		if (max > 0)
+		{
+			queries = entry.queries;
+			if (queries == null)
+				entry.queries = queries = new PreparedQueries(max);
+		}
+		PooledConnection conn = new PooledConnection(this, entry.connection,
+				queries);
+		if (leakDetectionThreshold > 0 || abandonedTimeout > 0)
+		{
+			int rate = leakTraceSampleRate;
+			if (rate > 0 && leases.incrementAndGet() % rate == 0)
+				entry.leaseTrace = new Throwable("Connection borrowed here");
+			entry.leased = System.nanoTime();
+			entry.lease = conn;
+		}
+		return conn;
+	}
+	
+	/*
+	 * Takes a connection, queueing up behind earlier waiters when none is
+	 * available. Returns null if the pool is shut down or the timeout expires.
+	 */
+	private PoolEntry acquireEntry(boolean timed, long nanos)
+			throws StardogException, InterruptedException
+	{
+		PoolEntry entry = grabAvailable();
+		if (entry != null)
+			return entry;
+		
+		long deadline = timed ? System.nanoTime() + nanos : 0;
+		Waiter waiter = new Waiter(Thread.currentThread());
+		waiters.offer(waiter);
+		try
+		{
+			for (;;)
+			{
+				entry = waiter.handedOff();
+				if (entry != null)
+					return entry;
+				if (shutdown)
+					return waiter.cancel();
+				
+				// Look again now that we are queued, see release
+				PoolEndpoint endpoint = selectEndpoint();
+				entry = bag.borrow(endpoint);
+				if (entry == null)
+					entry = borrowElsewhere(endpoint);
+				if (entry != null)
+				{
+					PoolEntry handed = waiter.cancel();
+					if (handed != null)
+						release(handed);
+					return entry;
+				}
+				if (reserveCreation())
+				{
+					PoolEntry handed = waiter.cancel();
+					if (handed != null)
+					{
+						cancelCreation();
+						return handed;
+					}
+					// There may be room for more, let the next waiter look
+					wakeWaiter();
+					return openEntry(endpoint, false);
+				}
+				
+				if (timed)
+				{
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						return waiter.cancel();
+					LockSupport.parkNanos(this, remaining);
+				}
+				else
+				{
+					LockSupport.park(this);
+				}
+				if (Thread.interrupted())
+				{
+					entry = waiter.cancel();
+					if (entry != null)
+					{
+						Thread.currentThread().interrupt();
+						return entry;
+					}
+					throw new InterruptedException();
+				}
+			}
+		}
+		finally
+		{
+			if (waiter.isCancelled())
+				waiters.remove(waiter);
+		}
+	}
+	
+	/**
+	 * Borrows a connection from the pool, blocking until one becomes
+	 * available. With a read pool set, the connection is borrowed from the
+	 * pool it is routed to on first use, see <tt>setReadPool</tt>.
+	 * 
+	 * @return The connection or null if the pool has been terminated or the
+	 *         thread was interrupted while waiting.
+	 * @throws StardogException
+	 *             If a new connection could not be opened.
+	 */
+	public Connection connect() throws StardogException
+	{
+		if (shutdown)
+			return null;
+		StardogConnectionPool reads = readPool;
+		if (reads != null)
+			return new ReadWriteConnection(this, reads, -1);
+		return borrow();
+	}
+	
+	/*
+	 * Borrows a connection from this pool itself, ignoring the read pool.
+	 */
+	Connection borrow() throws StardogException
+	{
+		if (shutdown)
+			return null;
+		PoolEntry entry;
+		try
+		{
+			entry = acquire(false, 0);
+		}
+		catch (InterruptedException e)
+		{
+			if (!shutdown)
+				Logger.warn("Thread interrupted while waiting for connection",
+						e);
+			return null;
+		}
+		if (entry == null)
+			return null;
+		if (shutdown)
+		{
+			discard(entry);
+			return null;
+		}
+		return lend(entry);
+	}
+	
+	/**
+	 * Borrows a connection from the pool, waiting at most the given time for
+	 * one to become available. Waiting threads are served in the order they
+	 * arrived.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return The connection.
+	 * @throws ConnectionTimeoutException
+	 *             If no connection became available in time.
+	 * @throws StardogException
+	 *             If the pool has been terminated, the thread was interrupted
+	 *             or a new connection could not be opened.
+	 */
+	public Connection connect(long timeout, TimeUnit unit)
+			throws StardogException
+	{
+		if (shutdown)
+			throw new StardogException("Connection pool has been terminated.");
+		StardogConnectionPool reads = readPool;
+		if (reads != null)
+			return new ReadWriteConnection(this, reads, unit.toNanos(timeout));
+		return borrow(timeout, unit);
+	}
+	
+	/*
+	 * Borrows a connection from this pool itself with a timeout, ignoring the
+	 * read pool.
+	 */
+	Connection borrow(long timeout, TimeUnit unit) throws StardogException
+	{
+		if (shutdown)
+			throw new StardogException("Connection pool has been terminated.");
+		PoolEntry entry;
+		try
+		{
+			entry = acquire(true, unit.toNanos(timeout));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new StardogException(
+					"Thread interrupted while waiting for connection.");
+		}
+		if (shutdown)
+		{
+			if (entry != null)
+				discard(entry);
+			throw new StardogException("Connection pool has been terminated.");
+		}
+		if (entry == null)
+		{
+			MetricsRecorder recorder = metrics;
+			if (recorder != null)
+				recorder.timeouts.increment();
+			throw new ConnectionTimeoutException(
+					"Timed out waiting for a connection after "
+							+ unit.toMillis(timeout) + "ms ("
+							+ getPoolCount() + " of " + getMaxPoolSize()
+							+ " connections open).");
+		}
+		return lend(entry);
+	}
+	
+	/**
+	 * Borrows a connection on the pool's executor, so the calling thread does
+	 * not block while the pool is exhausted. Cancelling the future returns a
+	 * connection that was borrowed in the meantime to the pool. With a read
+	 * pool set, the read connection is borrowed before the future completes,
+	 * since reads are what the lease waits for; the write connection is still
+	 * borrowed on the first write.
+	 * 
+	 * @return A future for the connection, which is null if the pool has been
+	 *         terminated.
+	 */
+	public Future<Connection> connectAsync()
+	{
+		final AtomicReference<Connection> borrowed = new AtomicReference<Connection>();
+		final FutureTask<Connection> task = new FutureTask<Connection>(
+				new Callable<Connection>()
+				{
+					
+					@Override
+					public Connection call() throws StardogException
+					{
+						Connection conn = connect();
+						borrowed.set(conn);
+						if (conn instanceof ReadWriteConnection)
+						{
+							try
+							{
+								((ReadWriteConnection) conn).borrowReader();
+							}
+							catch (StardogException e)
+							{
+								closeQuietly(borrowed.getAndSet(null));
+								throw e;
+							}
+						}
+						return conn;
+					}
+				})
+		{
+			
+			@Override
+			protected void done()
+			{
+				if (isCancelled())
+					closeQuietly(borrowed.getAndSet(null));
+			}
+			
+			@Override
+			protected void set(Connection conn)
+			{
+				super.set(conn);
+				if (isCancelled())
+					closeQuietly(borrowed.getAndSet(null));
+			}
+		};
+		getExecutor().execute(task);
+		return task;
+	}
+	
+	private void closeQuietly(Connection conn)
+	{
+		if (conn == null)
+			return;
+		try
+		{
+			conn.close();
+		}
+		catch (StardogException e)
+		{
+			Logger.warn("Unable to return connection of cancelled request.", e);
+		}
+	}
+	
+	/**
+	 * Borrows a connection and streams the statements matching a pattern from
+	 * it, where null matches anything. The iteration owns the connection and
+	 * returns it to the pool once it is read to the end or closed, or once it
+	 * has not been read for the stream idle timeout.
+	 * 
+	 * @throws StardogException
+	 *             If the pool has been terminated, the thread was interrupted
+	 *             or the statements could not be read.
+	 */
+	public Iteration<Statement, StardogException> stream(Resource subj,
+			URI pred, Value obj, Resource ctxt) throws StardogException
+	{
+		Connection conn = connectOrThrow();
+		LeasedIteration<Statement> stream = null;
+		try
+		{
+			stream = new LeasedIteration<Statement>(this, conn, conn.get()
+				.iterator(subj, pred, obj, ctxt));
+			streams.add(stream);
+			return stream;
+		}
+		finally
+		{
+			if (stream == null)
+				conn.close();
+		}
+	}
+	
+	/**
+	 * Borrows a connection and runs a SELECT query on it. The result owns the
+	 * connection and returns it to the pool once it is read to the end or
+	 * closed, or once it has not been read for the stream idle timeout. When
+	 * the pool materializes results, the connection is returned before this
+	 * returns.
+	 * 
+	 * @throws StardogException
+	 *             If the pool has been terminated, the thread was interrupted
+	 *             or the query failed.
+	 */
+	public TupleQueryResult select(String query) throws StardogException
+	{
+		return select(new QueryTemplate(query), Collections
+			.<String, Object> emptyMap());
+	}
+	
+	/**
+	 * Borrows a connection and runs a SELECT query on it with the given
+	 * parameters bound, see <tt>select(String)</tt>.
+	 */
+	public TupleQueryResult select(QueryTemplate query,
+			Map<String, ?> parameters) throws StardogException
+	{
+		Connection conn = connectOrThrow();
+		TupleQueryResult result = null;
+		try
+		{
+			result = query.select(conn, parameters);
+			if (result instanceof ColumnarTupleQueryResult)
+			{
+				// read already, the connection is not needed any more
+				conn.close();
+				return result;
+			}
+			LeasedTupleQueryResult stream = new LeasedTupleQueryResult(this,
+					conn, result);
+			streams.add(stream);
+			return stream;
+		}
+		finally
+		{
+			if (result == null)
+				conn.close();
+		}
+	}
+	
+	/*
+	 * Borrows like connect, but throws where connect returns null.
+	 */
+	Connection connectOrThrow() throws StardogException
+	{
+		Connection conn = connect();
+		if (conn == null)
+			throw new StardogException(
+					"Connection pool has been terminated or the thread was interrupted.");
+		return conn;
+	}
+	
+	/**
+	 * Sets the executor that runs asynchronous requests such as
+	 * <tt>connectAsync</tt> and <tt>PooledQuery.executeAskAsync</tt>. The
+	 * pool does not shut down an executor set here.
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		ExecutorService previous = this.executor.getAndSet(executor);
+		if (previous != null && ownsExecutor)
+			previous.shutdown();
+		ownsExecutor = false;
+	}
+	
+	/**
+	 * @return The executor for asynchronous requests. Unless one was set, this
+	 *         is a cached pool of daemon threads that is shut down with the
+	 *         pool.
+	 */
+	public ExecutorService getExecutor()
+	{
+		ExecutorService current = executor.get();
+		if (current != null)
+			return current;
+		ExecutorService created = Executors
+			.newCachedThreadPool(new ThreadFactory()
+			{
+				
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "StardogConnectionPool-async");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		if (executor.compareAndSet(null, created))
+		{
+			ownsExecutor = true;
+			return created;
+		}
+		created.shutdown();
+		return executor.get();
+	}
+	
+	protected void returnToPool(Connection conn) throws StardogException
+	{
+		PoolEntry entry = bag.get(conn);
+		if (entry == null || !entry.isInUse())
+		{
+			// This was not managed, so just close it.
+			conn.close();
+			return;
+		}
+		long now = System.nanoTime();
+		endLease(entry, now);
+		if (shutdown || !conn.isOpen() || isExpired(entry, now)
+				|| entry.endpoint.isEjected())
+		{
+			discard(entry);
+			return;
+		}
+		release(entry);
+	}
+	
+	/*
+	 * Clears the lease of a borrowed entry and records how long it was held,
+	 * whether it was returned or taken back from its borrower.
+	 */
+	private void endLease(PoolEntry entry, long now)
+	{
+		if (entry.lease != null)
+		{
+			entry.lease = null;
+			entry.leaseTrace = null;
+			entry.leakReported = false;
+		}
+		PoolSizeController controller = sizeController;
+		if (controller != null && entry.borrowed != 0)
+		{
+			controller.recordHold(now - entry.borrowed);
+		}
+		MetricsRecorder recorder = metrics;
+		if (recorder != null && entry.borrowed != 0)
+		{
+			recorder.holdTime.record(now - entry.borrowed);
+		}
+		if (entry.counted)
+		{
+			entry.counted = false;
+			entry.endpoint.outstanding.decrementAndGet();
+			entry.endpoint.recordLatency(now - entry.borrowed);
+		}
+	}
+	
+	/*
+	 * Whether terminatePool has been called.
+	 */
+	boolean isTerminated()
+	{
+		return shutdown;
+	}
+	
+	public void terminatePool()
+	{
+		shutdown = true;
+		if (watcherThread != null)
+			watcherThread.interrupt();
+		for (Waiter waiter : waiters)
+		{
+			LockSupport.unpark(waiter.thread);
+		}
+		// Closed while their connections are still open
+		for (LeasedResult<?> stream : streams)
+		{
+			stream.terminate();
+		}
+		streams.clear();
+		for (PoolEntry entry : bag.values())
+		{
+			discard(entry);
+		}
+		ExecutorService current = executor.get();
+		if (current != null && ownsExecutor)
+			current.shutdown();
+		unregisterMBean();
+	}
+	
+	public void setMaxPoolSize(int maxPoolSize)
+	{
+		if (maxPoolSize < 1)
+			throw new IllegalArgumentException("Max pool size must be >= 1");
+		this.maxPoolSize = maxPoolSize;
+		wakeWaiter();
+	}
+	
+	public int getMaxPoolSize()
+	{
+		return maxPoolSize;
+	}
+	
+	public void setMaxConcurrentCreations(int maxConcurrentCreations)
+	{
+		if (maxConcurrentCreations < 1)
+			throw new IllegalArgumentException(
+					"Max concurrent creations must be >= 1");
+		this.maxConcurrentCreations = maxConcurrentCreations;
+		wakeWaiter();
+	}
+	
+	public int getMaxConcurrentCreations()
+	{
+		return maxConcurrentCreations;
+	}
+	
+	/**
+	 * Sets the number of idle connections the pool keeps open. The watcher
+	 * does not close idle connections below this count and opens new ones in
+	 * the background when it drops below it. Call <tt>prefill</tt> to open them
+	 * before traffic arrives.
+	 */
+	public void setMinIdle(int minIdle)
+	{
+		if (minIdle < 0)
+			throw new IllegalArgumentException("Min idle must be >= 0");
+		this.minIdle = minIdle;
+		wakeWatcher();
+	}
+	
+	public int getMinIdle()
+	{
+		return minIdle;
+	}
+	
+	/**
+	 * Turns adaptive sizing on or off. When on, the pool tracks the arrival
+	 * rate, hold time and wait time of requests and keeps about as many
+	 * connections open as that demand needs, between minIdle and maxPoolSize.
+	 * Connections are opened ahead of rising demand and idle connections
+	 * beyond the target are closed without waiting for the idle timeout.
+	 */
+	public void setAdaptiveSizing(boolean adaptiveSizing)
+	{
+		if (adaptiveSizing == (sizeController != null))
+			return;
+		if (adaptiveSizing)
+		{
+			targetPoolSize = minIdle;
+			sizeController = new PoolSizeController();
+		}
+		else
+		{
+			sizeController = null;
+		}
+		wakeWatcher();
+	}
+	
+	public boolean isAdaptiveSizing()
+	{
+		return sizeController != null;
+	}
+	
+	/**
+	 * @return The pool size adaptive sizing currently aims for, or the max pool
+	 *         size if adaptive sizing is off.
+	 */
+	public int getTargetPoolSize()
+	{
+		return sizeController != null ? targetPoolSize : maxPoolSize;
+	}
+	
+	/**
+	 * Turns validation of connections on borrow on or off. A connection that
+	 * fails validation is closed and another one is borrowed in its place.
+	 * Connections that were used or validated within the validation grace
+	 * period are not validated again.
+	 */
+	public void setTestOnBorrow(boolean testOnBorrow)
+	{
+		this.testOnBorrow = testOnBorrow;
+	}
+	
+	public boolean isTestOnBorrow()
+	{
+		return testOnBorrow;
+	}
+	
+	/**
+	 * Sets the ASK query used to validate connections. The default is
+	 * <tt>ASK {}</tt>, which does not touch any data.
+	 */
+	public void setValidationQuery(String validationQuery)
+	{
+		if (validationQuery == null)
+			throw new IllegalArgumentException(
+					"Validation query must not be null");
+		this.validationQuery = validationQuery;
+	}
+	
+	public String getValidationQuery()
+	{
+		return validationQuery;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds after a connection was last used or
+	 * validated during which it is not validated on borrow. The default is
+	 * 1000.
+	 */
+	public void setValidationGracePeriod(long validationGracePeriod)
+	{
+		if (validationGracePeriod < 0)
+			throw new IllegalArgumentException(
+					"Validation grace period must be >= 0");
+		this.validationGracePeriod = validationGracePeriod;
+	}
+	
+	public long getValidationGracePeriod()
+	{
+		return validationGracePeriod;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds after which the watcher validates an
+	 * idle connection, closing it if it fails. 0 turns keepalive off, which is
+	 * the default.
+	 */
+	public void setKeepaliveInterval(long keepaliveInterval)
+	{
+		if (keepaliveInterval != 0 && keepaliveInterval < 100)
+			throw new IllegalArgumentException(
+					"Keepalive interval must be 0 or at least 100");
+		this.keepaliveInterval = keepaliveInterval;
+		wakeWatcher();
+	}
+	
+	public long getKeepaliveInterval()
+	{
+		return keepaliveInterval;
+	}
+	
+	/**
+	 * Turns the thread affinity of connections on or off. When on, which is the
+	 * default, a thread first tries the connection it returned last. Turn it
+	 * off when each request runs on a new thread, e.g. a virtual thread, where
+	 * the thread local would only cost memory.
+	 */
+	public void setThreadAffinity(boolean threadAffinity)
+	{
+		bag.setThreadAffinity(threadAffinity);
+	}
+	
+	public boolean isThreadAffinity()
+	{
+		return bag.isThreadAffinity();
+	}
+	
+	public void setConnConfig(ConnectionConfiguration connConfig)
+	{
+		this.connConfig = connConfig;
+	}
+	
+	public ConnectionConfiguration getConnConfig()
+	{
+		return connConfig;
+	}
+	
+	/**
+	 * Splits reads from writes. Connections from this pool then run
+	 * <tt>query</tt>, <tt>get</tt> and <tt>size</tt> on a connection borrowed
+	 * from the read pool, and everything that changes data on a connection
+	 * borrowed from this pool. Once a connection has written, its reads go to
+	 * this pool as well so that they see the write. Set null to turn the split
+	 * off.
+	 */
+	public void setReadPool(StardogConnectionPool readPool)
+	{
+		if (readPool == this)
+			throw new IllegalArgumentException(
+					"Read pool must not be the pool itself");
+		this.readPool = readPool;
+	}
+	
+	public StardogConnectionPool getReadPool()
+	{
+		return readPool;
+	}
+	
+	/**
+	 * Sets the cache that <tt>executeAsk</tt> and <tt>executeSelect</tt> of
+	 * queries on this pool's connections answer from, or null to turn caching
+	 * off. Commits of changes made through the pool's connections empty it.
+	 * Give a read pool the same cache as this pool, or commits here will not
+	 * reach it.
+	 */
+	public void setQueryCache(QueryResultCache queryCache)
+	{
+		this.queryCache = queryCache;
+	}
+	
+	public QueryResultCache getQueryCache()
+	{
+		return queryCache;
+	}
+	
+	/**
+	 * Sets how many parsed queries each connection keeps for reuse by later
+	 * borrowers asking the same query text, 0 to parse every query anew. A
+	 * kept query is only reused by borrowers that bind at least the
+	 * parameters, limit and offset that were bound on it before, since
+	 * Stardog cannot unbind them; others get a fresh query.
+	 */
+	public void setMaxPreparedQueries(int maxPreparedQueries)
+	{
+		if (maxPreparedQueries < 0)
+			throw new IllegalArgumentException(
+					"maxPreparedQueries must not be negative");
+		this.maxPreparedQueries = maxPreparedQueries;
+	}
+	
+	public int getMaxPreparedQueries()
+	{
+		return maxPreparedQueries;
+	}
+	
+	/**
+	 * Makes <tt>executeSelect</tt> read results completely into a compact
+	 * <tt>ColumnarTupleQueryResult</tt> before returning them. Connections can
+	 * then be closed before the rows are consumed, and
+	 * <tt>executeSelectAsync</tt> returns its connection to the pool as soon
+	 * as the result is read instead of when it is closed. Results not cached
+	 * by a <tt>QueryResultCache</tt> only.
+	 */
+	public void setMaterializeResults(boolean materializeResults)
+	{
+		this.materializeResults = materializeResults;
+	}
+	
+	public boolean isMaterializeResults()
+	{
+		return materializeResults;
+	}
+	
+	/**
+	 * Sets the bytes of rows a materialized result keeps on the heap before it
+	 * keeps further rows outside of it (default 16MB).
+	 */
+	public void setResultSpillThreshold(long resultSpillThreshold)
+	{
+		if (resultSpillThreshold < 0)
+			throw new IllegalArgumentException(
+					"resultSpillThreshold must not be negative");
+		this.resultSpillThreshold = resultSpillThreshold;
+	}
+	
+	public long getResultSpillThreshold()
+	{
+		return resultSpillThreshold;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds a result of <tt>stream</tt> or
+	 * <tt>select</tt> may go unread before its connection is returned to the
+	 * pool, after which reading it fails. 0 keeps connections until the
+	 * results are read or closed.
+	 */
+	public void setStreamIdleTimeout(long streamIdleTimeout)
+	{
+		if (streamIdleTimeout < 0)
+			throw new IllegalArgumentException(
+					"streamIdleTimeout must not be negative");
+		this.streamIdleTimeout = streamIdleTimeout;
+		wakeWatcher();
+	}
+	
+	public long getStreamIdleTimeout()
+	{
+		return streamIdleTimeout;
+	}
+	
+	/**
+	 * Sets how many statements iterations of the getters of this pool's
+	 * connections read ahead of their consumer, 0 to read on the consumer's
+	 * thread. Reading ahead is done on the pool's executor, one task per open
+	 * iteration, which waits while the consumer is behind; on a JVM with
+	 * virtual threads, set an executor that starts a virtual thread per task
+	 * so the waiting does not take up platform threads. Iterations still open
+	 * are closed with their connection.
+	 */
+	public void setPrefetchSize(int prefetchSize)
+	{
+		if (prefetchSize < 0 || prefetchSize > 1 << 30)
+			throw new IllegalArgumentException(
+					"prefetchSize must be between 0 and 2^30");
+		this.prefetchSize = prefetchSize;
+	}
+	
+	public int getPrefetchSize()
+	{
+		return prefetchSize;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds an iteration waits for the executor to
+	 * start reading ahead before its consumer reads the source itself, for
+	 * the rest of the iteration. It should be longer than tasks usually wait
+	 * in the executor's queue; <tt>getPrefetchFallbackCount</tt> tells how
+	 * often it runs out. The default is 50.
+	 */
+	public void setPrefetchStartTimeout(long prefetchStartTimeout)
+	{
+		if (prefetchStartTimeout < 0)
+			throw new IllegalArgumentException(
+					"prefetchStartTimeout must not be negative");
+		this.prefetchStartTimeout = prefetchStartTimeout;
+	}
+	
+	public long getPrefetchStartTimeout()
+	{
+		return prefetchStartTimeout;
+	}
+	
+	/**
+	 * @return The number of iterations that stopped reading ahead and were
+	 *         read on their consumer's thread instead, because the executor
+	 *         did not start them within the prefetch start timeout, rejected
+	 *         them or interrupted them.
+	 */
+	public long getPrefetchFallbackCount()
+	{
+		return prefetchFallbacks.get();
+	}
+	
+	AtomicLong prefetchFallbacks()
+	{
+		return prefetchFallbacks;
+	}
+	
+	/**
+	 * @return The number of results of <tt>stream</tt> and <tt>select</tt>
+	 *         that still hold a connection.
+	 */
+	public int getOpenStreamCount()
+	{
+		return streams.size();
+	}
+	
+	/**
+	 * Adds a replica to open connections to besides the server of the
+	 * connConfig. Borrows are spread over all endpoints by their load.
+	 */
+	public void addEndpoint(ConnectionConfiguration config)
+	{
+		if (config == null)
+			throw new IllegalArgumentException("Endpoint must not be null");
+		endpoints.add(new PoolEndpoint(config));
+		wakeWatcher();
+	}
+	
+	/**
+	 * @return The number of endpoints, including the one of the connConfig.
+	 */
+	public int getEndpointCount()
+	{
+		return endpoints.size();
+	}
+	
+	/**
+	 * @return The number of endpoints that are currently ejected.
+	 */
+	public int getEjectedEndpointCount()
+	{
+		int count = 0;
+		for (PoolEndpoint endpoint : endpoints)
+		{
+			if (endpoint.isEjected())
+				count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Sets the number of failed connects or validations in a row after which
+	 * an endpoint is ejected. The default is 3.
+	 */
+	public void setEjectionThreshold(int ejectionThreshold)
+	{
+		if (ejectionThreshold < 1)
+			throw new IllegalArgumentException(
+					"Ejection threshold must be >= 1");
+		this.ejectionThreshold = ejectionThreshold;
+	}
+	
+	public int getEjectionThreshold()
+	{
+		return ejectionThreshold;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds an ejected endpoint waits before it is
+	 * probed. The default is 30,000.
+	 */
+	public void setEjectionTime(long ejectionTime)
+	{
+		if (ejectionTime < 100)
+			throw new IllegalArgumentException(
+					"Ejection time must be at least 100");
+		this.ejectionTime = ejectionTime;
+		wakeWatcher();
+	}
+	
+	public long getEjectionTime()
+	{
+		return ejectionTime;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds a connection may stay idle before it is
+	 * closed. Idle connections are never closed below minIdle.
+	 */
+	public void setIdleTimeout(long idleTimeout)
+	{
+		if (idleTimeout < 100)
+			throw new IllegalArgumentException(
+					"Idle timeout must be at least 100");
+		this.idleTimeout = idleTimeout;
+		wakeWatcher();
+	}
+	
+	public long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds after which a connection is retired,
+	 * less a random variance of up to 10% per connection. 0 disables
+	 * retirement.
+	 */
+	public void setMaxLifetime(long maxLifetime)
+	{
+		if (maxLifetime != 0 && maxLifetime < 100)
+			throw new IllegalArgumentException(
+					"Max lifetime must be 0 or at least 100");
+		this.maxLifetime = maxLifetime;
+		wakeWatcher();
+	}
+	
+	public long getMaxLifetime()
+	{
+		return maxLifetime;
+	}
+	
+	/**
+	 * @deprecated Use <tt>setIdleTimeout</tt>, which this now delegates to.
+	 */
+	@Deprecated
+	public void setPoolAggressiveness(long poolAggressiveness)
+	{
+		if (poolAggressiveness < 100)
+			throw new IllegalArgumentException(
+					"Pool aggressiveness must be at least 100");
+		setIdleTimeout(poolAggressiveness);
+	}
+	
+	/**
+	 * @deprecated Use <tt>getIdleTimeout</tt>.
+	 */
+	@Deprecated
+	public long getPoolAggressiveness()
+	{
+		return getIdleTimeout();
 	}
 	
+	/**
+	 * @return The number of connections held by the pool, including the ones
+	 *         that are currently being opened.
+	 */
 	public int getPoolCount()
 	{
-		return poolCount;
+		return poolCount.get();
+	}
+	
+	public int getPendingCreations()
+	{
+		return pendingCreations.get();
+	}
+	
+	/**
+	 * Sets the number of milli-seconds after which a connection that has not
+	 * been closed is logged as a possible leak. 0 turns this off, which is the
+	 * default.
+	 */
+	public void setLeakDetectionThreshold(long leakDetectionThreshold)
+	{
+		if (leakDetectionThreshold != 0 && leakDetectionThreshold < 100)
+			throw new IllegalArgumentException(
+					"Leak detection threshold must be 0 or at least 100");
+		this.leakDetectionThreshold = leakDetectionThreshold;
+		wakeWatcher();
+	}
+	
+	public long getLeakDetectionThreshold()
+	{
+		return leakDetectionThreshold;
+	}
+	
+	/**
+	 * Sets how often the stack of the borrower is recorded for leak reports:
+	 * every n-th borrow, 1 for every borrow or 0 for none. Recording a stack
+	 * is costly, so the default is 10.
+	 */
+	public void setLeakTraceSampleRate(int leakTraceSampleRate)
+	{
+		if (leakTraceSampleRate < 0)
+			throw new IllegalArgumentException(
+					"Leak trace sample rate must be >= 0");
+		this.leakTraceSampleRate = leakTraceSampleRate;
+	}
+	
+	public int getLeakTraceSampleRate()
+	{
+		return leakTraceSampleRate;
+	}
+	
+	/**
+	 * Sets the number of milli-seconds after which a connection that has not
+	 * been closed is taken back. Its physical connection is closed and the
+	 * borrower's wrapper fails from then on. 0 turns this off, which is the
+	 * default.
+	 */
+	public void setAbandonedTimeout(long abandonedTimeout)
+	{
+		if (abandonedTimeout != 0 && abandonedTimeout < 100)
+			throw new IllegalArgumentException(
+					"Abandoned timeout must be 0 or at least 100");
+		this.abandonedTimeout = abandonedTimeout;
+		wakeWatcher();
+	}
+	
+	public long getAbandonedTimeout()
+	{
+		return abandonedTimeout;
+	}
+	
+	/**
+	 * Turns the collection of latency histograms on or off. Counts and sizes
+	 * are always available from <tt>getMetrics</tt>; the histograms cost two
+	 * clock reads per borrow and per operation. Turning metrics on again starts
+	 * from empty histograms.
+	 */
+	public void setMetricsEnabled(boolean metricsEnabled)
+	{
+		if (metricsEnabled == (metrics != null))
+			return;
+		metrics = metricsEnabled ? new MetricsRecorder() : null;
+	}
+	
+	public boolean isMetricsEnabled()
+	{
+		return metrics != null;
+	}
+	
+	/*
+	 * The recorder the pooled wrappers time their operations with, or null.
+	 */
+	MetricsRecorder getMetricsRecorder()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Takes a snapshot of the pool's state and, when metrics are enabled, the
+	 * latencies recorded so far.
+	 */
+	public PoolMetrics getMetrics()
+	{
+		int waiting = 0;
+		for (Waiter waiter : waiters)
+		{
+			if (waiter.isWaiting())
+				waiting++;
+		}
+		MetricsRecorder recorder = metrics;
+		if (recorder == null)
+			recorder = new MetricsRecorder();
+		return new PoolMetrics(poolCount.get(), bag.getIdleCount(),
+				pendingCreations.get(), waiting, maxPoolSize,
+				recorder.timeouts.sum(), reclaimed.get(),
+				recorder.borrowWait.snapshot(), recorder.holdTime.snapshot(),
+				recorder.creationTime.snapshot(),
+				recorder.snapshotOperations());
+	}
+	
+	/**
+	 * Registers a <tt>StardogConnectionPoolMXBean</tt> for this pool with the
+	 * platform MBean server, as
+	 * <tt>com.pancaketech.stardog:type=StardogConnectionPool,name=</tt>name,
+	 * and turns metrics on. The bean is unregistered when the pool is
+	 * terminated.
+	 * 
+	 * @throws StardogException
+	 *             If the bean could not be registered, e.g. because the name
+	 *             is taken.
+	 */
+	public void registerMBean(String name) throws StardogException
+	{
+		unregisterMBean();
+		try
+		{
+			ObjectName objectName = new ObjectName(
+					"com.pancaketech.stardog:type=StardogConnectionPool,name="
+							+ ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new PoolMXBean(this), objectName);
+			mbeanName = objectName;
+		}
+		catch (JMException e)
+		{
+			throw new StardogException("Unable to register pool MBean: "
+					+ e.getMessage(), e);
+		}
+		setMetricsEnabled(true);
+	}
+	
+	public void unregisterMBean()
+	{
+		ObjectName objectName = mbeanName;
+		if (objectName == null)
+			return;
+		mbeanName = null;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		}
+		catch (JMException e)
+		{
+			Logger.warn("Unable to unregister pool MBean.", e);
+		}
+	}
+	
+	/**
+	 * @return The number of connections taken back because they were borrowed
+	 *         for longer than the abandoned timeout.
+	 */
+	public long getReclaimedCount()
+	{
+		return reclaimed.get();
+	}
+	
+	/*
+	 * A thread blocked in acquire. The slot is filled exactly once, either
+	 * with a connection handed over by release or with the cancelled marker
+	 * when the waiter gives up or finds a connection by itself.
+	 */
+	private static final class Waiter
+	{
+		private static final PoolEntry Cancelled = new PoolEntry(null, null);
+		
+		final Thread thread;
+		private final AtomicReference<PoolEntry> slot = new AtomicReference<PoolEntry>();
+		
+		Waiter(Thread thread)
+		{
+			this.thread = thread;
+		}
+		
+		boolean fulfill(PoolEntry entry)
+		{
+			if (!slot.compareAndSet(null, entry))
+				return false;
+			LockSupport.unpark(thread);
+			return true;
+		}
+		
+		PoolEntry handedOff()
+		{
+			PoolEntry entry = slot.get();
+			return entry == Cancelled ? null : entry;
+		}
+		
+		/*
+		 * Returns the connection that was handed over before the waiter could
+		 * be cancelled, if any.
+		 */
+		PoolEntry cancel()
+		{
+			if (slot.compareAndSet(null, Cancelled))
+				return null;
+			return handedOff();
+		}
+		
+		boolean isWaiting()
+		{
+			return slot.get() == null;
+		}
+		
+		boolean isCancelled()
+		{
+			return slot.get() == Cancelled;
+		}
 	}
 }
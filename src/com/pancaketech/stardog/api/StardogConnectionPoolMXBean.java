@@ -0,0 +1,65 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Map;
+
+/**
+ * The management interface a <tt>StardogConnectionPool</tt> registers with
+ * <tt>registerMBean</tt>. Every attribute is read from a fresh snapshot, see
+ * <tt>PoolMetrics</tt>.
+ */
+public interface StardogConnectionPoolMXBean
+{
+	
+	int getPoolCount();
+	
+	int getIdleCount();
+	
+	int getActiveCount();
+	
+	int getPendingCreations();
+	
+	int getWaiterCount();
+	
+	int getMaxPoolSize();
+	
+	long getTimeoutCount();
+	
+	long getReclaimedCount();
+	
+	long getPrefetchFallbackCount();
+	
+	LatencySnapshot getBorrowWait();
+	
+	LatencySnapshot getHoldTime();
+	
+	LatencySnapshot getCreationTime();
+	
+	Map<String, LatencySnapshot> getOperations();
+}
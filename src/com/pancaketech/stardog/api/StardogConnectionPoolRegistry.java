@@ -0,0 +1,305 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.ConnectionConfiguration;
+
+/**
+ * Keeps one connection pool per database and user and caps the number of
+ * connections they hold together. Pools are created the first time they are
+ * asked for. When the cap is reached, a pool that needs another connection
+ * closes the longest unused idle connection of another pool, so idle pools
+ * give their share to busy ones. A single watcher thread runs the
+ * housekeeping of all pools.
+ * 
+ * <p>
+ * Pools created by the registry start with a max pool size equal to the max
+ * total connections. They can be tuned through <tt>getPool</tt> like any other
+ * pool. A single pool is terminated with <tt>removePool</tt>; one terminated
+ * directly is replaced by a new pool the next time it is asked for.
+ * </p>
+ */
+public class StardogConnectionPoolRegistry
+{
+	
+	private static final int DefaultMaxTotalConnections = 50;
+	
+	private final ConcurrentMap<PoolKey, StardogConnectionPool> pools = new ConcurrentHashMap<PoolKey, StardogConnectionPool>();
+	private final AtomicInteger totalConnections = new AtomicInteger();
+	private volatile int maxTotalConnections = DefaultMaxTotalConnections;
+	private volatile boolean shutdown = false;
+	private Thread watcherThread;
+	
+	public StardogConnectionPoolRegistry()
+	{
+		watcherThread = new Thread(new Runnable()
+		{
+			
+			@Override
+			public void run()
+			{
+				watch();
+			}
+		});
+		watcherThread.setName("StardogConnectionPoolRegistry");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+	
+	private void watch()
+	{
+		for (;;)
+		{
+			long period = 1000;
+			for (StardogConnectionPool pool : pools.values())
+			{
+				period = Math.min(period, pool.getHousekeepingPeriod());
+			}
+			try
+			{
+				Thread.sleep(period);
+			}
+			catch (InterruptedException e)
+			{}
+			
+			if (shutdown)
+			{
+				break;
+			}
+			
+			for (StardogConnectionPool pool : pools.values())
+			{
+				pool.housekeep();
+			}
+			// Idle connections of other pools may have become free to take
+			for (StardogConnectionPool pool : pools.values())
+			{
+				pool.wakeWaiter();
+			}
+		}
+	}
+	
+	void wakeWatcher()
+	{
+		watcherThread.interrupt();
+	}
+	
+	/**
+	 * Returns the pool for a database and user, creating it with the given
+	 * configuration if there is none yet or the one there was has been
+	 * terminated. The configuration is ignored if the pool exists.
+	 * 
+	 * @param database
+	 *            The name of the database.
+	 * @param user
+	 *            The user the configuration logs in as.
+	 * @param connConfig
+	 *            The configuration to open connections with.
+	 * @return The pool or null if the registry has been terminated.
+	 */
+	public StardogConnectionPool getPool(String database, String user,
+			ConnectionConfiguration connConfig)
+	{
+		if (shutdown)
+			return null;
+		PoolKey key = new PoolKey(database, user);
+		for (;;)
+		{
+			StardogConnectionPool pool = pools.get(key);
+			if (pool != null && !pool.isTerminated())
+				return pool;
+			StardogConnectionPool created = createPool();
+			created.setConnConfig(connConfig);
+			created.setMaxPoolSize(maxTotalConnections);
+			if (pool == null ? pools.putIfAbsent(key, created) == null : pools
+				.replace(key, pool, created))
+			{
+				if (shutdown)
+					created.terminatePool();
+				return created;
+			}
+		}
+	}
+	
+	/**
+	 * Terminates the pool for a database and user and forgets it, so that the
+	 * next <tt>getPool</tt> creates a new one.
+	 * 
+	 * @return Whether there was a pool to remove.
+	 */
+	public boolean removePool(String database, String user)
+	{
+		StardogConnectionPool pool = pools.remove(new PoolKey(database, user));
+		if (pool == null)
+			return false;
+		pool.terminatePool();
+		return true;
+	}
+	
+	/**
+	 * Creates an empty pool attached to this registry.
+	 */
+	protected StardogConnectionPool createPool()
+	{
+		return new StardogConnectionPool(this);
+	}
+	
+	/**
+	 * Borrows a connection from the pool for a database and user, see
+	 * <tt>getPool</tt>.
+	 */
+	public Connection connect(String database, String user,
+			ConnectionConfiguration connConfig) throws StardogException
+	{
+		StardogConnectionPool pool = getPool(database, user, connConfig);
+		return pool != null ? pool.connect() : null;
+	}
+	
+	/*
+	 * Takes room for one more connection for the given pool, closing an idle
+	 * connection of another pool if the limit has been reached.
+	 */
+	boolean reserveConnection(StardogConnectionPool requester)
+	{
+		for (;;)
+		{
+			int count = totalConnections.get();
+			if (count < maxTotalConnections)
+			{
+				if (totalConnections.compareAndSet(count, count + 1))
+					return true;
+				continue;
+			}
+			if (!reclaimIdle(requester))
+				return false;
+		}
+	}
+	
+	private boolean reclaimIdle(StardogConnectionPool requester)
+	{
+		for (StardogConnectionPool pool : pools.values())
+		{
+			if (pool != requester && pool.evictIdle())
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Gives back the room of a closed connection and lets every pool with
+	 * waiting threads try to use it.
+	 */
+	void releaseConnection()
+	{
+		totalConnections.decrementAndGet();
+		for (StardogConnectionPool pool : pools.values())
+		{
+			pool.wakeWaiter();
+		}
+	}
+	
+	/**
+	 * Terminates every pool and stops the watcher.
+	 */
+	public void terminate()
+	{
+		shutdown = true;
+		watcherThread.interrupt();
+		for (StardogConnectionPool pool : pools.values())
+		{
+			pool.terminatePool();
+		}
+	}
+	
+	/**
+	 * Sets the number of connections all pools may hold together.
+	 */
+	public void setMaxTotalConnections(int maxTotalConnections)
+	{
+		if (maxTotalConnections < 1)
+			throw new IllegalArgumentException(
+					"Max total connections must be >= 1");
+		this.maxTotalConnections = maxTotalConnections;
+		for (StardogConnectionPool pool : pools.values())
+		{
+			pool.wakeWaiter();
+		}
+	}
+	
+	public int getMaxTotalConnections()
+	{
+		return maxTotalConnections;
+	}
+	
+	/**
+	 * @return The number of connections held by all pools, including the ones
+	 *         that are currently being opened.
+	 */
+	public int getTotalConnections()
+	{
+		return totalConnections.get();
+	}
+	
+	private static final class PoolKey
+	{
+		private final String database;
+		private final String user;
+		
+		PoolKey(String database, String user)
+		{
+			if (database == null)
+				throw new IllegalArgumentException("Database must not be null");
+			this.database = database;
+			this.user = user;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof PoolKey))
+				return false;
+			PoolKey other = (PoolKey) obj;
+			return database.equals(other.database)
+					&& (user == null ? other.user == null : user
+						.equals(other.user));
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return database.hashCode() * 31
+					+ (user == null ? 0 : user.hashCode());
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+Copyright 2011 Pancake Technology, LLC. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY PANCAKE TECHNOLOGY, LLC ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL PANCAKE TECHNOLOGY, LLC OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Pancake Technology, LLC.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over several cells, so that threads
+ * counting at the same time rarely touch the same cache line. Reading the sum
+ * is comparatively slow and not atomic with respect to concurrent updates,
+ * which is fine for statistics.
+ */
+final class StripedCounter
+{
+	
+	/*
+	 * Number of cells, a power of two that is at least the number of
+	 * processors.
+	 */
+	static final int Stripes = stripes();
+	/*
+	 * Longs per 64 byte cache line, so that each cell gets a line of its own.
+	 */
+	private static final int Padding = 8;
+	
+	private final AtomicLongArray cells = new AtomicLongArray(Stripes
+			* Padding);
+	
+	private static int stripes()
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+		int stripes = Integer.highestOneBit(processors);
+		if (stripes < processors)
+			stripes <<= 1;
+		return Math.min(stripes, 64);
+	}
+	
+	/*
+	 * Picks the cell of the current thread. Thread ids are handed out in
+	 * sequence, so they are mixed to spread neighbours apart.
+	 */
+	static int stripe()
+	{
+		long id = Thread.currentThread().getId();
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (Stripes - 1);
+	}
+	
+	void add(long x)
+	{
+		cells.getAndAdd(stripe() * Padding, x);
+	}
+	
+	void increment()
+	{
+		add(1);
+	}
+	
+	long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < Stripes; i++)
+		{
+			sum += cells.get(i * Padding);
+		}
+		return sum;
+	}
+}
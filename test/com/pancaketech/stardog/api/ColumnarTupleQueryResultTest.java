@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static com.pancaketech.stardog.api.FakeStardog.count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Tests reading SELECT results into columns, and a pool handing out such
+ * results.
+ */
+public class ColumnarTupleQueryResultTest {
+
+	@Test
+	public void testDrain() throws Exception {
+		List<BindingSet> rows = new ArrayList<BindingSet>();
+		for (int i = 0; i < 100; i++) {
+			MapBindingSet row = new MapBindingSet();
+			row.addBinding("s", uri(i % 10));
+			if (i % 2 == 0) {
+				row.addBinding("o", uri(i));
+			}
+			rows.add(row);
+		}
+		ColumnarTupleQueryResult result = ColumnarTupleQueryResult.drain(
+				new TupleQueryResultImpl(Arrays.asList("s", "o"), rows),
+				1 << 20);
+		assertEquals(100, result.size());
+		assertEquals(55, result.getDistinctValueCount());
+		assertFalse(result.isSpilled());
+		assertEquals(Arrays.asList("s", "o"), result.getBindingNames());
+		for (int i = 0; i < 100; i++) {
+			BindingSet row = result.next();
+			assertEquals(uri(i % 10), row.getValue("s"));
+			if (i % 2 == 0) {
+				assertEquals(uri(i), row.getValue("o"));
+			} else {
+				assertNull(row.getValue("o"));
+			}
+		}
+		assertFalse(result.hasNext());
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		List<BindingSet> rows = new ArrayList<BindingSet>();
+		for (int i = 0; i < 10000; i++) {
+			MapBindingSet row = new MapBindingSet();
+			row.addBinding("s", uri(i));
+			rows.add(row);
+		}
+		// 1000 rows of one column on the heap, the rest outside of it
+		ColumnarTupleQueryResult result = ColumnarTupleQueryResult.drain(
+				new TupleQueryResultImpl(Arrays.asList("s"), rows), 4000);
+		assertTrue(result.isSpilled());
+		int i = 0;
+		while (result.hasNext()) {
+			assertEquals(uri(i++), result.next().getValue("s"));
+		}
+		assertEquals(10000, i);
+	}
+
+	@Test
+	public void testNoHeapRows() throws Exception {
+		List<BindingSet> rows = new ArrayList<BindingSet>();
+		for (int i = 0; i < 10; i++) {
+			MapBindingSet row = new MapBindingSet();
+			row.addBinding("s", uri(i));
+			rows.add(row);
+		}
+		// less than a row's worth of bytes keeps every row outside the heap
+		ColumnarTupleQueryResult result = ColumnarTupleQueryResult.drain(
+				new TupleQueryResultImpl(Arrays.asList("s"), rows), 3);
+		assertTrue(result.isSpilled());
+		assertEquals(10, count(result));
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		final QueryEvaluationException failure = new QueryEvaluationException(
+				"lost");
+		TupleQueryResult broken = new TupleQueryResultImpl(
+				Arrays.asList("s"), new ArrayList<BindingSet>()) {
+
+			@Override
+			public boolean hasNext() throws QueryEvaluationException {
+				throw failure;
+			}
+		};
+		try {
+			ColumnarTupleQueryResult.drain(broken, 1 << 20);
+			assertTrue(false);
+		} catch (StardogException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+
+	/**
+	 * An asynchronous select on a pool of one connection returns the
+	 * connection before its result is read.
+	 */
+	@Test
+	public void testConnectionReturnsEarly() throws Exception {
+		final FakeStardog server = new FakeStardog();
+		for (int i = 0; i < 10; i++) {
+			server.add(uri(i), uri(i), uri(i), null);
+		}
+		StardogConnectionPool pool = server.pool();
+		pool.setMaxPoolSize(1);
+		pool.setMaterializeResults(true);
+		try {
+			TupleQueryResult result = ((PooledQuery) pool.connect().query(
+					"SELECT * { ?s ?p ?o }")).executeSelectAsync().get();
+			assertTrue(result instanceof ColumnarTupleQueryResult);
+			Connection c = pool.connect(1, TimeUnit.SECONDS);
+			TupleQueryResult sync = c.query("SELECT * { ?s ?p ?o }")
+					.executeSelect();
+			c.close();
+			assertEquals(10, count(result));
+			assertEquals(10, count(sync));
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	private static URI uri(int i) {
+		return new URIImpl("urn:" + i);
+	}
+}
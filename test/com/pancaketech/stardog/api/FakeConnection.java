@@ -0,0 +1,732 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.openrdf.model.Graph;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.GraphImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.GraphQueryResult;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.GraphQueryResultImpl;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Adder;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.Getter;
+import com.clarkparsia.stardog.api.IO;
+import com.clarkparsia.stardog.api.Query;
+import com.clarkparsia.stardog.api.Remover;
+import com.clarkparsia.stardog.util.Iteration;
+import com.google.common.base.Function;
+
+/**
+ * A connection to a {@link FakeStardog}. Adds and removes go to the store
+ * right away, or at <tt>commit</tt> when made between <tt>begin</tt> and
+ * <tt>commit</tt>; reading never sees uncommitted changes.
+ * <p>
+ * Query text is not parsed. A query is an ASK, SELECT or graph query according
+ * to its first keyword, and matches the statements whose subject, predicate,
+ * object and context equal the values bound to the parameters <tt>s</tt>,
+ * <tt>p</tt>, <tt>o</tt> and <tt>c</tt>; unbound ones match anything. SELECT
+ * answers the bindings <tt>s</tt>, <tt>p</tt> and <tt>o</tt> of each match.
+ * A <tt>VALUES</tt> block of IRIs, integers and literals without white space
+ * is understood as well: each of its rows is bound on top of the parameters,
+ * and the matches of all rows are answered, SELECT ones with the row's other
+ * bindings added. That is enough for the pool, which only passes queries
+ * along.
+ */
+public class FakeConnection implements Connection {
+
+	private static final List<String> BindingNames = Collections
+			.unmodifiableList(Arrays.asList("s", "p", "o"));
+	private static final Pattern Values = Pattern.compile(
+			"VALUES\\s*\\(([^)]*)\\)\\s*\\{(.*?)\\}", Pattern.CASE_INSENSITIVE
+					| Pattern.DOTALL);
+	private static final Pattern Row = Pattern.compile("\\(([^)]*)\\)");
+	private static final Pattern IntegerTerm = Pattern.compile("[+-]?\\d+");
+	private static final Pattern Literal = Pattern
+			.compile("\"([^\"\\\\]*)\"(?:\\^\\^<([^>]*)>|@(\\S+))?");
+
+	private final FakeStardog server;
+	private volatile boolean open = true;
+	private volatile boolean dropped;
+	private boolean autoCommit;
+	private List<FakeStardog.Change> pending;
+
+	FakeConnection(FakeStardog server) {
+		this.server = server;
+	}
+
+	/*
+	 * Breaks the connection: it still claims to be open, but every call
+	 * fails.
+	 */
+	void drop() {
+		dropped = true;
+	}
+
+	boolean isDropped() {
+		return dropped;
+	}
+
+	private void roundTrip(boolean update) throws StardogException {
+		if (!open) {
+			throw new StardogException("Connection is closed.");
+		}
+		server.roundTrip(this, update);
+	}
+
+	private void change(boolean add, Resource subject, URI predicate,
+			Value object, Resource context) {
+		if (pending != null) {
+			pending.add(new FakeStardog.Change(add, subject, predicate, object,
+					context));
+		} else if (add) {
+			server.add(subject, predicate, object, context);
+		} else {
+			server.remove(subject, predicate, object, context);
+		}
+	}
+
+	@Override
+	public Adder add() throws StardogException {
+		return new FakeAdder();
+	}
+
+	@Override
+	public void begin() throws StardogException {
+		roundTrip(true);
+		if (pending != null) {
+			throw new StardogException("A transaction is already active.");
+		}
+		pending = new LinkedList<FakeStardog.Change>();
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		pending = null;
+		server.closed(this);
+	}
+
+	@Override
+	public void commit() throws StardogException {
+		roundTrip(true);
+		if (pending == null) {
+			throw new StardogException("No transaction is active.");
+		}
+		server.apply(pending);
+		pending = null;
+	}
+
+	@Override
+	public Getter get() throws StardogException {
+		return new FakeGetter();
+	}
+
+	@Override
+	public boolean isAutoCommit() {
+		return autoCommit;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public Query query(String query) throws StardogException {
+		return new FakeQuery(query);
+	}
+
+	@Override
+	public Query query(String query, String baseUri) throws StardogException {
+		return new FakeQuery(query);
+	}
+
+	@Override
+	public Remover remove() throws StardogException {
+		return new FakeRemover();
+	}
+
+	@Override
+	public void rollback() throws StardogException {
+		roundTrip(true);
+		if (pending == null) {
+			throw new StardogException("No transaction is active.");
+		}
+		pending = null;
+	}
+
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws StardogException {
+		roundTrip(true);
+		this.autoCommit = autoCommit;
+	}
+
+	@Override
+	public long size() throws StardogException {
+		roundTrip(false);
+		return server.size();
+	}
+
+	private class FakeQuery implements Query {
+
+		private final String keyword;
+		private final Map<String, Value> parameters = new HashMap<String, Value>();
+		private final List<Map<String, Value>> values;
+		private long limit = -1;
+		private long offset;
+
+		FakeQuery(String query) {
+			server.parses.incrementAndGet();
+			String text = query.toUpperCase();
+			String first = null;
+			int at = text.length();
+			for (String keyword : new String[] { "ASK", "SELECT", "CONSTRUCT",
+					"DESCRIBE" }) {
+				int i = text.indexOf(keyword);
+				if (i >= 0 && i < at) {
+					first = keyword;
+					at = i;
+				}
+			}
+			keyword = first;
+			values = values(query);
+		}
+
+		private List<Map<String, Value>> values(String query) {
+			Matcher block = Values.matcher(query);
+			if (!block.find()) {
+				return null;
+			}
+			String[] names = block.group(1).trim().split("\\s+");
+			List<Map<String, Value>> rows = new ArrayList<Map<String, Value>>();
+			for (Matcher row = Row.matcher(block.group(2)); row.find();) {
+				String[] terms = row.group(1).trim().split("\\s+");
+				Map<String, Value> bindings = new HashMap<String, Value>();
+				for (int i = 0; i < names.length; i++) {
+					if (terms[i].equals("UNDEF")) {
+						continue;
+					}
+					bindings.put(names[i].substring(1), term(terms[i]));
+				}
+				rows.add(bindings);
+			}
+			return rows;
+		}
+
+		private Value term(String term) {
+			if (term.startsWith("<")) {
+				return new URIImpl(term.substring(1, term.length() - 1));
+			}
+			if (IntegerTerm.matcher(term).matches()) {
+				return values().createLiteral(term,
+						new URIImpl("http://www.w3.org/2001/XMLSchema#integer"));
+			}
+			Matcher literal = Literal.matcher(term);
+			if (!literal.matches()) {
+				throw new IllegalArgumentException(
+						"Only IRIs and literals are understood in VALUES: "
+								+ term);
+			}
+			if (literal.group(2) != null) {
+				return values().createLiteral(literal.group(1),
+						new URIImpl(literal.group(2)));
+			}
+			if (literal.group(3) != null) {
+				return values().createLiteral(literal.group(1),
+						literal.group(3));
+			}
+			return values().createLiteral(literal.group(1));
+		}
+
+		private List<Statement> evaluate() throws StardogException {
+			List<Statement> matches = new ArrayList<Statement>();
+			for (Solution solution : solve()) {
+				if (!matches.contains(solution.statement)) {
+					matches.add(solution.statement);
+				}
+			}
+			return page(matches);
+		}
+
+		/*
+		 * Returns the matches of each VALUES row together with the row, or
+		 * just the matches when there is no VALUES block.
+		 */
+		private List<Solution> solve() throws StardogException {
+			roundTrip(false);
+			List<Map<String, Value>> rows = values;
+			if (rows == null) {
+				rows = Collections.singletonList(Collections
+						.<String, Value> emptyMap());
+			}
+			List<Solution> solutions = new ArrayList<Solution>();
+			for (Map<String, Value> row : rows) {
+				Map<String, Value> bindings = new HashMap<String, Value>(
+						parameters);
+				bindings.putAll(row);
+				for (Statement statement : match(bindings)) {
+					solutions.add(new Solution(statement, row));
+				}
+			}
+			return solutions;
+		}
+
+		private <T> List<T> page(List<T> matches) {
+			int from = (int) Math.min(offset, matches.size());
+			int to = limit < 0 ? matches.size() : (int) Math.min(from + limit,
+					matches.size());
+			return matches.subList(from, to);
+		}
+
+		private List<Statement> match(Map<String, Value> bindings) {
+			Value s = bindings.get("s");
+			Value p = bindings.get("p");
+			Value c = bindings.get("c");
+			if ((s != null && !(s instanceof Resource))
+					|| (p != null && !(p instanceof URI))
+					|| (c != null && !(c instanceof Resource))) {
+				return Collections.emptyList();
+			}
+			return server.match((Resource) s, (URI) p, bindings.get("o"),
+					(Resource) c);
+		}
+
+		@Override
+		public boolean executeAsk() throws StardogException {
+			return !evaluate().isEmpty();
+		}
+
+		@Override
+		public GraphQueryResult executeGraph() throws StardogException {
+			return new GraphQueryResultImpl(new HashMap<String, String>(),
+					evaluate());
+		}
+
+		@Override
+		public TupleQueryResult executeSelect() throws StardogException {
+			List<BindingSet> rows = new LinkedList<BindingSet>();
+			for (Solution solution : page(solve())) {
+				Statement statement = solution.statement;
+				MapBindingSet row = new MapBindingSet();
+				row.addBinding("s", statement.getSubject());
+				row.addBinding("p", statement.getPredicate());
+				row.addBinding("o", statement.getObject());
+				for (Map.Entry<String, Value> binding : solution.row.entrySet()) {
+					if (!row.hasBinding(binding.getKey())) {
+						row.addBinding(binding.getKey(), binding.getValue());
+					}
+				}
+				rows.add(row);
+			}
+			List<String> names = new ArrayList<String>(BindingNames);
+			if (values != null && !values.isEmpty()) {
+				for (String name : values.get(0).keySet()) {
+					if (!names.contains(name)) {
+						names.add(name);
+					}
+				}
+			}
+			return new TupleQueryResultImpl(names, rows);
+		}
+
+		@Override
+		public String explain() throws StardogException {
+			roundTrip(false);
+			return "Scan[" + parameters + "]";
+		}
+
+		@Override
+		public boolean isAsk() {
+			return "ASK".equals(keyword);
+		}
+
+		@Override
+		public boolean isGraph() {
+			return "CONSTRUCT".equals(keyword) || "DESCRIBE".equals(keyword);
+		}
+
+		@Override
+		public boolean isSelect() {
+			return "SELECT".equals(keyword);
+		}
+
+		@Override
+		public Query limit(long limit) {
+			this.limit = limit;
+			return this;
+		}
+
+		@Override
+		public Query offset(long offset) {
+			this.offset = offset;
+			return this;
+		}
+
+		private ValueFactory values() {
+			return ValueFactoryImpl.getInstance();
+		}
+
+		@Override
+		public Query parameter(String name, Value value) {
+			parameters.put(name, value);
+			return this;
+		}
+
+		@Override
+		public Query parameter(String name, int value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, long value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, float value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, double value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, short value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, boolean value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, byte value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, String value) {
+			return parameter(name, values().createLiteral(value));
+		}
+
+		@Override
+		public Query parameter(String name, Date value) {
+			GregorianCalendar calendar = new GregorianCalendar();
+			calendar.setTime(value);
+			return parameter(name, calendar);
+		}
+
+		@Override
+		public Query parameter(String name, GregorianCalendar value) {
+			try {
+				return parameter(name, values().createLiteral(
+						DatatypeFactory.newInstance().newXMLGregorianCalendar(
+								value)));
+			} catch (DatatypeConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public Query parameter(String name, java.net.URI value) {
+			return parameter(name, values().createURI(value.toString()));
+		}
+	}
+
+	/*
+	 * A statement matching a query, with the VALUES row it matched for.
+	 */
+	private static class Solution {
+
+		final Statement statement;
+		final Map<String, Value> row;
+
+		Solution(Statement statement, Map<String, Value> row) {
+			this.statement = statement;
+			this.row = row;
+		}
+	}
+
+	private class FakeGetter implements Getter {
+
+		private Resource subject;
+		private URI predicate;
+		private Value object;
+		private Resource context;
+
+		@Override
+		public Getter context(Resource context) {
+			this.context = context;
+			return this;
+		}
+
+		@Override
+		public Graph graph() throws StardogException {
+			roundTrip(false);
+			Graph graph = new GraphImpl();
+			graph.addAll(server.match(subject, predicate, object, context));
+			return graph;
+		}
+
+		@Override
+		public Iteration<Statement, StardogException> iterator()
+				throws StardogException {
+			return iterator(subject, predicate, object, context);
+		}
+
+		@Override
+		public <O> Iteration<O, StardogException> iterator(
+				final Function<Statement, O> function) throws StardogException {
+			final Iteration<Statement, StardogException> statements = iterator();
+			return new Iteration<O, StardogException>() {
+
+				@Override
+				public void close() throws StardogException {
+					statements.close();
+				}
+
+				@Override
+				public boolean hasNext() throws StardogException {
+					return statements.hasNext();
+				}
+
+				@Override
+				public O next() throws StardogException {
+					return function.apply(statements.next());
+				}
+			};
+		}
+
+		@Override
+		public Iteration<Statement, StardogException> iterator(
+				Resource subject, URI predicate, Value object, Resource context)
+				throws StardogException {
+			roundTrip(false);
+			final Iterator<Statement> statements = server.match(subject,
+					predicate, object, context).iterator();
+			return new Iteration<Statement, StardogException>() {
+
+				@Override
+				public void close() {
+				}
+
+				@Override
+				public boolean hasNext() {
+					return statements.hasNext();
+				}
+
+				@Override
+				public Statement next() {
+					return statements.next();
+				}
+			};
+		}
+
+		@Override
+		public Getter object(Value object) {
+			this.object = object;
+			return this;
+		}
+
+		@Override
+		public Getter predicate(URI predicate) {
+			this.predicate = predicate;
+			return this;
+		}
+
+		@Override
+		public void reset() {
+			subject = null;
+			predicate = null;
+			object = null;
+			context = null;
+		}
+
+		@Override
+		public Statement statement() throws StardogException {
+			roundTrip(false);
+			List<Statement> matches = server.match(subject, predicate, object,
+					context);
+			return matches.isEmpty() ? null : matches.get(0);
+		}
+
+		@Override
+		public Getter subject(Resource subject) {
+			this.subject = subject;
+			return this;
+		}
+	}
+
+	private class FakeAdder implements Adder {
+
+		@Override
+		public Adder graph(Graph graph, Resource... contexts)
+				throws StardogException {
+			roundTrip(true);
+			for (Statement statement : graph) {
+				add(statement, contexts);
+			}
+			return this;
+		}
+
+		/**
+		 * Reading RDF documents is left to a real server.
+		 */
+		@Override
+		public IO<Adder> io() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Adder statement(Statement statement) throws StardogException {
+			roundTrip(true);
+			change(true, statement.getSubject(), statement.getPredicate(),
+					statement.getObject(), statement.getContext());
+			return this;
+		}
+
+		@Override
+		public Adder statement(Resource subject, URI predicate, Value object,
+				Resource... contexts) throws StardogException {
+			roundTrip(true);
+			if (contexts.length == 0) {
+				change(true, subject, predicate, object, null);
+			}
+			for (Resource context : contexts) {
+				change(true, subject, predicate, object, context);
+			}
+			return this;
+		}
+
+		private void add(Statement statement, Resource... contexts) {
+			if (contexts.length == 0) {
+				change(true, statement.getSubject(), statement.getPredicate(),
+						statement.getObject(), statement.getContext());
+			}
+			for (Resource context : contexts) {
+				change(true, statement.getSubject(), statement.getPredicate(),
+						statement.getObject(), context);
+			}
+		}
+	}
+
+	/**
+	 * Removes statements. As in the store, a null context matches statements
+	 * in any context. <tt>context</tt> only picks the context <tt>all</tt>
+	 * empties.
+	 */
+	private class FakeRemover implements Remover {
+
+		private Resource context;
+
+		@Override
+		public Remover all() throws StardogException {
+			roundTrip(true);
+			change(false, null, null, null, context);
+			return this;
+		}
+
+		@Override
+		public Remover context(Resource context) {
+			this.context = context;
+			return this;
+		}
+
+		@Override
+		public Remover graph(Graph graph, Resource... contexts)
+				throws StardogException {
+			roundTrip(true);
+			for (Statement statement : graph) {
+				remove(statement, contexts);
+			}
+			return this;
+		}
+
+		/**
+		 * Reading RDF documents is left to a real server.
+		 */
+		@Override
+		public IO<Remover> io() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Removes the statements a graph query answers.
+		 */
+		@Override
+		public Remover query(Query query) throws StardogException {
+			if (!(query instanceof FakeQuery)) {
+				throw new UnsupportedOperationException();
+			}
+			for (Statement statement : ((FakeQuery) query).evaluate()) {
+				change(false, statement.getSubject(), statement.getPredicate(),
+						statement.getObject(), statement.getContext());
+			}
+			return this;
+		}
+
+		@Override
+		public Remover statement(Statement statement) throws StardogException {
+			roundTrip(true);
+			remove(statement);
+			return this;
+		}
+
+		@Override
+		public Remover statement(Resource subject, URI predicate,
+				Value object, Resource... contexts) throws StardogException {
+			roundTrip(true);
+			if (contexts.length == 0) {
+				change(false, subject, predicate, object, null);
+			}
+			for (Resource context : contexts) {
+				change(false, subject, predicate, object, context);
+			}
+			return this;
+		}
+
+		private void remove(Statement statement, Resource... contexts) {
+			if (contexts.length == 0) {
+				change(false, statement.getSubject(), statement.getPredicate(),
+						statement.getObject(), statement.getContext());
+			}
+			for (Resource context : contexts) {
+				change(false, statement.getSubject(), statement.getPredicate(),
+						statement.getObject(), context);
+			}
+		}
+	}
+}
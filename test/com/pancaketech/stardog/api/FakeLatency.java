@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of simulated round-trip times for {@link FakeStardog}.
+ * Real servers are not equally slow for every call, so besides a fixed delay
+ * there are uniform, exponential and log-normal distributions; the last gives
+ * the long tail that makes pool waits interesting.
+ */
+public abstract class FakeLatency {
+
+	public static final FakeLatency None = fixed(0, TimeUnit.NANOSECONDS);
+
+	/**
+	 * Returns the delay of one call, in nanoseconds.
+	 */
+	public abstract long sample(Random random);
+
+	public static FakeLatency fixed(long delay, TimeUnit unit) {
+		final long nanos = unit.toNanos(delay);
+		return new FakeLatency() {
+
+			@Override
+			public long sample(Random random) {
+				return nanos;
+			}
+		};
+	}
+
+	public static FakeLatency uniform(long min, long max, TimeUnit unit) {
+		final long minNanos = unit.toNanos(min);
+		final long spread = unit.toNanos(max) - minNanos;
+		if (spread < 0) {
+			throw new IllegalArgumentException("max must not be less than min");
+		}
+		return new FakeLatency() {
+
+			@Override
+			public long sample(Random random) {
+				return minNanos + (long) (random.nextDouble() * spread);
+			}
+		};
+	}
+
+	public static FakeLatency exponential(long mean, TimeUnit unit) {
+		final long meanNanos = unit.toNanos(mean);
+		return new FakeLatency() {
+
+			@Override
+			public long sample(Random random) {
+				return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+			}
+		};
+	}
+
+	/**
+	 * A log-normal distribution with the given median; <tt>sigma</tt> is the
+	 * standard deviation of the underlying normal distribution, and 1 gives a
+	 * 99th percentile about ten times the median.
+	 */
+	public static FakeLatency logNormal(long median, TimeUnit unit,
+			final double sigma) {
+		final long medianNanos = unit.toNanos(median);
+		return new FakeLatency() {
+
+			@Override
+			public long sample(Random random) {
+				return (long) (medianNanos * Math.exp(sigma
+						* random.nextGaussian()));
+			}
+		};
+	}
+}
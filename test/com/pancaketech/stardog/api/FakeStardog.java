@@ -0,0 +1,389 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * An in-process stand-in for a Stardog database, so that pool tests and
+ * benchmarks can run without a Stardog home. It holds statements in memory and
+ * hands out {@link FakeConnection}s to them.
+ * <p>
+ * Every call that would go to the server can be slowed down with a
+ * {@link FakeLatency} and made to fail at random: a failure throws a
+ * <tt>StardogException</tt> and leaves the connection usable, while a
+ * disconnect breaks the connection for good, though it still claims to be
+ * open, as a connection the server has dropped does.
+ */
+public class FakeStardog {
+
+	private final Set<Quad> store = Collections
+			.newSetFromMap(new ConcurrentHashMap<Quad, Boolean>());
+	private final Set<FakeConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<FakeConnection, Boolean>());
+	private final Random random;
+
+	private volatile FakeLatency connectLatency = FakeLatency.None;
+	private volatile FakeLatency queryLatency = FakeLatency.None;
+	private volatile FakeLatency updateLatency = FakeLatency.None;
+	private volatile double connectFailureRate;
+	private volatile double failureRate;
+	private volatile double disconnectRate;
+
+	final AtomicInteger connects = new AtomicInteger();
+	final AtomicInteger roundTrips = new AtomicInteger();
+	final AtomicInteger parses = new AtomicInteger();
+	final AtomicInteger failures = new AtomicInteger();
+	final AtomicInteger disconnects = new AtomicInteger();
+
+	public FakeStardog() {
+		this(new Random());
+	}
+
+	/**
+	 * Creates a database whose latencies and faults are drawn from the given
+	 * source, so a seeded one makes a single-threaded run repeatable.
+	 */
+	public FakeStardog(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Opens a connection after the connect latency, or fails at the connect
+	 * failure rate.
+	 */
+	public FakeConnection connect() throws StardogException {
+		pause(connectLatency);
+		if (happens(connectFailureRate)) {
+			failures.incrementAndGet();
+			throw new StardogException("Connection refused.");
+		}
+		connects.incrementAndGet();
+		FakeConnection connection = new FakeConnection(this);
+		connections.add(connection);
+		return connection;
+	}
+
+	/**
+	 * Returns a pool whose connections are opened to this database.
+	 */
+	public StardogConnectionPool pool() {
+		return new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() throws StardogException {
+				return FakeStardog.this.connect();
+			}
+		};
+	}
+
+	/**
+	 * Reads a SELECT result to its end, closes it and returns the number of
+	 * rows it had.
+	 */
+	public static int count(TupleQueryResult result)
+			throws QueryEvaluationException {
+		int n = 0;
+		while (result.hasNext()) {
+			result.next();
+			n++;
+		}
+		result.close();
+		return n;
+	}
+
+	/**
+	 * Breaks every open connection, as a restart of the server would.
+	 */
+	public void disconnectAll() {
+		for (FakeConnection connection : connections) {
+			connection.drop();
+		}
+	}
+
+	/**
+	 * Returns the number of connections that have not been closed.
+	 */
+	public int getOpenConnections() {
+		return connections.size();
+	}
+
+	void closed(FakeConnection connection) {
+		connections.remove(connection);
+	}
+
+	/*
+	 * One call to the server from the given connection.
+	 */
+	void roundTrip(FakeConnection connection, boolean update)
+			throws StardogException {
+		roundTrips.incrementAndGet();
+		pause(update ? updateLatency : queryLatency);
+		if (happens(disconnectRate)) {
+			disconnects.incrementAndGet();
+			connection.drop();
+		}
+		if (connection.isDropped()) {
+			throw new StardogException("Connection reset.");
+		}
+		if (happens(failureRate)) {
+			failures.incrementAndGet();
+			throw new StardogException("Injected failure.");
+		}
+	}
+
+	private boolean happens(double rate) {
+		return rate > 0 && random.nextDouble() < rate;
+	}
+
+	private void pause(FakeLatency latency) {
+		long nanos = latency.sample(random);
+		long deadline = System.nanoTime() + nanos;
+		while (nanos > 0) {
+			LockSupport.parkNanos(nanos);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	/**
+	 * Adds a statement, in the default context when <tt>context</tt> is null.
+	 */
+	public void add(Resource subject, URI predicate, Value object,
+			Resource context) {
+		store.add(new Quad(subject, predicate, object, context));
+	}
+
+	/**
+	 * Removes the statements matching a pattern, where null matches anything.
+	 */
+	public void remove(Resource subject, URI predicate, Value object,
+			Resource context) {
+		store.removeAll(find(subject, predicate, object, context));
+	}
+
+	/**
+	 * Returns the statements matching a pattern, where null matches anything.
+	 */
+	public List<Statement> match(Resource subject, URI predicate,
+			Value object, Resource context) {
+		List<Quad> quads = find(subject, predicate, object, context);
+		List<Statement> statements = new ArrayList<Statement>(quads.size());
+		for (Quad quad : quads) {
+			statements.add(quad.toStatement());
+		}
+		return statements;
+	}
+
+	private List<Quad> find(Resource subject, URI predicate, Value object,
+			Resource context) {
+		List<Quad> quads = new ArrayList<Quad>();
+		for (Quad quad : store) {
+			if (quad.matches(subject, predicate, object, context)) {
+				quads.add(quad);
+			}
+		}
+		return quads;
+	}
+
+	public long size() {
+		return store.size();
+	}
+
+	public void clear() {
+		store.clear();
+	}
+
+	/**
+	 * Applies changes made in a transaction, in order. Other connections can
+	 * see a commit half done; the fake does not isolate transactions.
+	 */
+	void apply(Collection<Change> changes) {
+		for (Change change : changes) {
+			if (change.add) {
+				add(change.subject, change.predicate, change.object,
+						change.context);
+			} else {
+				remove(change.subject, change.predicate, change.object,
+						change.context);
+			}
+		}
+	}
+
+	public void setConnectLatency(FakeLatency connectLatency) {
+		this.connectLatency = connectLatency;
+	}
+
+	public FakeLatency getConnectLatency() {
+		return connectLatency;
+	}
+
+	/**
+	 * Sets the latency of reads: queries, getters and <tt>size</tt>.
+	 */
+	public void setQueryLatency(FakeLatency queryLatency) {
+		this.queryLatency = queryLatency;
+	}
+
+	public FakeLatency getQueryLatency() {
+		return queryLatency;
+	}
+
+	/**
+	 * Sets the latency of writes and of transaction calls.
+	 */
+	public void setUpdateLatency(FakeLatency updateLatency) {
+		this.updateLatency = updateLatency;
+	}
+
+	public FakeLatency getUpdateLatency() {
+		return updateLatency;
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, that opening a connection fails.
+	 */
+	public void setConnectFailureRate(double connectFailureRate) {
+		this.connectFailureRate = connectFailureRate;
+	}
+
+	public double getConnectFailureRate() {
+		return connectFailureRate;
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, that a call throws a
+	 * <tt>StardogException</tt>.
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, that a call breaks its connection.
+	 */
+	public void setDisconnectRate(double disconnectRate) {
+		this.disconnectRate = disconnectRate;
+	}
+
+	public double getDisconnectRate() {
+		return disconnectRate;
+	}
+
+	/**
+	 * A statement with its context. Statements from openrdf do not compare
+	 * contexts, so the store keeps these instead.
+	 */
+	private static class Quad {
+
+		final Resource subject;
+		final URI predicate;
+		final Value object;
+		final Resource context;
+
+		Quad(Resource subject, URI predicate, Value object, Resource context) {
+			this.subject = subject;
+			this.predicate = predicate;
+			this.object = object;
+			this.context = context;
+		}
+
+		boolean matches(Resource s, URI p, Value o, Resource c) {
+			return (s == null || s.equals(subject))
+					&& (p == null || p.equals(predicate))
+					&& (o == null || same(o, object))
+					&& (c == null || c.equals(context));
+		}
+
+		/*
+		 * Compares language tags regardless of case, as Stardog does; it
+		 * answers them the way they were stored.
+		 */
+		private static boolean same(Value a, Value b) {
+			if (a instanceof Literal && b instanceof Literal) {
+				Literal x = (Literal) a;
+				Literal y = (Literal) b;
+				if (x.getLanguage() != null && y.getLanguage() != null) {
+					return x.getLabel().equals(y.getLabel())
+							&& x.getLanguage().equalsIgnoreCase(
+									y.getLanguage());
+				}
+			}
+			return a.equals(b);
+		}
+
+		Statement toStatement() {
+			return context == null ? new StatementImpl(subject, predicate,
+					object) : new ContextStatementImpl(subject, predicate,
+					object, context);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Quad)) {
+				return false;
+			}
+			Quad q = (Quad) o;
+			return subject.equals(q.subject) && predicate.equals(q.predicate)
+					&& object.equals(q.object)
+					&& (context == null ? q.context == null : context
+							.equals(q.context));
+		}
+
+		@Override
+		public int hashCode() {
+			int h = subject.hashCode();
+			h = 31 * h + predicate.hashCode();
+			h = 31 * h + object.hashCode();
+			return 31 * h + (context == null ? 0 : context.hashCode());
+		}
+	}
+
+	/**
+	 * An addition or a removal waiting for a commit. A removal's null fields
+	 * match anything.
+	 */
+	static class Change {
+
+		final boolean add;
+		final Resource subject;
+		final URI predicate;
+		final Value object;
+		final Resource context;
+
+		Change(boolean add, Resource subject, URI predicate, Value object,
+				Resource context) {
+			this.add = add;
+			this.subject = subject;
+			this.predicate = predicate;
+			this.object = object;
+			this.context = context;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static com.pancaketech.stardog.api.FakeStardog.count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks the fake Stardog itself, then puts a pool through a fake server that
+ * is slow and unreliable.
+ */
+public class FakeStardogTest {
+
+	private static final URI A = new URIImpl("urn:a");
+	private static final URI B = new URIImpl("urn:b");
+	private static final URI Graph = new URIImpl("urn:graph");
+
+	@Test
+	public void testTransactions() throws StardogException {
+		FakeStardog server = new FakeStardog();
+		Connection c = server.connect();
+		c.add().statement(A, A, B);
+		assertEquals(1, c.size());
+		c.begin();
+		c.add().statement(A, B, A, Graph);
+		c.remove().statement(A, A, B);
+		assertEquals(1, c.size());
+		c.rollback();
+		assertEquals(1, c.size());
+		c.begin();
+		c.add().statement(A, B, A, Graph);
+		c.commit();
+		assertEquals(2, c.size());
+		assertEquals(1, c.get().context(Graph).graph().size());
+		c.remove().context(Graph).all();
+		assertEquals(1, c.size());
+		c.close();
+		assertEquals(0, server.getOpenConnections());
+	}
+
+	@Test
+	public void testQueries() throws Exception {
+		FakeStardog server = new FakeStardog();
+		server.add(A, A, A, null);
+		server.add(A, B, B, null);
+		server.add(B, B, B, null);
+		Connection c = server.connect();
+		assertTrue(c.query("ASK { ?s ?p ?o }").parameter("s", B).executeAsk());
+		assertFalse(c.query("ASK { ?s ?p ?o }").parameter("o", B)
+				.parameter("p", A).executeAsk());
+		assertEquals(2, count(c.query("SELECT * { ?s ?p ?o }")
+				.parameter("s", A).executeSelect()));
+		assertEquals(1, count(c.query("SELECT * { ?s ?p ?o }").offset(1)
+				.limit(1).executeSelect()));
+		c.close();
+	}
+
+	@Test
+	public void testFaults() throws StardogException {
+		FakeStardog server = new FakeStardog(new Random(17));
+		Connection c = server.connect();
+		server.setFailureRate(1);
+		try {
+			c.size();
+			assertTrue(false);
+		} catch (StardogException e) {
+		}
+		server.setFailureRate(0);
+		assertEquals(0, c.size());
+		server.disconnectAll();
+		try {
+			c.size();
+			assertTrue(false);
+		} catch (StardogException e) {
+		}
+		assertTrue(c.isOpen());
+		server.setQueryLatency(FakeLatency.fixed(20, TimeUnit.MILLISECONDS));
+		Connection d = server.connect();
+		long t0 = System.nanoTime();
+		d.size();
+		assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(20));
+		c.close();
+		d.close();
+	}
+
+	/**
+	 * Borrowers run queries against a server with a long-tailed latency that
+	 * fails one call in fifty and drops one connection in a hundred. The pool
+	 * must keep serving, and must close every connection it opened once it is
+	 * terminated.
+	 */
+	@Test
+	public void testUnreliableServer() throws Exception {
+		final FakeStardog server = new FakeStardog(new Random(42));
+		server.setConnectLatency(FakeLatency.uniform(1, 5,
+				TimeUnit.MILLISECONDS));
+		server.setQueryLatency(FakeLatency.logNormal(200,
+				TimeUnit.MICROSECONDS, 1));
+		server.setFailureRate(0.02);
+		server.setDisconnectRate(0.01);
+		server.add(A, A, A, null);
+		final StardogConnectionPool pool = server.pool();
+		pool.setMaxPoolSize(4);
+		pool.setTestOnBorrow(true);
+		pool.setValidationGracePeriod(0);
+		final List<Throwable> errors = Collections
+				.synchronizedList(new LinkedList<Throwable>());
+		final AtomicInteger answered = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		List<Thread> threads = new LinkedList<Thread>();
+		try {
+			for (int i = 0; i < 16; i++) {
+				Thread t = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						for (int j = 0; j < 50; j++) {
+							try {
+								Connection c = pool.connect(10,
+										TimeUnit.SECONDS);
+								try {
+									if (c.query("ASK { ?s ?p ?o }")
+											.executeAsk()) {
+										answered.incrementAndGet();
+									}
+								} catch (StardogException e) {
+									failed.incrementAndGet();
+								} finally {
+									c.close();
+								}
+							} catch (Throwable e) {
+								errors.add(e);
+							}
+						}
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			for (Throwable t : errors)
+				t.printStackTrace();
+			assertEquals(0, errors.size());
+			assertEquals(16 * 50, answered.get() + failed.get());
+			assertTrue(failed.get() < 16 * 50 / 10);
+			assertTrue(pool.getPoolCount() <= 4);
+		} finally {
+			pool.terminatePool();
+		}
+		assertEquals(0, server.getOpenConnections());
+	}
+}
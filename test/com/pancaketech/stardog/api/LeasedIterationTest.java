@@ -0,0 +1,140 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.util.Iteration;
+
+/**
+ * Tests that results streamed by the pool give their connection back when
+ * they are read to the end, closed or left unread. The pool has a single
+ * connection, so a lease that is not returned makes the next borrow time out.
+ */
+public class LeasedIterationTest {
+
+	private static final URI A = new URIImpl("urn:a");
+	private static final URI B = new URIImpl("urn:b");
+	private static final String Select = "SELECT * { ?s ?p ?o }";
+
+	private FakeStardog server;
+	private StardogConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		server = new FakeStardog();
+		server.add(A, A, A, null);
+		server.add(A, A, B, null);
+		server.add(B, B, B, null);
+		pool = server.pool();
+		pool.setMaxPoolSize(1);
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Test
+	public void testExhaustionReleases() throws Exception {
+		Iteration<Statement, StardogException> it = pool.stream(A, null,
+				null, null);
+		assertEquals(1, pool.getOpenStreamCount());
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		assertEquals(2, n);
+		assertEquals(0, pool.getOpenStreamCount());
+		assertFalse(it.hasNext());
+		it.close();
+		pool.connect(100, TimeUnit.MILLISECONDS).close();
+
+		TupleQueryResult rows = pool.select(Select);
+		n = 0;
+		while (rows.hasNext()) {
+			rows.next();
+			n++;
+		}
+		assertEquals(3, n);
+		pool.connect(100, TimeUnit.MILLISECONDS).close();
+	}
+
+	@Test
+	public void testCloseReleases() throws Exception {
+		TupleQueryResult rows = pool.select(new QueryTemplate(Select),
+				Collections.singletonMap("s", B));
+		assertTrue(rows.hasNext());
+		try {
+			pool.connect(50, TimeUnit.MILLISECONDS);
+			assertTrue(false);
+		} catch (ConnectionTimeoutException e) {
+		}
+		rows.close();
+		rows.close();
+		assertFalse(rows.hasNext());
+		assertEquals(0, pool.getOpenStreamCount());
+		pool.connect(100, TimeUnit.MILLISECONDS).close();
+	}
+
+	@Test
+	public void testIdleTimeout() throws Exception {
+		pool.setStreamIdleTimeout(50);
+		TupleQueryResult rows = pool.select(Select);
+		assertTrue(rows.hasNext());
+		rows.next();
+		// housekeeping runs every 25ms with this timeout
+		pool.connect(1, TimeUnit.SECONDS).close();
+		assertEquals(0, pool.getOpenStreamCount());
+		try {
+			rows.hasNext();
+			assertTrue(false);
+		} catch (QueryEvaluationException e) {
+		}
+		rows.close();
+	}
+
+	@Test
+	public void testTerminate() throws Exception {
+		Iteration<Statement, StardogException> it = pool.stream(null, null,
+				null, null);
+		assertTrue(it.hasNext());
+		pool.terminatePool();
+		assertEquals(0, pool.getOpenStreamCount());
+		assertEquals(0, server.getOpenConnections());
+		try {
+			it.hasNext();
+			assertTrue(false);
+		} catch (StardogException e) {
+		}
+		it.close();
+	}
+
+	@Test
+	public void testMaterializedSelect() throws Exception {
+		pool.setMaterializeResults(true);
+		TupleQueryResult rows = pool.select(Select);
+		assertEquals(0, pool.getOpenStreamCount());
+		pool.connect(100, TimeUnit.MILLISECONDS).close();
+		assertEquals(3, ((ColumnarTupleQueryResult) rows).size());
+		rows.close();
+	}
+}
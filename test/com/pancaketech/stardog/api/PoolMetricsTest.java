@@ -0,0 +1,136 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks the counters and histograms behind <tt>getMetrics</tt> and the pool
+ * MBean.
+ */
+public class PoolMetricsTest {
+
+	@Test
+	public void testStripedCounter() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+		List<Thread> threads = new LinkedList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.increment();
+					}
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(80000, counter.sum());
+	}
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertEquals(100, snapshot.getCount());
+		// upper bounds of power of two buckets, at most twice the latency
+		assertTrue(snapshot.getMedianMillis() >= 0.1);
+		assertTrue(snapshot.getMedianMillis() <= 0.2);
+		assertTrue(snapshot.getP99Millis() <= 0.2);
+		assertEquals(50, snapshot.getPercentileMillis(100), 0.001);
+		assertEquals(50, snapshot.getMaxMillis(), 0.001);
+		assertEquals((99 * 0.1 + 50) / 100, snapshot.getMeanMillis(), 0.001);
+		assertEquals(0, new LatencyHistogram().snapshot().getP99Millis(), 0);
+	}
+
+	@Test
+	public void testPoolMetrics() throws Exception {
+		StardogConnectionPool pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				return new StubConnection();
+			}
+		};
+		pool.setMaxPoolSize(1);
+		pool.setMetricsEnabled(true);
+		try {
+			Connection c = pool.connect();
+			c.query("ASK {}").executeAsk();
+			c.query("ASK {}").executeAsk();
+			try {
+				pool.connect(10, TimeUnit.MILLISECONDS);
+			} catch (ConnectionTimeoutException e) {
+			}
+			PoolMetrics metrics = pool.getMetrics();
+			assertEquals(1, metrics.getActiveCount());
+			assertEquals(0, metrics.getIdleCount());
+			assertEquals(1, metrics.getTimeoutCount());
+			c.close();
+
+			metrics = pool.getMetrics();
+			assertEquals(1, metrics.getIdleCount());
+			assertEquals(1, metrics.getBorrowWait().getCount());
+			assertEquals(1, metrics.getHoldTime().getCount());
+			assertEquals(1, metrics.getCreationTime().getCount());
+			assertEquals(2, metrics.getOperations().get("Query.executeAsk")
+					.getCount());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+		StardogConnectionPool pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				return new StubConnection();
+			}
+		};
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"com.pancaketech.stardog:type=StardogConnectionPool,name="
+						+ ObjectName.quote("test"));
+		pool.registerMBean("test");
+		try {
+			assertTrue(pool.isMetricsEnabled());
+			pool.connect().close();
+			assertEquals(1, server.getAttribute(name, "PoolCount"));
+			CompositeData wait = (CompositeData) server.getAttribute(name,
+					"BorrowWait");
+			assertNotNull(wait);
+			assertEquals(1L, wait.get("count"));
+		} finally {
+			pool.terminatePool();
+		}
+		assertTrue(!server.isRegistered(name));
+	}
+}
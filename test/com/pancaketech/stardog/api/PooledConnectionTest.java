@@ -0,0 +1,128 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+public class PooledConnectionTest {
+
+	private StubConnection stub;
+
+	private StardogConnectionPool createPool(final long roundTripNanos) {
+		return new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				stub = new StubConnection(roundTripNanos);
+				return stub;
+			}
+		};
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.pancaketech.stardog.api.PooledConnection#close()}.
+	 * 
+	 * @throws StardogException
+	 */
+	@Test
+	public void testCloseResetsOnlyDirtyConnections() throws StardogException {
+		StardogConnectionPool pool = createPool(0);
+		try {
+			Connection c = pool.connect();
+			c.size();
+			c.close();
+			// only the size call went to the server
+			assertEquals(1, stub.roundTrips.get());
+
+			c = pool.connect();
+			c.begin();
+			c.close();
+			// begin, rollback and setAutoCommit
+			assertEquals(4, stub.roundTrips.get());
+
+			c = pool.connect();
+			c.close();
+			assertEquals(4, stub.roundTrips.get());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	/**
+	 * A connection the server opens with auto commit on is handed out with it
+	 * off, and stays so for leases that do not change it.
+	 */
+	@Test
+	public void testAutoCommitOffFromOpen() throws StardogException {
+		StardogConnectionPool pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				stub = new StubConnection();
+				stub.autoCommit = true;
+				return stub;
+			}
+		};
+		try {
+			Connection c = pool.connect();
+			assertFalse(c.isAutoCommit());
+			c.size();
+			c.close();
+			c = pool.connect();
+			assertFalse(c.isAutoCommit());
+			c.close();
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	/**
+	 * Compares the cost of a read only borrow with one that has to be reset,
+	 * with a simulated round-trip of 200us to the server.
+	 * 
+	 * @throws StardogException
+	 */
+	@Test
+	public void testBorrowLatency() throws StardogException {
+		int borrowCount = 500;
+		StardogConnectionPool pool = createPool(TimeUnit.MICROSECONDS
+				.toNanos(200));
+		try {
+			pool.connect().close();
+
+			long t0 = System.nanoTime();
+			for (int i = 0; i < borrowCount; i++) {
+				Connection c = pool.connect();
+				c.size();
+				c.close();
+			}
+			long t1 = System.nanoTime();
+			System.out.println("Read only borrows (" + borrowCount + "): "
+					+ ((t1 - t0) / borrowCount / 1000) + "us per borrow");
+
+			t0 = System.nanoTime();
+			for (int i = 0; i < borrowCount; i++) {
+				Connection c = pool.connect();
+				c.size();
+				c.setAutoCommit(false);
+				c.close();
+			}
+			t1 = System.nanoTime();
+			System.out.println("Dirty borrows (" + borrowCount + "): "
+					+ ((t1 - t0) / borrowCount / 1000) + "us per borrow");
+		} finally {
+			pool.terminatePool();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.query.BindingSet;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.clarkparsia.stardog.api.Connection;
+
+public class PooledPublisherTest {
+
+	private StardogConnectionPool pool;
+	private StubConnection stub;
+
+	@Before
+	public void setUp() {
+		pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				stub = new StubConnection();
+				stub.rows = 100;
+				return stub;
+			}
+		};
+		pool.setMaxPoolSize(1);
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	/**
+	 * Requests rows in batches of 10 and checks that no more are delivered
+	 * than were requested.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBackpressure() throws Exception {
+		Connection c = pool.connect();
+		PooledPublisher<BindingSet> publisher = PooledPublisher
+				.select((PooledQuery) c.query("SELECT * { ?s ?p ?o }"));
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+
+		subscriber.subscription.request(10);
+		Thread.sleep(50);
+		assertEquals(10, subscriber.received.get());
+		assertFalse(subscriber.done.await(0, TimeUnit.MILLISECONDS));
+
+		for (int i = 0; i < 9; i++) {
+			subscriber.subscription.request(10);
+		}
+		assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+		assertEquals(100, subscriber.received.get());
+		assertTrue(subscriber.completed);
+		assertNull(subscriber.error);
+		// the connection is back in the pool
+		pool.connect(5, TimeUnit.SECONDS).close();
+	}
+
+	/**
+	 * Test method for cancelling a subscription part way through.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		Connection c = pool.connect();
+		PooledPublisher<BindingSet> publisher = PooledPublisher
+				.select((PooledQuery) c.query("SELECT * { ?s ?p ?o }"));
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(5);
+		subscriber.subscription.cancel();
+		// the connection is back in the pool
+		pool.connect(5, TimeUnit.SECONDS).close();
+		assertTrue(subscriber.received.get() <= 5);
+		assertFalse(subscriber.completed);
+	}
+
+	private static class TestSubscriber implements Subscriber<BindingSet> {
+
+		volatile Subscription subscription;
+		final AtomicInteger received = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile boolean completed;
+		volatile Throwable error;
+
+		@Override
+		public void onSubscribe(Subscription s) {
+			subscription = s;
+		}
+
+		@Override
+		public void onNext(BindingSet t) {
+			received.incrementAndGet();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			error = t;
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+			done.countDown();
+		}
+	}
+}
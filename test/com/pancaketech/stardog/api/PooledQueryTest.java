@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.clarkparsia.stardog.api.Connection;
+
+public class PooledQueryTest {
+
+	private StardogConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				return new StubConnection();
+			}
+		};
+		pool.setMaxPoolSize(1);
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.pancaketech.stardog.api.PooledQuery#executeAskAsync()}.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testExecuteAskAsync() throws Exception {
+		Connection c = pool.connect();
+		Future<Boolean> answer = ((PooledQuery) c.query("ASK {}"))
+				.executeAskAsync();
+		assertTrue(answer.get(5, TimeUnit.SECONDS));
+		assertFalse(c.isOpen());
+		// the only connection went back to the pool
+		pool.connect(5, TimeUnit.SECONDS).close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.pancaketech.stardog.api.StardogConnectionPool#connectAsync()}
+	 * .
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectAsync() throws Exception {
+		Connection c = pool.connect();
+		Future<Connection> pending = pool.connectAsync();
+		Thread.sleep(50);
+		assertFalse(pending.isDone());
+		c.close();
+		c = pending.get(5, TimeUnit.SECONDS);
+		assertNotNull(c);
+		c.close();
+
+		// a cancelled request gives its connection back
+		c = pool.connect();
+		pending = pool.connectAsync();
+		pending.cancel(true);
+		c.close();
+		pool.connect(5, TimeUnit.SECONDS).close();
+	}
+}
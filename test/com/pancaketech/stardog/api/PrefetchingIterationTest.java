@@ -0,0 +1,273 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.util.Iteration;
+
+/**
+ * Tests reading ahead of a consumer with a <tt>PrefetchingIteration</tt>, on
+ * its own and on the getters of a pool's connections.
+ */
+public class PrefetchingIterationTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testOrderAndBackpressure() throws Exception {
+		Counting source = new Counting(1000, -1);
+		PrefetchingIteration<Integer, StardogException> it = new PrefetchingIteration<Integer, StardogException>(
+				source, 6, executor);
+		int expected = 0;
+		while (it.hasNext()) {
+			int n = it.next();
+			assertEquals(expected++, n);
+			assertTrue(source.produced.get() - expected <= 8);
+			if (n % 100 == 0) {
+				Thread.sleep(5);
+			}
+		}
+		assertEquals(1000, expected);
+		assertFalse(it.isInline());
+		it.close();
+		assertTrue(source.closed);
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		PrefetchingIteration<Integer, StardogException> it = new PrefetchingIteration<Integer, StardogException>(
+				new Counting(100, 10), 4, executor);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(it.hasNext());
+			assertEquals(i, it.next().intValue());
+		}
+		try {
+			it.hasNext();
+			assertTrue(false);
+		} catch (StardogException e) {
+		}
+		it.close();
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Counting source = new Counting(1000000, -1);
+		PrefetchingIteration<Integer, StardogException> it = new PrefetchingIteration<Integer, StardogException>(
+				source, 16, executor);
+		assertEquals(0, it.next().intValue());
+		it.close();
+		it.close();
+		assertTrue(source.closed);
+		assertFalse(it.hasNext());
+		int produced = source.produced.get();
+		assertTrue(produced <= 1 + 16);
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(produced, source.produced.get());
+	}
+
+	@Test
+	public void testExecutorNeverRuns() throws Exception {
+		Executor stuck = new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+			}
+		};
+		Counting source = new Counting(10, -1);
+		AtomicLong fallbacks = new AtomicLong();
+		PrefetchingIteration<Integer, StardogException> it = new PrefetchingIteration<Integer, StardogException>(
+				source, 4, stuck, 20, TimeUnit.MILLISECONDS, fallbacks);
+		long start = System.nanoTime();
+		assertTrue(it.hasNext());
+		// the consumer waited for the start timeout before giving up
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(20));
+		assertTrue(it.isInline());
+		assertEquals(1, fallbacks.get());
+		int n = 0;
+		while (it.hasNext()) {
+			assertEquals(n++, it.next().intValue());
+		}
+		assertEquals(10, n);
+		it.close();
+		assertTrue(source.closed);
+		assertEquals(1, fallbacks.get());
+	}
+
+	@Test
+	public void testProducerInterrupted() throws Exception {
+		final AtomicReference<Thread> producer = new AtomicReference<Thread>();
+		Executor own = new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				Thread t = new Thread(command);
+				producer.set(t);
+				t.start();
+			}
+		};
+		PrefetchingIteration<Integer, StardogException> it = new PrefetchingIteration<Integer, StardogException>(
+				new Counting(100, -1), 4, own);
+		assertEquals(0, it.next().intValue());
+		producer.get().interrupt();
+		// the consumer reads what the producer left
+		int n = 1;
+		while (it.hasNext()) {
+			assertEquals(n++, it.next().intValue());
+		}
+		assertEquals(100, n);
+		it.close();
+	}
+
+	@Test
+	public void testConsumerInterrupted() throws Exception {
+		Iteration<Integer, StardogException> never = new Counting(1, -1) {
+
+			@Override
+			public boolean hasNext() {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+				return false;
+			}
+		};
+		PrefetchingIteration<Integer, StardogException> it = new PrefetchingIteration<Integer, StardogException>(
+				never, 4, executor);
+		Thread.sleep(10);
+		Thread.currentThread().interrupt();
+		try {
+			it.hasNext();
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+		it.close();
+	}
+
+	@Test
+	public void testPooledGetters() throws Exception {
+		final FakeStardog server = new FakeStardog();
+		for (int i = 0; i < 50; i++) {
+			server.add(new URIImpl("urn:s" + i), new URIImpl("urn:p"),
+					new URIImpl("urn:o"), null);
+		}
+		StardogConnectionPool pool = server.pool();
+		try {
+			pool.setPrefetchSize(8);
+			URI p = new URIImpl("urn:p");
+			Iteration<Statement, StardogException> stream = pool.stream(null,
+					p, null, null);
+			int n = 0;
+			while (stream.hasNext()) {
+				stream.next();
+				n++;
+			}
+			assertEquals(50, n);
+			assertEquals(0, pool.getOpenStreamCount());
+			// left open, and closed with the connection
+			Connection c = pool.connect();
+			Iteration<Statement, StardogException> it = c.get().iterator(null,
+					p, null, null);
+			assertTrue(it.hasNext());
+			c.close();
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	/**
+	 * The pool stops the read-ahead of a connection it takes back from a
+	 * borrower that never closed it.
+	 */
+	@Test
+	public void testReclaimCancels() throws Exception {
+		StardogConnectionPool pool = new FakeStardog().pool();
+		pool.setMaxPoolSize(1);
+		pool.setPrefetchSize(2);
+		pool.setAbandonedTimeout(100);
+		pool.setLeakTraceSampleRate(0);
+		try {
+			PooledConnection leaked = (PooledConnection) pool.connect();
+			Counting source = new Counting(100, -1);
+			Iteration<Integer, StardogException> it = leaked.prefetch(source);
+			assertEquals(0, (int) it.next());
+			Connection c = pool.connect(1000, TimeUnit.MILLISECONDS);
+			assertEquals(1, pool.getReclaimedCount());
+			// nothing more is read from the connection c now holds
+			assertFalse(it.hasNext());
+			int produced = source.produced.get();
+			Thread.sleep(20);
+			assertEquals(produced, source.produced.get());
+			c.close();
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	/**
+	 * Counts up from 0, failing at the given element if it is not negative.
+	 */
+	private static class Counting implements Iteration<Integer, StardogException> {
+
+		final AtomicInteger produced = new AtomicInteger();
+		final int size;
+		final int failAt;
+		volatile boolean closed;
+
+		Counting(int size, int failAt) {
+			this.size = size;
+			this.failAt = failAt;
+		}
+
+		@Override
+		public boolean hasNext() throws StardogException {
+			if (produced.get() == failAt) {
+				throw new StardogException("Injected failure.");
+			}
+			return produced.get() < size;
+		}
+
+		@Override
+		public Integer next() {
+			return produced.getAndIncrement();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static com.pancaketech.stardog.api.FakeStardog.count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.Query;
+
+/**
+ * Tests reusing queries parsed on a connection by later borrowers. The pool
+ * holds a single connection to a fake Stardog, which counts the parses.
+ */
+public class PreparedQueriesTest {
+
+	private static final URI A = new URIImpl("urn:a");
+	private static final URI B = new URIImpl("urn:b");
+	private static final String Ask = "ASK { ?s ?p ?o }";
+	private static final String Select = "SELECT * { ?s ?p ?o }";
+
+	private FakeStardog server;
+	private StardogConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		server = new FakeStardog();
+		server.add(A, A, A, null);
+		server.add(A, A, B, null);
+		pool = server.pool();
+		pool.setMaxPoolSize(1);
+		pool.setMaxPreparedQueries(2);
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Test
+	public void testReuseAcrossBorrows() throws StardogException {
+		Connection c = pool.connect();
+		assertTrue(c.query(Ask).parameter("s", A).executeAsk());
+		c.close();
+		c = pool.connect();
+		assertFalse(c.query(Ask).parameter("s", B).executeAsk());
+		c.close();
+		assertEquals(1, server.parses.get());
+	}
+
+	@Test
+	public void testStaleParameters() throws StardogException {
+		Connection c = pool.connect();
+		assertFalse(c.query(Ask).parameter("s", B).executeAsk());
+		// s is still bound on the parsed query, so this one is parsed anew
+		assertTrue(c.query(Ask).executeAsk());
+		assertEquals(2, server.parses.get());
+		c.close();
+	}
+
+	@Test
+	public void testStaleLimit() throws Exception {
+		Connection c = pool.connect();
+		assertEquals(1, count(c.query(Select).limit(1).executeSelect()));
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		assertEquals(2, server.parses.get());
+		c.close();
+	}
+
+	@Test
+	public void testInterleavedQueries() throws StardogException {
+		Connection c = pool.connect();
+		Query a = c.query(Ask).parameter("s", A);
+		Query b = c.query(Ask).parameter("s", B);
+		assertTrue(a.executeAsk());
+		assertFalse(b.executeAsk());
+		assertTrue(a.executeAsk());
+		assertEquals(1, server.parses.get());
+		c.close();
+	}
+
+	@Test
+	public void testEviction() throws StardogException {
+		Connection c = pool.connect();
+		c.query(Ask).executeAsk();
+		c.query(Select).executeSelect();
+		c.query(Ask).executeAsk();
+		c.query("ASK { ?s ?p ?s }").executeAsk();
+		// Select was the least recently used
+		c.query(Ask).executeAsk();
+		c.query(Select).executeSelect();
+		assertEquals(4, server.parses.get());
+		c.close();
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static com.pancaketech.stardog.api.FakeStardog.count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.query.BindingSet;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Tests batching lookups into <tt>VALUES</tt> queries against a fake Stardog,
+ * which counts the queries that reach it.
+ */
+public class QueryBatcherTest {
+
+	private FakeStardog server;
+	private StardogConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		server = new FakeStardog();
+		for (int i = 0; i < 10; i++) {
+			server.add(uri(i), uri(i), uri(i + 1), null);
+		}
+		pool = server.pool();
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Test
+	public void testRewrite() {
+		Set<List<Value>> keys = new LinkedHashSet<List<Value>>();
+		keys.add(Arrays.<Value> asList(uri(0)));
+		keys.add(Arrays.<Value> asList(uri(1)));
+		QueryBatcher ask = new QueryBatcher(pool, new QueryTemplate(
+				"ASK { ?s ?p ?o }"), "s");
+		assertEquals("SELECT DISTINCT ?batchRow {" + " VALUES ( ?s ?batchRow )"
+				+ " { ( <urn:0> 0 ) ( <urn:1> 1 ) }  ?s ?p ?o }", ask
+				.query(keys));
+		QueryBatcher select = new QueryBatcher(pool, new QueryTemplate(
+				"PREFIX ex: <urn:>\nSELECT DISTINCT ?o FROM <urn:g> WHERE"
+						+ " { ?s ex:p ?o }"), "s");
+		assertEquals("PREFIX ex: <urn:>\nSELECT DISTINCT ?batchRow ?o FROM <urn:g>"
+				+ " WHERE { VALUES ( ?s ?batchRow )"
+				+ " { ( <urn:0> 0 ) ( <urn:1> 1 ) }  ?s ex:p ?o }", select
+				.query(keys));
+		QueryBatcher all = new QueryBatcher(pool, new QueryTemplate(
+				"SELECT * WHERE { ?s ?p ?o }"), "s");
+		assertTrue(all.query(keys).startsWith("SELECT * WHERE { VALUES"));
+		// the row number does not take the name of a variable of the query
+		QueryBatcher taken = new QueryBatcher(pool, new QueryTemplate(
+				"SELECT ?batchRow { ?s ?p ?batchRow }"), "s");
+		assertTrue(taken.query(keys).startsWith(
+				"SELECT ?batchRow1 ?batchRow { VALUES ( ?s ?batchRow1 )"));
+	}
+
+	@Test
+	public void testUnbatchable() {
+		for (String query : new String[] { "SELECT ?o { ?s ?p ?o } LIMIT 1",
+				"SELECT (COUNT(?o) AS ?n) { ?s ?p ?o }",
+				"CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }" }) {
+			IllegalArgumentException iae = null;
+			try {
+				new QueryBatcher(pool, new QueryTemplate(query), "s");
+			} catch (IllegalArgumentException e) {
+				iae = e;
+			}
+			assertTrue(query, iae != null);
+		}
+		// variables named like keywords are fine
+		new QueryBatcher(pool, new QueryTemplate(
+				"SELECT ?limit { ?s ?p ?limit }"), "s");
+		// and so are keywords in IRIs, strings and comments
+		QueryBatcher quoted = new QueryBatcher(pool, new QueryTemplate(
+				"PREFIX ex: <http://x/SELECT/LIMIT>\n"
+						+ "# no LIMIT { here\n"
+						+ "SELECT ?o { ?s ex:p ?o FILTER(?o != \"ASK { LIMIT 1 }\") }"),
+				"s");
+		Set<List<Value>> keys = new LinkedHashSet<List<Value>>();
+		keys.add(Arrays.<Value> asList(uri(0)));
+		assertEquals("PREFIX ex: <http://x/SELECT/LIMIT>\n"
+				+ "# no LIMIT { here\n" + "SELECT ?batchRow ?o {"
+				+ " VALUES ( ?s ?batchRow ) { ( <urn:0> 0 ) }  ?s ex:p ?o"
+				+ " FILTER(?o != \"ASK { LIMIT 1 }\") }", quoted.query(keys));
+	}
+
+	@Test
+	public void testTerms() {
+		assertEquals("<urn:a>", term(new URIImpl("urn:a")));
+		assertEquals("\"a \\\"b\\\"\\n\"", term("a \"b\"\n"));
+		assertEquals(
+				"\"7\"^^<http://www.w3.org/2001/XMLSchema#int>",
+				term(7));
+		assertEquals(
+				"\"true\"^^<http://www.w3.org/2001/XMLSchema#boolean>",
+				term(true));
+	}
+
+	@Test
+	public void testDates() throws Exception {
+		GregorianCalendar date = new GregorianCalendar(2011, 5, 1, 12, 0);
+		Value literal = QueryBatcher.value(date);
+		server.add(uri(1), uri(1), literal, null);
+		QueryBatcher batcher = new QueryBatcher(pool, new QueryTemplate(
+				"SELECT ?s WHERE { ?s ?p ?o }"), "o");
+		Future<List<BindingSet>> byCalendar = batcher.select(bindings("o",
+				date));
+		Future<List<BindingSet>> byDate = batcher.select(bindings("o", date
+				.getTime()));
+		// the lookups bind the same literal as Query.parameter does
+		assertEquals(uri(1), byCalendar.get(5, TimeUnit.SECONDS).get(0)
+				.getValue("s"));
+		assertEquals(1, byDate.get(5, TimeUnit.SECONDS).size());
+	}
+
+	@Test
+	public void testBatchSize() throws Exception {
+		QueryBatcher batcher = new QueryBatcher(pool, new QueryTemplate(
+				"ASK { ?s ?p ?o }"), "s");
+		batcher.setMaxBatchSize(10);
+		batcher.setWindow(10, TimeUnit.SECONDS);
+		List<Future<Boolean>> answers = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 20; i++) {
+			answers.add(batcher.ask(bindings("s", uri(i))));
+		}
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i < 10, answers.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(2, server.roundTrips.get());
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+		QueryBatcher batcher = new QueryBatcher(pool, new QueryTemplate(
+				"SELECT ?o WHERE { ?s ?p ?o }"), "s");
+		batcher.setWindow(20, TimeUnit.MILLISECONDS);
+		Future<List<BindingSet>> a = batcher.select(bindings("s", uri(1)));
+		Future<List<BindingSet>> b = batcher.select(bindings("s", uri(2)));
+		Future<List<BindingSet>> none = batcher.select(bindings("s", uri(42)));
+		Future<List<BindingSet>> again = batcher.select(bindings("s", uri(1)));
+		List<BindingSet> rows = a.get(5, TimeUnit.SECONDS);
+		assertEquals(1, rows.size());
+		assertEquals(uri(2), rows.get(0).getValue("o"));
+		// the row number was only added to the projection for routing
+		assertFalse(rows.get(0).hasBinding("batchRow"));
+		assertEquals(uri(3), b.get().get(0).getValue("o"));
+		assertEquals(Collections.emptyList(), none.get());
+		assertEquals(1, again.get().size());
+		assertEquals(1, server.roundTrips.get());
+	}
+
+	@Test
+	public void testAnsweredInAnotherForm() throws Exception {
+		server.add(uri(1), uri(1), new LiteralImpl("a", "en"), null);
+		QueryBatcher batcher = new QueryBatcher(pool, new QueryTemplate(
+				"SELECT * WHERE { ?s ?p ?o }"), "o");
+		// the server answers the literal with the tag it was stored with
+		Future<List<BindingSet>> upper = batcher.select(bindings("o",
+				new LiteralImpl("a", "EN")));
+		List<BindingSet> rows = upper.get(5, TimeUnit.SECONDS);
+		assertEquals(1, rows.size());
+		assertEquals(new LiteralImpl("a", "en"), rows.get(0).getValue("o"));
+	}
+
+	@Test
+	public void testBatchesNotCached() throws Exception {
+		String text = "SELECT ?o WHERE { ?s ?p ?o }";
+		QueryResultCache cache = new QueryResultCache(100, 0, TimeUnit.SECONDS);
+		pool.setQueryCache(cache);
+		pool.setMaxPoolSize(1);
+		pool.setMaxPreparedQueries(1);
+		Connection c = pool.connect();
+		assertEquals(10, count(c.query(text).executeSelect()));
+		c.close();
+		QueryBatcher batcher = new QueryBatcher(pool, new QueryTemplate(text),
+				"s");
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, batcher.select(bindings("s", uri(i))).get(5,
+					TimeUnit.SECONDS).size());
+		}
+		assertEquals(1, cache.size());
+		// the parsed query is still kept
+		int parses = server.parses.get();
+		c = pool.connect();
+		c.query(text);
+		c.close();
+		assertEquals(parses, server.parses.get());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		QueryBatcher batcher = new QueryBatcher(pool, new QueryTemplate(
+				"ASK { ?s ?p ?o }"), "s");
+		batcher.setMaxBatchSize(2);
+		server.setFailureRate(1);
+		Future<Boolean> a = batcher.ask(bindings("s", uri(1)));
+		Future<Boolean> b = batcher.ask(bindings("s", uri(2)));
+		for (Future<Boolean> answer : Arrays.asList(a, b)) {
+			Exception failure = null;
+			try {
+				answer.get(5, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				failure = e;
+			}
+			assertTrue(failure.getCause() instanceof StardogException);
+		}
+	}
+
+	private static String term(Object value) {
+		return QueryBatcher.term(QueryBatcher.value(value));
+	}
+
+	private static URI uri(int i) {
+		return new URIImpl("urn:" + i);
+	}
+
+	private static Map<String, Object> bindings(String name, Object value) {
+		Map<String, Object> bindings = new HashMap<String, Object>();
+		bindings.put(name, value);
+		return bindings;
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static com.pancaketech.stardog.api.FakeStardog.count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Tests answering queries from a <tt>QueryResultCache</tt> against a fake
+ * Stardog, which counts the round-trips the cache saves.
+ */
+public class QueryResultCacheTest {
+
+	private static final URI A = new URIImpl("urn:a");
+	private static final URI B = new URIImpl("urn:b");
+	private static final String Select = "SELECT * { ?s ?p ?o }";
+
+	private FakeStardog server;
+	private StardogConnectionPool pool;
+	private QueryResultCache cache;
+
+	@Before
+	public void setUp() {
+		server = new FakeStardog();
+		server.add(A, A, A, null);
+		server.add(A, A, B, null);
+		pool = server.pool();
+		cache = new QueryResultCache(100, 0, TimeUnit.SECONDS);
+		pool.setQueryCache(cache);
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Test
+	public void testRepeatedQueries() throws Exception {
+		Connection c = pool.connect();
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		int roundTrips = server.roundTrips.get();
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		assertTrue(c.query("ASK { ?s ?p ?o }").parameter("s", A).executeAsk());
+		assertTrue(c.query("ASK { ?s ?p ?o }").parameter("s", A).executeAsk());
+		assertEquals(roundTrips + 1, server.roundTrips.get());
+		assertEquals(2, cache.getHitCount());
+		// parameters, limit and offset are part of the key
+		assertFalse(c.query("ASK { ?s ?p ?o }").parameter("s", B).executeAsk());
+		assertEquals(1, count(c.query(Select).limit(1).executeSelect()));
+		assertEquals(roundTrips + 3, server.roundTrips.get());
+		c.close();
+	}
+
+	@Test
+	public void testCommitInvalidates() throws Exception {
+		Connection c = pool.connect();
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		c.begin();
+		c.add().statement(B, B, B);
+		// uncommitted changes bypass the cache
+		int roundTrips = server.roundTrips.get();
+		c.query(Select).executeSelect().close();
+		assertEquals(roundTrips + 1, server.roundTrips.get());
+		assertEquals(1, cache.size());
+		c.commit();
+		assertEquals(0, cache.size());
+		c.close();
+		Connection d = pool.connect();
+		assertEquals(3, count(d.query(Select).executeSelect()));
+		d.close();
+	}
+
+	@Test
+	public void testRollbackKeepsAnswers() throws Exception {
+		Connection c = pool.connect();
+		c.query(Select).executeSelect().close();
+		c.begin();
+		c.remove().all();
+		c.rollback();
+		assertEquals(1, cache.size());
+		int roundTrips = server.roundTrips.get();
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		assertEquals(roundTrips, server.roundTrips.get());
+		c.close();
+	}
+
+	@Test
+	public void testOnlyChangesInvalidate() throws Exception {
+		Connection c = pool.connect();
+		c.setAutoCommit(true);
+		c.query(Select).executeSelect().close();
+		// picking a context changes nothing
+		c.remove().context(A);
+		assertEquals(1, cache.size());
+		server.setFailureRate(1);
+		try {
+			c.add().statement(B, B, B);
+			assertTrue(false);
+		} catch (StardogException e) {
+		}
+		server.setFailureRate(0);
+		assertEquals(1, cache.size());
+		c.remove().context(A).all();
+		assertEquals(0, cache.size());
+		c.close();
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		cache = new QueryResultCache(100, 50, TimeUnit.MILLISECONDS);
+		pool.setQueryCache(cache);
+		Connection c = pool.connect();
+		c.query(Select).executeSelect().close();
+		// a change the pool does not see
+		server.add(B, B, B, null);
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		Thread.sleep(60);
+		assertEquals(3, count(c.query(Select).executeSelect()));
+		c.close();
+	}
+
+	@Test
+	public void testBounds() throws Exception {
+		cache = new QueryResultCache(2, 0, TimeUnit.SECONDS);
+		cache.setMaxRows(1);
+		pool.setQueryCache(cache);
+		Connection c = pool.connect();
+		// too many rows to keep, but all of them are answered
+		assertEquals(2, count(c.query(Select).executeSelect()));
+		assertEquals(0, cache.size());
+		c.query("ASK { ?s ?p ?o }").parameter("s", A).executeAsk();
+		c.query("ASK { ?s ?p ?o }").parameter("s", B).executeAsk();
+		c.query("ASK { ?s ?p ?o }").parameter("o", A).executeAsk();
+		assertEquals(2, cache.size());
+		c.close();
+	}
+
+	@Test
+	public void testEvictionReachesEveryAnswer() throws Exception {
+		cache = new QueryResultCache(16, 0, TimeUnit.SECONDS);
+		for (int i = 0; i < 16; i++)
+			cache.put("old" + i, Boolean.TRUE, cache.generation());
+		// each put evicts one answer; the first ones kept must all go in
+		// turn, not only those that happen to come first in the map
+		for (int i = 0; i < 1000; i++)
+			cache.put("new" + i, Boolean.TRUE, cache.generation());
+		assertEquals(16, cache.size());
+		for (int i = 0; i < 16; i++)
+			assertNull(cache.get("old" + i));
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.query.BindingSet;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Tests running a <tt>QueryTemplate</tt> in batches against a fake Stardog.
+ */
+public class QueryTemplateTest {
+
+	private static final URI A = new URIImpl("urn:a");
+	private static final URI B = new URIImpl("urn:b");
+	private static final URI C = new URIImpl("urn:c");
+
+	private FakeStardog server;
+	private StardogConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		server = new FakeStardog();
+		server.add(A, A, A, null);
+		server.add(A, A, B, null);
+		server.add(B, A, C, null);
+		pool = server.pool();
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Test
+	public void testAskBatch() throws StardogException {
+		QueryTemplate template = new QueryTemplate("ASK { ?s ?p ?o }");
+		List<Boolean> answers = template.ask(pool, Arrays.asList(
+				bindings("s", A), bindings("s", B), bindings("s", C)));
+		assertEquals(Arrays.asList(true, true, false), answers);
+		assertEquals(1, server.connects.get());
+		assertEquals(1, server.parses.get());
+	}
+
+	@Test
+	public void testTerminatedPool() {
+		pool.terminatePool();
+		try {
+			new QueryTemplate("ASK { ?s ?p ?o }").ask(pool,
+					Arrays.asList(bindings("s", A)));
+			assertTrue(false);
+		} catch (StardogException e) {
+		}
+	}
+
+	@Test
+	public void testSelectBatch() throws StardogException {
+		QueryTemplate template = new QueryTemplate("SELECT * { ?s ?p ?o }");
+		List<List<BindingSet>> results = template.select(pool, Arrays.asList(
+				bindings("s", A), bindings("s", B), bindings("o", C)));
+		assertEquals(3, results.size());
+		assertEquals(2, results.get(0).size());
+		assertEquals(1, results.get(1).size());
+		// the third binds o but leaves s unbound, so it needs a fresh query
+		assertEquals(1, results.get(2).size());
+		assertEquals(B, results.get(2).get(0).getValue("s"));
+		assertEquals(2, server.parses.get());
+	}
+
+	@Test
+	public void testSingleQuery() throws StardogException {
+		QueryTemplate template = new QueryTemplate("ASK { ?s ?p ?o }");
+		Connection c = pool.connect();
+		assertEquals(true, template.ask(c, bindings("o", B)));
+		assertEquals(true, template.ask(c, Collections
+				.<String, Object> emptyMap()));
+		c.close();
+	}
+
+	private static Map<String, Object> bindings(String name, Object value) {
+		Map<String, Object> bindings = new HashMap<String, Object>();
+		bindings.put(name, value);
+		return bindings;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks that reads and writes of a connection go to the read and write pool
+ * and that reads follow a write to the write pool.
+ */
+public class ReadWriteConnectionTest {
+
+	private RecordingPool writePool;
+	private RecordingPool readPool;
+
+	@Before
+	public void setUp() {
+		writePool = new RecordingPool();
+		readPool = new RecordingPool();
+		writePool.setReadPool(readPool);
+	}
+
+	@After
+	public void tearDown() {
+		writePool.terminatePool();
+		readPool.terminatePool();
+	}
+
+	@Test
+	public void testReadsGoToReadPool() throws Exception {
+		Connection conn = writePool.connect();
+		assertTrue(conn instanceof ReadWriteConnection);
+		conn.query("ASK {}").executeAsk();
+		conn.size();
+		assertEquals(0, writePool.getPoolCount());
+		assertEquals(1, readPool.getPoolCount());
+		assertEquals(2, readPool.stubs.get(0).roundTrips.get());
+		// nothing was written, so there is nothing to commit
+		conn.commit();
+		conn.close();
+		assertEquals(0, writePool.getPoolCount());
+	}
+
+	@Test
+	public void testReadsAfterWriteStick() throws Exception {
+		Connection conn = writePool.connect(100, TimeUnit.MILLISECONDS);
+		conn.query("ASK {}").executeAsk();
+		assertFalse(((ReadWriteConnection) conn).isSticky());
+		conn.begin();
+		assertTrue(((ReadWriteConnection) conn).isSticky());
+		conn.query("ASK {}").executeAsk();
+		conn.commit();
+		assertEquals(1, readPool.stubs.get(0).roundTrips.get());
+		// begin, the query and the commit
+		assertEquals(3, writePool.stubs.get(0).roundTrips.get());
+		conn.close();
+
+		// both connections went back and are reused
+		conn = writePool.connect();
+		conn.size();
+		conn.begin();
+		conn.close();
+		assertEquals(1, readPool.stubs.size());
+		assertEquals(1, writePool.stubs.size());
+	}
+
+	@Test
+	public void testStickyKeepsReader() throws Exception {
+		readPool.setMaxPoolSize(1);
+		Connection conn = writePool.connect();
+		conn.size();
+		conn.begin();
+		// results of the read connection may still be open, so it stays
+		// with the lease until close
+		try {
+			readPool.connect(50, TimeUnit.MILLISECONDS);
+			assertTrue(false);
+		} catch (ConnectionTimeoutException e) {
+		}
+		conn.close();
+		Connection other = readPool.connect(100, TimeUnit.MILLISECONDS);
+		assertNotNull(other);
+		other.close();
+	}
+
+	@Test
+	public void testAutoCommitIsWriteState() throws Exception {
+		Connection conn = writePool.connect();
+		// a status check borrows nothing and leaves reads on the read pool
+		assertFalse(conn.isAutoCommit());
+		assertFalse(((ReadWriteConnection) conn).isSticky());
+		assertEquals(0, writePool.getPoolCount());
+		conn.setAutoCommit(true);
+		assertTrue(conn.isAutoCommit());
+		assertTrue(((ReadWriteConnection) conn).isSticky());
+		conn.close();
+	}
+
+	@Test
+	public void testConnectAsyncBorrowsReader() throws Exception {
+		readPool.setMaxPoolSize(1);
+		Connection held = readPool.connect();
+		Future<Connection> pending = writePool.connectAsync();
+		// waits for the exhausted read pool, not just for the write pool
+		try {
+			pending.get(50, TimeUnit.MILLISECONDS);
+			assertTrue(false);
+		} catch (TimeoutException e) {
+		}
+		held.close();
+		Connection conn = pending.get(5, TimeUnit.SECONDS);
+		assertTrue(conn instanceof ReadWriteConnection);
+		try {
+			readPool.connect(50, TimeUnit.MILLISECONDS);
+			assertTrue(false);
+		} catch (ConnectionTimeoutException e) {
+		}
+		assertEquals(0, writePool.getPoolCount());
+		conn.close();
+		readPool.connect(100, TimeUnit.MILLISECONDS).close();
+	}
+
+	@Test
+	public void testNoReadPool() throws Exception {
+		writePool.setReadPool(null);
+		Connection conn = writePool.connect();
+		assertTrue(conn instanceof PooledConnection);
+		conn.close();
+	}
+
+	private static class RecordingPool extends StardogConnectionPool {
+
+		final List<StubConnection> stubs = new CopyOnWriteArrayList<StubConnection>();
+
+		@Override
+		protected Connection createConnection() {
+			StubConnection stub = new StubConnection();
+			stubs.add(stub);
+			return stub;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.ConnectionConfiguration;
+
+/**
+ * Checks that borrows are spread over the endpoints of a pool and that
+ * failing endpoints are ejected and probed.
+ */
+public class StardogConnectionPoolBalancingTest {
+
+	private ReplicaPool pool;
+
+	@Before
+	public void setUp() {
+		pool = new ReplicaPool();
+		pool.setEjectionThreshold(2);
+		pool.setEjectionTime(100);
+		pool.addReplica(ConnectionConfiguration.to("replica1"));
+		pool.addReplica(ConnectionConfiguration.to("replica2"));
+	}
+
+	@After
+	public void tearDown() {
+		pool.terminatePool();
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception {
+		assertEquals(3, pool.getEndpointCount());
+		List<Connection> held = new ArrayList<Connection>();
+		for (int i = 0; i < 6; i++) {
+			held.add(pool.connect());
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals(2, pool.opened[i]);
+		}
+		for (Connection c : held) {
+			c.close();
+		}
+	}
+
+	@Test
+	public void testEjectAndReadmit() throws Exception {
+		pool.failing[1] = true;
+		List<Connection> held = new ArrayList<Connection>();
+		int failures = 0;
+		for (int i = 0; i < 8; i++) {
+			try {
+				held.add(pool.connect());
+			} catch (StardogException e) {
+				failures++;
+			}
+		}
+		assertEquals(2, failures);
+		assertEquals(1, pool.getEjectedEndpointCount());
+		assertEquals(0, pool.opened[1]);
+		assertEquals(6, pool.opened[0] + pool.opened[2]);
+		for (Connection c : held) {
+			c.close();
+		}
+
+		pool.failing[1] = false;
+		long deadline = System.currentTimeMillis() + 2000;
+		while (pool.getEjectedEndpointCount() > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getEjectedEndpointCount());
+		// the readmitted endpoint has nothing borrowed, so it is picked
+		held.clear();
+		for (int i = 0; i < 3; i++) {
+			held.add(pool.connect());
+		}
+		assertTrue(pool.opened[1] > 0);
+		for (Connection c : held) {
+			c.close();
+		}
+	}
+
+	@Test
+	public void testAllEjectedFallsBackToPrimary() throws Exception {
+		pool.failing[1] = true;
+		pool.failing[2] = true;
+		for (int i = 0; i < 6; i++) {
+			try {
+				pool.connect().close();
+			} catch (StardogException e) {
+			}
+		}
+		assertEquals(2, pool.getEjectedEndpointCount());
+		Connection c = pool.connect();
+		assertNotNull(c);
+		c.close();
+	}
+
+	private static class ReplicaPool extends StardogConnectionPool {
+
+		private final Map<ConnectionConfiguration, Integer> replicas = new HashMap<ConnectionConfiguration, Integer>();
+		final int[] opened = new int[3];
+		final boolean[] failing = new boolean[3];
+
+		void addReplica(ConnectionConfiguration config) {
+			replicas.put(config, replicas.size() + 1);
+			addEndpoint(config);
+		}
+
+		@Override
+		protected Connection createConnection() throws StardogException {
+			return open(0);
+		}
+
+		@Override
+		protected Connection createConnection(ConnectionConfiguration config)
+				throws StardogException {
+			return open(replicas.get(config));
+		}
+
+		private synchronized Connection open(int index)
+				throws StardogException {
+			if (failing[index]) {
+				throw new StardogException("Connection refused.");
+			}
+			opened[index]++;
+			return new StubConnection();
+		}
+	}
+}
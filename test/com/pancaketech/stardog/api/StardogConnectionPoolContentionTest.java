@@ -0,0 +1,348 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Measures borrow/return throughput of the pool under contention. Connections
+ * are stubs so that only the cost of the pool itself is measured and no
+ * Stardog database is needed.
+ */
+public class StardogConnectionPoolContentionTest {
+
+	private static final long RunMillis = 500;
+
+	@Test
+	public void testContention() throws InterruptedException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threadCount = 1; threadCount <= cores * 4; threadCount *= 2) {
+			// pool as large as the thread count so only borrow/return is hit
+			run(threadCount, threadCount);
+		}
+	}
+
+	@Test
+	public void testSaturatedContention() throws InterruptedException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		run(cores * 8, cores);
+	}
+
+	@Test
+	public void testConnectTimeout() throws StardogException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setMaxPoolSize(1);
+		try {
+			Connection c = pool.connect(100, TimeUnit.MILLISECONDS);
+			assertNotNull(c);
+			ConnectionTimeoutException cte = null;
+			long t0 = System.currentTimeMillis();
+			try {
+				pool.connect(50, TimeUnit.MILLISECONDS);
+			} catch (ConnectionTimeoutException e) {
+				cte = e;
+			}
+			assertNotNull(cte);
+			assertTrue(System.currentTimeMillis() - t0 >= 50);
+			c.close();
+			c = pool.connect(50, TimeUnit.MILLISECONDS);
+			assertNotNull(c);
+			c.close();
+			assertEquals(1, pool.getPoolCount());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testFifoHandOff() throws Exception {
+		final StardogConnectionPool pool = new StubPool();
+		final List<Integer> order = Collections
+				.synchronizedList(new LinkedList<Integer>());
+		pool.setMaxPoolSize(1);
+		try {
+			Connection held = pool.connect();
+			List<Thread> threads = new LinkedList<Thread>();
+			for (int i = 0; i < 5; i++) {
+				final int id = i;
+				Thread t = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							Connection c = pool.connect();
+							order.add(id);
+							c.close();
+						} catch (StardogException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+				// let each thread queue up before starting the next
+				while (t.getState() != Thread.State.WAITING) {
+					Thread.sleep(1);
+				}
+			}
+			held.close();
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testConcurrentCreations() throws InterruptedException {
+		final AtomicInteger opening = new AtomicInteger();
+		final AtomicInteger maxOpening = new AtomicInteger();
+		final StardogConnectionPool pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				int count = opening.incrementAndGet();
+				for (int max = maxOpening.get(); count > max; max = maxOpening
+						.get()) {
+					maxOpening.compareAndSet(max, count);
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				opening.decrementAndGet();
+				return new StubConnection();
+			}
+		};
+		final List<Throwable> errors = Collections
+				.synchronizedList(new LinkedList<Throwable>());
+		pool.setMaxPoolSize(10);
+		pool.setMaxConcurrentCreations(2);
+		try {
+			List<Thread> threads = new LinkedList<Thread>();
+			for (int i = 0; i < 16; i++) {
+				Thread t = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							Connection c = pool.connect();
+							Thread.sleep(50);
+							c.close();
+						} catch (Throwable e) {
+							errors.add(e);
+						}
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			for (Throwable t : errors)
+				t.printStackTrace();
+			assertEquals(0, errors.size());
+			assertTrue(maxOpening.get() <= 2);
+			assertTrue(pool.getPoolCount() <= 10);
+			assertEquals(0, pool.getPendingCreations());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	/**
+	 * A connection opened to fill the pool that finishes opening after the
+	 * pool was terminated is closed rather than left in the emptied pool.
+	 */
+	@Test
+	public void testOpenedAfterTerminate() throws Exception {
+		final CountDownLatch opening = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final List<StubConnection> stubs = Collections
+				.synchronizedList(new LinkedList<StubConnection>());
+		final StardogConnectionPool pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				opening.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+				}
+				StubConnection stub = new StubConnection();
+				stubs.add(stub);
+				return stub;
+			}
+		};
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				pool.prefill();
+			}
+		});
+		pool.setMinIdle(1);
+		t.setDaemon(true);
+		t.start();
+		assertTrue(opening.await(1, TimeUnit.SECONDS));
+		pool.terminatePool();
+		proceed.countDown();
+		t.join(1000);
+		assertFalse(t.isAlive());
+		// the watcher may have been filling the pool too
+		for (int i = 0; i < 100 && pool.getPendingCreations() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(stubs.isEmpty());
+		for (StubConnection stub : stubs) {
+			assertFalse(stub.isOpen());
+		}
+		assertEquals(0, pool.getPoolCount());
+	}
+
+	/**
+	 * Runs 10,000 borrowers against a pool of 8. Borrowers run on virtual
+	 * threads when the JVM has them, and on 500 platform threads otherwise.
+	 */
+	@Test
+	public void testManyBorrowers() throws Exception {
+		Method startVirtualThread = null;
+		try {
+			startVirtualThread = Thread.class.getMethod("startVirtualThread",
+					Runnable.class);
+		} catch (NoSuchMethodException e) {
+		}
+		int borrowerCount = startVirtualThread != null ? 10000 : 500;
+		final StardogConnectionPool pool = new StardogConnectionPool() {
+
+			@Override
+			protected Connection createConnection() {
+				return new StubConnection(TimeUnit.MICROSECONDS.toNanos(100));
+			}
+		};
+		final List<Throwable> errors = Collections
+				.synchronizedList(new LinkedList<Throwable>());
+		final AtomicInteger borrows = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(borrowerCount);
+		pool.setMaxPoolSize(8);
+		pool.setThreadAffinity(false);
+		try {
+			Runnable borrower = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Connection c = pool.connect(30, TimeUnit.SECONDS);
+						c.size();
+						c.close();
+						borrows.incrementAndGet();
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i < borrowerCount; i++) {
+				if (startVirtualThread != null) {
+					startVirtualThread.invoke(null, borrower);
+				} else {
+					Thread t = new Thread(borrower);
+					t.setDaemon(true);
+					t.start();
+				}
+			}
+			assertTrue(done.await(60, TimeUnit.SECONDS));
+			long t1 = System.currentTimeMillis();
+			System.out.println(borrowerCount
+					+ (startVirtualThread != null ? " virtual" : " platform")
+					+ " thread borrowers, pool of 8: " + (t1 - t0) + "ms");
+			for (Throwable t : errors)
+				t.printStackTrace();
+			assertEquals(0, errors.size());
+			assertEquals(borrowerCount, borrows.get());
+			assertTrue(pool.getPoolCount() <= 8);
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	private void run(int threadCount, int poolSize)
+			throws InterruptedException {
+		final StardogConnectionPool pool = new StubPool();
+		final List<Throwable> errors = Collections
+				.synchronizedList(new LinkedList<Throwable>());
+		final AtomicLong borrows = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] deadline = new long[1];
+		pool.setMaxPoolSize(poolSize);
+		try {
+			List<Thread> threads = new LinkedList<Thread>();
+			for (int i = 0; i < threadCount; i++) {
+				Thread t = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						long count = 0;
+						try {
+							start.await();
+							while (System.currentTimeMillis() < deadline[0]) {
+								Connection c = pool.connect();
+								c.size();
+								c.close();
+								count++;
+							}
+						} catch (Throwable e) {
+							errors.add(e);
+						}
+						borrows.addAndGet(count);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			deadline[0] = System.currentTimeMillis() + RunMillis;
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			System.out.println("Borrow/return with " + threadCount
+					+ " threads, pool of " + poolSize + ": "
+					+ (borrows.get() / RunMillis) + " per ms");
+			for (Throwable t : errors)
+				t.printStackTrace();
+			assertEquals(0, errors.size());
+			assertTrue(pool.getPoolCount() <= poolSize);
+		} finally {
+			pool.terminatePool();
+		}
+	}
+}
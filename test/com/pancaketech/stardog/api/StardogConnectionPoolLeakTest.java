@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks that connections held past the leak detection threshold are reported
+ * and ones held past the abandoned timeout are reclaimed.
+ */
+public class StardogConnectionPoolLeakTest {
+
+	@Test
+	public void testLeakDetection() throws StardogException,
+			InterruptedException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setMaxPoolSize(1);
+		pool.setLeakDetectionThreshold(100);
+		pool.setLeakTraceSampleRate(1);
+		try {
+			Connection leaked = pool.connect();
+			Thread.sleep(150);
+			// only reported, the borrower keeps the connection
+			leaked.size();
+			assertEquals(0, pool.getReclaimedCount());
+			leaked.close();
+			pool.connect(50, TimeUnit.MILLISECONDS).close();
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testAbandonedReclaim() throws StardogException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setMaxPoolSize(1);
+		pool.setAbandonedTimeout(100);
+		pool.setLeakTraceSampleRate(0);
+		try {
+			Connection leaked = pool.connect();
+			Connection c = pool.connect(1000, TimeUnit.MILLISECONDS);
+			assertNotNull(c);
+			assertEquals(1, pool.getReclaimedCount());
+			StardogException closed = null;
+			try {
+				leaked.size();
+			} catch (StardogException e) {
+				closed = e;
+			}
+			assertNotNull(closed);
+			// closing the reclaimed wrapper late must not release c
+			leaked.close();
+			assertEquals(1, pool.getPoolCount());
+			c.close();
+		} finally {
+			pool.terminatePool();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks that the watcher and borrowers retire idle, expired and broken
+ * connections.
+ */
+public class StardogConnectionPoolLifetimeTest {
+
+	@Test
+	public void testIdleTimeout() throws StardogException,
+			InterruptedException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setIdleTimeout(100);
+		pool.setMinIdle(1);
+		try {
+			List<Connection> conns = new LinkedList<Connection>();
+			for (int i = 0; i < 5; i++) {
+				conns.add(pool.connect());
+			}
+			for (Connection c : conns) {
+				c.close();
+			}
+			assertEquals(5, pool.getPoolCount());
+			Thread.sleep(250);
+			assertEquals(1, pool.getPoolCount());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testMaxLifetime() throws StardogException,
+			InterruptedException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setMaxLifetime(100);
+		try {
+			Connection c = pool.connect();
+			c.close();
+			assertEquals(1, pool.getPoolCount());
+			Thread.sleep(200);
+			assertEquals(0, pool.getPoolCount());
+
+			// expired while in use, so retired when returned
+			c = pool.connect();
+			Thread.sleep(120);
+			c.close();
+			assertEquals(0, pool.getPoolCount());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testTestOnBorrow() throws StardogException,
+			InterruptedException {
+		StubPool pool = new StubPool();
+		pool.setTestOnBorrow(true);
+		pool.setValidationGracePeriod(50);
+		try {
+			pool.connect().close();
+			pool.stubs.get(0).broken = true;
+			// used within the grace period, so not validated
+			pool.connect().close();
+			assertEquals(1, pool.stubs.size());
+			assertEquals(0, pool.stubs.get(0).roundTrips.get());
+
+			Thread.sleep(60);
+			Connection c = pool.connect();
+			assertEquals(2, pool.stubs.size());
+			assertEquals(1, pool.stubs.get(0).roundTrips.get());
+			assertEquals(1, pool.getPoolCount());
+			c.close();
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testKeepalive() throws StardogException,
+			InterruptedException {
+		StubPool pool = new StubPool();
+		pool.setKeepaliveInterval(100);
+		try {
+			Connection c1 = pool.connect();
+			Connection c2 = pool.connect();
+			c1.close();
+			c2.close();
+			pool.stubs.get(0).broken = true;
+			Thread.sleep(250);
+			assertEquals(1, pool.getPoolCount());
+			assertTrue(pool.stubs.get(1).roundTrips.get() > 0);
+		} finally {
+			pool.terminatePool();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks that pools kept by the registry share the total connection limit.
+ */
+public class StardogConnectionPoolRegistryTest {
+
+	private StardogConnectionPoolRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new StubRegistry();
+		registry.setMaxTotalConnections(2);
+	}
+
+	@After
+	public void tearDown() {
+		registry.terminate();
+	}
+
+	@Test
+	public void testSamePoolPerKey() {
+		StardogConnectionPool a = registry.getPool("db", "admin", null);
+		assertSame(a, registry.getPool("db", "admin", null));
+		assertTrue(a != registry.getPool("db", "anonymous", null));
+		assertTrue(a != registry.getPool("other", "admin", null));
+	}
+
+	@Test
+	public void testRemovePool() throws Exception {
+		StardogConnectionPool a = registry.getPool("a", "admin", null);
+		a.connect().close();
+		a.connect().close();
+		Connection held = a.connect();
+		assertEquals(1, registry.getTotalConnections());
+		assertTrue(registry.removePool("a", "admin"));
+		assertFalse(registry.removePool("a", "admin"));
+		assertNull(a.connect());
+		StardogConnectionPool b = registry.getPool("a", "admin", null);
+		assertTrue(a != b);
+		// the connection still borrowed from the removed pool is closed once
+		// it is returned, making room for the new pool
+		held.close();
+		assertEquals(0, registry.getTotalConnections());
+		b.connect().close();
+	}
+
+	@Test
+	public void testTerminatedPoolReplaced() {
+		StardogConnectionPool a = registry.getPool("a", "admin", null);
+		a.terminatePool();
+		StardogConnectionPool b = registry.getPool("a", "admin", null);
+		assertTrue(a != b);
+		assertSame(b, registry.getPool("a", "admin", null));
+	}
+
+	@Test
+	public void testTotalLimit() throws Exception {
+		Connection c1 = registry.connect("a", "admin", null);
+		Connection c2 = registry.connect("b", "admin", null);
+		assertEquals(2, registry.getTotalConnections());
+		ConnectionTimeoutException cte = null;
+		try {
+			registry.getPool("c", "admin", null).connect(50,
+					TimeUnit.MILLISECONDS);
+		} catch (ConnectionTimeoutException e) {
+			cte = e;
+		}
+		assertNotNull(cte);
+		assertEquals(2, registry.getTotalConnections());
+		c1.close();
+		c2.close();
+	}
+
+	@Test
+	public void testIdleConnectionMovesToBusyPool() throws Exception {
+		StardogConnectionPool a = registry.getPool("a", "admin", null);
+		StardogConnectionPool b = registry.getPool("b", "admin", null);
+		a.connect().close();
+		a.connect().close();
+		Connection c1 = a.connect();
+		Connection c2 = a.connect();
+		c1.close();
+		c2.close();
+		assertEquals(2, a.getPoolCount());
+
+		Connection c3 = b.connect(100, TimeUnit.MILLISECONDS);
+		assertNotNull(c3);
+		assertEquals(1, a.getPoolCount());
+		assertEquals(1, b.getPoolCount());
+		assertEquals(2, registry.getTotalConnections());
+		c3.close();
+	}
+
+	@Test
+	public void testWaiterWokenByOtherPool() throws Exception {
+		Connection c1 = registry.connect("a", "admin", null);
+		Connection c2 = registry.connect("a", "admin", null);
+		final StardogConnectionPool a = registry.getPool("a", "admin", null);
+		StardogConnectionPool b = registry.getPool("b", "admin", null);
+		a.setMinIdle(2);
+		Thread closer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				a.setMinIdle(0);
+			}
+		});
+		closer.start();
+		c1.close();
+		c2.close();
+		// a keeps both idle connections until its minimum idle count drops
+		Connection c3 = b.connect(2000, TimeUnit.MILLISECONDS);
+		assertNotNull(c3);
+		c3.close();
+		closer.join();
+	}
+
+	private static class StubRegistry extends StardogConnectionPoolRegistry {
+
+		@Override
+		protected StardogConnectionPool createPool() {
+			return new StardogConnectionPool(this) {
+
+				@Override
+				protected Connection createConnection() {
+					return new StubConnection();
+				}
+			};
+		}
+	}
+}
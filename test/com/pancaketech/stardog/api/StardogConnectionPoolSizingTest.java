@@ -0,0 +1,77 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * Checks that the pool fills up to its minimum idle count and shrinks with
+ * demand when sizing adaptively.
+ */
+public class StardogConnectionPoolSizingTest {
+
+	@Test
+	public void testPrefill() throws StardogException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setMaxPoolSize(8);
+		pool.setMinIdle(12);
+		try {
+			// the watcher may already be filling the pool in the background
+			pool.prefill();
+			assertEquals(8, pool.getPoolCount());
+			assertEquals(0, pool.prefill());
+			Connection c = pool.connect();
+			assertEquals(8, pool.getPoolCount());
+			c.close();
+		} finally {
+			pool.terminatePool();
+		}
+
+		pool = new StubPool();
+		pool.setMinIdle(5);
+		try {
+			pool.prefill();
+			assertEquals(5, pool.getPoolCount());
+		} finally {
+			pool.terminatePool();
+		}
+	}
+
+	@Test
+	public void testAdaptiveSizing() throws StardogException,
+			InterruptedException {
+		StardogConnectionPool pool = new StubPool();
+		pool.setAdaptiveSizing(true);
+		try {
+			List<Connection> conns = new LinkedList<Connection>();
+			for (int i = 0; i < 10; i++) {
+				conns.add(pool.connect());
+			}
+			assertEquals(10, pool.getPoolCount());
+			for (Connection c : conns) {
+				c.close();
+			}
+			// demand is gone, so the pool shrinks well before the idle timeout
+			long deadline = System.currentTimeMillis() + 5000;
+			while (pool.getPoolCount() > 1
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertTrue(pool.getTargetPoolSize() <= 1);
+			assertTrue(pool.getPoolCount() <= 1);
+		} finally {
+			pool.terminatePool();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+import com.clarkparsia.stardog.StardogException;
+import com.clarkparsia.stardog.api.Adder;
+import com.clarkparsia.stardog.api.Connection;
+import com.clarkparsia.stardog.api.Getter;
+import com.clarkparsia.stardog.api.Query;
+import com.clarkparsia.stardog.api.Remover;
+
+/**
+ * A connection that does nothing, so that tests can measure the pool itself
+ * without a Stardog database. Calls that would go to the server in a real
+ * connection can be given a simulated round-trip time, and are counted.
+ */
+public class StubConnection implements Connection {
+
+	private final long roundTripNanos;
+	private volatile boolean open = true;
+	final AtomicInteger roundTrips = new AtomicInteger();
+	/*
+	 * Simulates a connection the server has dropped: it still claims to be
+	 * open, but every round-trip fails.
+	 */
+	volatile boolean broken;
+	/*
+	 * Number of rows a SELECT query answers, each an empty binding set.
+	 */
+	volatile int rows;
+	volatile boolean autoCommit;
+
+	public StubConnection() {
+		this(0);
+	}
+
+	public StubConnection(long roundTripNanos) {
+		this.roundTripNanos = roundTripNanos;
+	}
+
+	private void roundTrip() throws StardogException {
+		roundTrips.incrementAndGet();
+		if (broken) {
+			throw new StardogException("Connection reset.");
+		}
+		if (roundTripNanos > 0) {
+			LockSupport.parkNanos(roundTripNanos);
+		}
+	}
+
+	@Override
+	public Adder add() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void begin() throws StardogException {
+		roundTrip();
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	@Override
+	public void commit() throws StardogException {
+		roundTrip();
+	}
+
+	@Override
+	public Getter get() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isAutoCommit() {
+		return autoCommit;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Returns a query that only supports <tt>executeAsk</tt>, which answers
+	 * true after a round-trip, and <tt>executeSelect</tt>, which answers the
+	 * configured number of rows.
+	 */
+	@Override
+	public Query query(String query) {
+		return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(),
+				new Class<?>[] { Query.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("executeAsk")) {
+							roundTrip();
+							return Boolean.TRUE;
+						}
+						if (method.getName().equals("executeSelect")) {
+							roundTrip();
+							return new StubResult(rows);
+						}
+						throw new UnsupportedOperationException();
+					}
+				});
+	}
+
+	@Override
+	public Query query(String query, String baseUri) {
+		return query(query);
+	}
+
+	@Override
+	public Remover remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void rollback() throws StardogException {
+		roundTrip();
+	}
+
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws StardogException {
+		roundTrip();
+		this.autoCommit = autoCommit;
+	}
+
+	@Override
+	public long size() throws StardogException {
+		roundTrip();
+		return 0;
+	}
+
+	/**
+	 * A result of empty rows.
+	 */
+	static class StubResult implements TupleQueryResult {
+
+		private int remaining;
+
+		StubResult(int rows) {
+			remaining = rows;
+		}
+
+		@Override
+		public List<String> getBindingNames() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		@Override
+		public BindingSet next() {
+			if (remaining-- <= 0) {
+				throw new NoSuchElementException();
+			}
+			return EmptyBindingSet.getInstance();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
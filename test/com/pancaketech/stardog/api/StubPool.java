@@ -0,0 +1,26 @@
+/**
+ * Copyright 2011, Pancake Technology, LLC
+ * All Rights Reserved.
+ */
+package com.pancaketech.stardog.api;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.clarkparsia.stardog.api.Connection;
+
+/**
+ * A pool of {@link StubConnection}s, which keeps the ones it opened so that
+ * tests can break them or count their round-trips.
+ */
+public class StubPool extends StardogConnectionPool {
+
+	final List<StubConnection> stubs = new CopyOnWriteArrayList<StubConnection>();
+
+	@Override
+	protected Connection createConnection() {
+		StubConnection stub = new StubConnection();
+		stubs.add(stub);
+		return stub;
+	}
+}